@@ -9,7 +9,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
-import android.os.Handler;
 import android.support.annotation.NonNull;
 
 import com.google.firebase.FirebaseApp;
@@ -29,6 +28,7 @@ import com.pushpole.sdk.controller.controllers.OpenAppController;
 import com.pushpole.sdk.controller.controllers.RegisterController;
 import com.pushpole.sdk.device.DeviceIDHelper;
 import com.pushpole.sdk.fcm.FcmHandler;
+import com.pushpole.sdk.internal.db.BatchDbOperation;
 import com.pushpole.sdk.internal.db.KeyStore;
 import com.pushpole.sdk.internal.db.NotifAndUpstreamMsgsDbOperation;
 import com.pushpole.sdk.internal.log.Log;
@@ -40,11 +40,13 @@ import com.pushpole.sdk.message.downstream.DownstreamMessage;
 import com.pushpole.sdk.message.downstream.DownstreamMessageFactory;
 import com.pushpole.sdk.message.upstream.RefactoredUpstreamMessage;
 import com.pushpole.sdk.network.SendManager;
-import com.pushpole.sdk.network.UpstreamSender;
+import com.pushpole.sdk.network.UpstreamOutbox;
 import com.pushpole.sdk.receiver.ConnectivityReceiver;
 import com.pushpole.sdk.service.ScreenStateService;
 import com.pushpole.sdk.task.PushPoleAsyncTask;
+import com.pushpole.sdk.task.TaskGraph;
 import com.pushpole.sdk.task.TaskManager;
+import com.pushpole.sdk.task.executor.Lane;
 import com.pushpole.sdk.task.tasks.NetworkConnect;
 import com.pushpole.sdk.topic.TopicSubscriber;
 import com.pushpole.sdk.util.InvalidJsonException;
@@ -56,6 +58,7 @@ import com.pushpole.sdk.util.PushPoleFailedException;
  */
 public class PushPole {
     private final static int INITIALIZE_RATE_LIMIT = 30000;
+    private final static long STORED_NOTIFICATION_MAX_AGE = 7 * 24 * 3600000L; // one week
 
     public static NotificationListener pushpoleNotificationListener = null;
 
@@ -155,7 +158,8 @@ public class PushPole {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
             Intent i = new Intent(context, ScreenStateService.class);
             // If screen state was disabled (default: yes, stopped), stop the service, otherwise start it
-            if (KeyStore.getInstance(context).getBoolean(Constants.getVal(Constants.STOP_SCREEN_SERVICE_KEY_STORE), true)) {
+            SdkConfig config = SdkConfig.get(context);
+            if (config.isScreenServiceStopped()) {
                 Logger.debug("Ignoring screen state receiver since it's been turned off");
                 context.stopService(i);
             } else {
@@ -164,7 +168,7 @@ public class PushPole {
             }
 
             // Stop connectivity service if it was disabled
-            if (KeyStore.getInstance(context).getBoolean(Constants.STOP_CONNECTIVITY_KEY_STORE, true)) {
+            if (config.isConnectivityStopped()) {
                 Logger.info("Disabling connectivity since it has been disabled");
                 context.getPackageManager().setComponentEnabledSetting(
                         new ComponentName(context, ConnectivityReceiver.class.getName()),
@@ -174,13 +178,19 @@ public class PushPole {
     }
 
     public static void showDelayedNotification(final Context context) {
+        KeyStore.Batch batch = KeyStore.getInstance(context).batch();
+        showDelayedNotification(context, batch);
+        batch.commit();
+    }
+
+    private static void showDelayedNotification(final Context context, KeyStore.Batch batch) {
         Pack delayedNotifPack = KeyStore.getInstance(context).getPack(Constants.getVal(Constants.DELAYED_NOTIFICATION), null);
         if (delayedNotifPack != null) {
             int msgTypeCode = Integer.parseInt(delayedNotifPack.getString(Constants.getVal(Constants.F_MESSAGE_TYPE), "0"));
             String timeStr = delayedNotifPack.getString(Constants.getVal(Constants.TIMESTAMP), "0");
             long timestamp = Long.parseLong(timeStr);
             long diff = new Date().getTime() - timestamp;
-            if ((diff - (7 * 24 * 3600000) /* one week */) < 0) {
+            if (diff < STORED_NOTIFICATION_MAX_AGE) {
                 //if this message has less than a week age, publish it
                 DownstreamMessage.Type messageType = DownstreamMessage.Type.fromCode(msgTypeCode);
                 DownstreamMessageFactory messageFactory;
@@ -189,20 +199,14 @@ public class PushPole {
                 DownstreamApiFactory apiFactory = messageType.getApiFactory();
                 final DownstreamApiController apiController = apiFactory.buildDownstreamHandler(context);
 
-                new Handler().postDelayed(new Runnable() {
+                TaskManager.getInstance(context).asyncTaskDelayed(Lane.RENDER, new PushPoleAsyncTask() {
                     @Override
-                    public void run() {
-                        TaskManager.getInstance(context).asyncTask(new PushPoleAsyncTask() {
-                            @Override
-                            public void run(Context context) {
-                                apiController.handleDownstreamMessage(message);
-                            }
-                        });
-
+                    public void run(Context context) {
+                        apiController.handleDownstreamMessage(message);
                     }
-                }, Constants.DELAYED_MESSAGE_DELAY_AMOUNT);
+                }, (long) Constants.DELAYED_MESSAGE_DELAY_AMOUNT);
             }
-            KeyStore.getInstance(context).delete(Constants.getVal(Constants.DELAYED_NOTIFICATION)); //remove msg from keyStore
+            batch.delete(Constants.getVal(Constants.DELAYED_NOTIFICATION)); //remove msg from keyStore
         }
     }
 
@@ -245,15 +249,23 @@ public class PushPole {
      * via her/his pushpole panel.
      *
      * @param context
+     * @param batch   batch receiving the changes to the stored message
      */
-    private static void showUpdateNotification(Context context) {
-        Pack updateNotif = KeyStore.getInstance(context).getPack(Constants.getVal(Constants.UPDATE_APP_NOTIF_MESSAGE), null);
+    private static void showUpdateNotification(Context context, KeyStore.Batch batch) {
+        KeyStore keyStore = KeyStore.getInstance(context);
+        // most app opens are within a day of the last publish, check that without decoding the message
+        Object lastShown = keyStore.getPackField(Constants.getVal(Constants.UPDATE_APP_NOTIF_MESSAGE),
+                Constants.getVal(Constants.LAST_SHOW_UPDATE_NOTIF_TIME));
+        if (lastShown instanceof Number && System.currentTimeMillis() - ((Number) lastShown).longValue() <= 24 * 3600000) {
+            return;
+        }
+        Pack updateNotif = keyStore.getPack(Constants.getVal(Constants.UPDATE_APP_NOTIF_MESSAGE), null);
         if (updateNotif != null) {
             int msgTypeCode = Integer.parseInt(updateNotif.getString(Constants.getVal(Constants.F_MESSAGE_TYPE), "0"));
             String timeStr = updateNotif.getString(Constants.getVal(Constants.TIMESTAMP), "0");
             long timestamp = Long.parseLong(timeStr);
-            long diff = new Date().getTime() - timestamp;
-            if ((diff - (7 * 24 * 3600000) /* one week */) < 0) {//if the age of this message is at most 1week
+            long timeToLive = timestamp + STORED_NOTIFICATION_MAX_AGE - new Date().getTime();
+            if (timeToLive > 0) {//if the age of this message is at most 1week
                 long lastShowUpdateMsgTime = updateNotif.getLong(Constants.getVal(Constants.LAST_SHOW_UPDATE_NOTIF_TIME), 0);
                 long diff2 = System.currentTimeMillis() - lastShowUpdateMsgTime;
                 if (lastShowUpdateMsgTime == 0 || diff2 > (24 * 3600000)) {
@@ -262,7 +274,7 @@ public class PushPole {
                     final DownstreamMessage message = messageFactory.buildMessage(updateNotif);
                     final DownstreamApiFactory apiFactory = messageType.getApiFactory();
                     final DownstreamApiController apiController = apiFactory.buildDownstreamHandler(context);
-                    TaskManager.getInstance(context).asyncTask(new PushPoleAsyncTask() {
+                    TaskManager.getInstance(context).asyncTask(Lane.RENDER, new PushPoleAsyncTask() {
                         @Override
                         public void run(Context context) {
                             apiController.handleDownstreamMessage(message);
@@ -270,10 +282,11 @@ public class PushPole {
                     });
 
                     updateNotif.putLong(Constants.getVal(Constants.LAST_SHOW_UPDATE_NOTIF_TIME), System.currentTimeMillis());
-                    KeyStore.getInstance(context).putPack(Constants.getVal(Constants.UPDATE_APP_NOTIF_MESSAGE), updateNotif);
+                    // stored with a ttl so the message is swept after a week even if it is never read again
+                    batch.putPack(Constants.getVal(Constants.UPDATE_APP_NOTIF_MESSAGE), updateNotif, timeToLive);
                 }
             } else {
-                KeyStore.getInstance(context).delete(Constants.getVal(Constants.UPDATE_APP_NOTIF_MESSAGE));
+                batch.delete(Constants.getVal(Constants.UPDATE_APP_NOTIF_MESSAGE));
             }
 
         }
@@ -339,7 +352,8 @@ public class PushPole {
             throw new PushPoleFailedException("Google play services is not installed or updated");
         }
 
-        TaskManager.getInstance(context).asyncTask(new PushPoleAsyncTask() {
+        TaskGraph initGraph = new TaskGraph();
+        TaskGraph.Node deviceIdNode = initGraph.add("prefetch-device-id", Lane.CONTROL, new PushPoleAsyncTask() {
             @Override
             public void run(Context context) {
                 /* Prefetch PushPole Id */
@@ -347,7 +361,6 @@ public class PushPole {
             }
         });
 
-
         SenderInfo senderInfo = SenderInfo.getInstance(context);
 
         try {
@@ -368,7 +381,7 @@ public class PushPole {
                 "GcmNetworkManager", String.valueOf(GooglePlayServicesHelper.isGcmNetworkManagerSupported(context))
         ));
 
-        checkRegistration(context);
+        TaskGraph.Node registrationNode = checkRegistration(initGraph, deviceIdNode);
         mInitialized = true;
 
         try {
@@ -378,28 +391,79 @@ public class PushPole {
             if (count > 0)
                 Logger.warning("Outdated upstream messages removed from DB.", new LogData("Number of removed messages", String.valueOf(count)));
 
+            initGraph.add("enforce-db-budgets", Lane.BULK, new PushPoleAsyncTask() {
+                @Override
+                public void run(Context context) {
+                    /* Keep stored messages and collected data in their size budgets */
+                    BatchDbOperation.getInstance(context).enforceBudgets();
+                }
+            });
+
+            initGraph.add("sweep-keystore", Lane.BULK, new PushPoleAsyncTask() {
+                @Override
+                public void run(Context context) {
+                    /* Delete expired KeyStore values, later ones are deleted when they are read */
+                    int count = KeyStore.getInstance(context).sweepExpired();
+                    if (count > 0) {
+                        Logger.debug("Expired values removed from KeyStore", new LogData("Count", String.valueOf(count)));
+                    }
+                }
+            });
+
+            TaskGraph.Node recoveryNode = initGraph.add("recover-tasks", Lane.BULK, new PushPoleAsyncTask() {
+                @Override
+                public void run(Context context) {
+                    /* Re-schedule journaled tasks lost by the scheduler */
+                    TaskManager.getInstance(context).recoverPendingTasks();
+                }
+            });
+            initGraph.add("collect-orphaned-tasks", Lane.BULK, new PushPoleAsyncTask() {
+                @Override
+                public void run(Context context) {
+                    /* Remove data of tasks lost by the scheduler which recovery could not bring back */
+                    TaskManager.getInstance(context).collectOrphanedTasksIfDue();
+                }
+            }, recoveryNode);
+
+            initGraph.add("flush-upstream-outbox", Lane.CONTROL, new PushPoleAsyncTask() {
+                @Override
+                public void run(Context context) {
+                    /* Send upstream messages left in outbox by earlier runs */
+                    UpstreamOutbox.getInstance(context).flushNow();
+                }
+            }, registrationNode);
+
             if (!initInBackground) {
-                sendOpenAppMessage(context);
-                showDelayedNotification(context); //show notifications that has delay
-                showUpdateNotification(context);
+                sendOpenAppMessage(initGraph, registrationNode);
+                initGraph.add("stored-notifications", Lane.RENDER, new PushPoleAsyncTask() {
+                    @Override
+                    public void run(Context context) {
+                        KeyStore.Batch batch = KeyStore.getInstance(context).batch();
+                        showDelayedNotification(context, batch); //show notifications that has delay
+                        showUpdateNotification(context, batch);
+                        batch.commit();
+                    }
+                });
             }
 
-            boolean isConnectivityStopped = KeyStore.getInstance(context).getBoolean(Constants.STOP_CONNECTIVITY_KEY_STORE, true);
             // Start connectivity job if it is not stopped
-            if (!isConnectivityStopped) {
+            if (!SdkConfig.get(context).isConnectivityStopped()) {
                 createNetworkConnectivityJob(context.getApplicationContext());
             }
         } catch (Exception e) {
             Logger.error("Error after initializing pushpole in onInitialize", new LogData("Error", e.getMessage()));
         }
+
+        TaskManager.getInstance(context).runGraph(initGraph);
     }
 
     /***
      * check if pushpole service is registered or not and register it
+     * registration runs as soon as the device id is available
      */
-    private void checkRegistration(Context context) {
+    private TaskGraph.Node checkRegistration(TaskGraph initGraph, TaskGraph.Node deviceIdNode) {
         Logger.info("Checking registration");
-        TaskManager.getInstance(context).asyncTaskDelayed(new PushPoleAsyncTask() {
+        return initGraph.add("check-registration", Lane.CONTROL, new PushPoleAsyncTask() {
             @Override
             public void run(Context context) {
 
@@ -408,21 +472,21 @@ public class PushPole {
                     registerCtrl.register();
                 }
             }
-        }, 3000L);
+        }, deviceIdNode);
     }
 
     /***
-     * send location of client to pushpole server
+     * send location of client to pushpole server, once registration check is done
      */
-    private void sendOpenAppMessage(Context context) {
-        if (SenderInfo.getInstance(context).isRegistrationComplete()) {
-            TaskManager.getInstance(context).asyncTask(new PushPoleAsyncTask() {
-                @Override
-                public void run(Context context) {
+    private void sendOpenAppMessage(TaskGraph initGraph, TaskGraph.Node registrationNode) {
+        initGraph.add("open-app", Lane.CONTROL, new PushPoleAsyncTask() {
+            @Override
+            public void run(Context context) {
+                if (SenderInfo.getInstance(context).isRegistrationComplete()) {
                     new OpenAppController(context).onOpenApp();
                 }
-            });
-        }
+            }
+        }, registrationNode);
     }
 
     private void sendNotifOnOffUpstreamCommand(Context context, boolean notifIsEnabled) {
@@ -436,7 +500,7 @@ public class PushPole {
         Pack resPack = new Pack();
         resPack.putPack(commandCode, pack);
         resPack = factory.addMessageIdToPack(resPack);
-        new UpstreamSender(context).sendMessage(resPack);
+        UpstreamOutbox.getInstance(context).enqueue(resPack);
     }
 
 
@@ -444,20 +508,14 @@ public class PushPole {
 
         final int networkJobId = 1013;
 
-        boolean isConnectivityStopped = KeyStore.getInstance(context).getBoolean(Constants.STOP_CONNECTIVITY_KEY_STORE, true);
+        SdkConfig config = SdkConfig.get(context);
         // Start connectivity job if it is not stopped
-        if (isConnectivityStopped) {
+        if (config.isConnectivityStopped()) {
             Logger.info("Ignoring NetworkConnect task since it's been disabled.");
             return;
         }
         Logger.info("Creating network connectivity job");
-        String connectivityPeriod = KeyStore.getInstance(context).getString(PlainConstants.CONNECTIVITY_PERIOD, "14400000");
-        long period;
-        try {
-            period = Long.parseLong(connectivityPeriod);
-        } catch (Exception e) {
-            period = 14400000L; // Default is 4 hours (4 * 60 * 60 * 1000)
-        }
+        long period = config.getConnectivityPeriod();
 
         android.content.pm.ApplicationInfo applicationInfo = context.getApplicationInfo();
         int targetSdk = context.getApplicationContext().getApplicationInfo().targetSdkVersion;
@@ -482,7 +540,7 @@ public class PushPole {
             return;
         }
 
-        TaskManager.getInstance(context).asyncTask(new PushPoleAsyncTask() {
+        TaskManager.getInstance(context).asyncTask(Lane.BULK, new PushPoleAsyncTask() {
             @Override
             public void run(Context context) {
                 Pack eventPack = new Pack();
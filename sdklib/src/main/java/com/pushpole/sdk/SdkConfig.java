@@ -0,0 +1,197 @@
+package com.pushpole.sdk;
+
+import android.content.Context;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.pushpole.sdk.internal.db.KeyStore;
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+import com.pushpole.sdk.util.Pack;
+
+/***
+ * Immutable snapshot of the server pushed settings stored in {@link KeyStore}
+ * the snapshot is built once and replaced whenever one of its keys is written, so readers use plain
+ * fields instead of preference lookups and string parsing
+ */
+public class SdkConfig {
+    public final static long DEFAULT_CONNECTIVITY_PERIOD = 14400000L; // 4 hours
+    public final static long DEFAULT_MESSAGE_MAX_BYTES = 2 * 1024 * 1024L;
+    public final static long DEFAULT_MESSAGE_MAX_ROWS = 5000;
+    public final static long DEFAULT_COLLECTION_MAX_BYTES = 4 * 1024 * 1024L;
+    public final static long DEFAULT_COLLECTION_MAX_ROWS = 10000;
+
+    // KeyStore keys of the database retention budgets
+    public final static String MESSAGE_MAX_BYTES = "db_message_max_bytes";
+    public final static String MESSAGE_MAX_ROWS = "db_message_max_rows";
+    public final static String COLLECTION_MAX_BYTES = "db_collection_max_bytes";
+    public final static String COLLECTION_MAX_ROWS = "db_collection_max_rows";
+    // KeyStore key set when the server accepts batched upstream messages
+    public final static String UPSTREAM_BATCH = "upstream_batch_enabled";
+
+    // settings a server config message may change, in the keys they are stored under
+    private final static String[] SERVER_LIMIT_KEYS = {MESSAGE_MAX_BYTES, MESSAGE_MAX_ROWS,
+            COLLECTION_MAX_BYTES, COLLECTION_MAX_ROWS};
+
+    private final static AtomicReference<SdkConfig> mCurrent = new AtomicReference<>();
+
+    private final long mConnectivityPeriod;
+    private final boolean mConnectivityStopped;
+    private final boolean mScreenServiceStopped;
+    private final long mMessageMaxBytes;
+    private final int mMessageMaxRows;
+    private final long mCollectionMaxBytes;
+    private final int mCollectionMaxRows;
+    private final boolean mUpstreamBatchEnabled;
+
+    private SdkConfig(KeyStore keyStore) {
+        mConnectivityPeriod = parseLong(keyStore.getString(PlainConstants.CONNECTIVITY_PERIOD, null), DEFAULT_CONNECTIVITY_PERIOD);
+        mConnectivityStopped = keyStore.getBoolean(Constants.STOP_CONNECTIVITY_KEY_STORE, true);
+        mScreenServiceStopped = keyStore.getBoolean(Constants.getVal(Constants.STOP_SCREEN_SERVICE_KEY_STORE), true);
+        mMessageMaxBytes = parseLong(keyStore.getString(MESSAGE_MAX_BYTES, null), DEFAULT_MESSAGE_MAX_BYTES);
+        mMessageMaxRows = (int) parseLong(keyStore.getString(MESSAGE_MAX_ROWS, null), DEFAULT_MESSAGE_MAX_ROWS);
+        mCollectionMaxBytes = parseLong(keyStore.getString(COLLECTION_MAX_BYTES, null), DEFAULT_COLLECTION_MAX_BYTES);
+        mCollectionMaxRows = (int) parseLong(keyStore.getString(COLLECTION_MAX_ROWS, null), DEFAULT_COLLECTION_MAX_ROWS);
+        mUpstreamBatchEnabled = keyStore.getBoolean(UPSTREAM_BATCH, false);
+    }
+
+    /***
+     * @return the current snapshot, the first call builds it and starts following changes
+     */
+    public static SdkConfig get(Context context) {
+        SdkConfig config = mCurrent.get();
+        if (config == null) {
+            synchronized (SdkConfig.class) {
+                config = mCurrent.get();
+                if (config == null) {
+                    KeyStore keyStore = KeyStore.getInstance(context);
+                    keyStore.registerOnChangeListener(new KeyStore.OnChangeListener() {
+                        @Override
+                        public void onKeyStoreChanged(KeyStore keyStore, Set<String> changedKeys) {
+                            if (isConfigKey(changedKeys)) {
+                                mCurrent.set(new SdkConfig(keyStore));
+                            }
+                        }
+                    });
+                    // a write racing with this build has already installed a newer snapshot
+                    mCurrent.compareAndSet(null, new SdkConfig(keyStore));
+                    config = mCurrent.get();
+                }
+            }
+        } else {
+            // changes written by other processes reach the listener when the store is reloaded
+            KeyStore.getInstance(context).refreshIfChanged();
+            config = mCurrent.get();
+        }
+        return config;
+    }
+
+    /***
+     * store the settings of a config message of the server
+     * the message uses the {@link KeyStore} keys of this class with string values, the database
+     * budgets and {@code "true"} or {@code "false"} for {@link #UPSTREAM_BATCH}. Settings missing
+     * from the message keep their value, invalid ones are ignored and the rest is written at once,
+     * so the snapshot is replaced once.
+     *
+     * @param config the config message
+     * @return number of stored settings
+     */
+    public static int storeServerConfig(Context context, Pack config) {
+        KeyStore.Batch batch = KeyStore.getInstance(context).batch();
+        int stored = 0;
+        for (String key : SERVER_LIMIT_KEYS) {
+            String value = config.getString(key, null);
+            if (value == null) {
+                continue;
+            }
+            if (parseLong(value, -1) <= 0) {
+                Logger.warning("Ignoring invalid server config value", new LogData(
+                        "Key", key,
+                        "Value", value
+                ));
+                continue;
+            }
+            batch.putString(key, value);
+            stored++;
+        }
+        String upstreamBatch = config.getString(UPSTREAM_BATCH, null);
+        if ("true".equals(upstreamBatch) || "false".equals(upstreamBatch)) {
+            batch.putBoolean(UPSTREAM_BATCH, Boolean.parseBoolean(upstreamBatch));
+            stored++;
+        } else if (upstreamBatch != null) {
+            Logger.warning("Ignoring invalid server config value", new LogData(
+                    "Key", UPSTREAM_BATCH,
+                    "Value", upstreamBatch
+            ));
+        }
+        batch.commit();
+        return stored;
+    }
+
+    private static boolean isConfigKey(Set<String> keys) {
+        return keys.contains(PlainConstants.CONNECTIVITY_PERIOD)
+                || keys.contains(Constants.STOP_CONNECTIVITY_KEY_STORE)
+                || keys.contains(Constants.getVal(Constants.STOP_SCREEN_SERVICE_KEY_STORE))
+                || keys.contains(MESSAGE_MAX_BYTES)
+                || keys.contains(MESSAGE_MAX_ROWS)
+                || keys.contains(COLLECTION_MAX_BYTES)
+                || keys.contains(COLLECTION_MAX_ROWS)
+                || keys.contains(UPSTREAM_BATCH);
+    }
+
+    private static long parseLong(String value, long defValue) {
+        if (value == null) {
+            return defValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+
+    /***
+     * @return period of the network connectivity job in milliseconds
+     */
+    public long getConnectivityPeriod() {
+        return mConnectivityPeriod;
+    }
+
+    public boolean isConnectivityStopped() {
+        return mConnectivityStopped;
+    }
+
+    public boolean isScreenServiceStopped() {
+        return mScreenServiceStopped;
+    }
+
+    /***
+     * @return size budget of stored upstream and notification messages in bytes
+     */
+    public long getMessageMaxBytes() {
+        return mMessageMaxBytes;
+    }
+
+    public int getMessageMaxRows() {
+        return mMessageMaxRows;
+    }
+
+    /***
+     * @return size budget of collected data waiting to be sent in bytes
+     */
+    public long getCollectionMaxBytes() {
+        return mCollectionMaxBytes;
+    }
+
+    public int getCollectionMaxRows() {
+        return mCollectionMaxRows;
+    }
+
+    /***
+     * @return {@code true} if the server accepts several upstream messages in one batch message
+     */
+    public boolean isUpstreamBatchEnabled() {
+        return mUpstreamBatchEnabled;
+    }
+}
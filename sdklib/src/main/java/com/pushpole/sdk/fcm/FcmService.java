@@ -8,6 +8,7 @@ import com.pushpole.sdk.internal.log.ExceptionCatcher;
 import com.pushpole.sdk.internal.log.LogData;
 import com.pushpole.sdk.internal.log.Logger;
 import com.pushpole.sdk.network.GcmHandler;
+import com.pushpole.sdk.network.UpstreamOutbox;
 
 public class FcmService extends FirebaseMessagingService {
     private FcmHandlerImpl mFcmHandler;
@@ -33,11 +34,13 @@ public class FcmService extends FirebaseMessagingService {
 
     @Override
     public void onMessageSent(String msgId) {
+        UpstreamOutbox.getInstance(this).onMessageSent(msgId);
         mFcmHandler.onMessageSent(msgId);
     }
 
     @Override
     public void onSendError(String msgId, Exception error) {
+        UpstreamOutbox.getInstance(this).onSendError(msgId);
         mFcmHandler.onSendError(msgId, error);
     }
 }
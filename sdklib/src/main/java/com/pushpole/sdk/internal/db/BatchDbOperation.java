@@ -0,0 +1,500 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pushpole.sdk.SdkConfig;
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+
+import com.pushpole.sdk.util.Pack;
+
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_COLL_JSON;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_COLL_TYPE;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_CREATED_AT;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_CREATED_DATE;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_CREATED_TIME;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_DATA;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_ID;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_TYPE;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_ID;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.TABLE_COLLECTION;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF;
+
+/***
+ * Bulk access to {@link DatabaseHelper#TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF} and
+ * {@link DatabaseHelper#TABLE_COLLECTION}
+ *
+ * Inserts reuse compiled statements and a group of rows is written in a single transaction, so a
+ * burst of collected data costs one journal sync instead of one per row. Reads go through pages of
+ * rows ordered by id, only one page is held in a cursor window at a time.
+ *
+ * Both tables have a retention budget in bytes and rows taken from {@link SdkConfig} and followed
+ * as it changes. Inserts keep running totals of the rows and bytes of each table and evictions
+ * subtract what they delete, so a table sitting at its budget is not counted on every insert. Since
+ * other classes write the tables too, a table is only counted again every {@link #RECOUNT_INTERVAL}
+ * inserts and by {@link #enforceBudgets()}, in between rows deleted elsewhere may make an insert
+ * evict more than needed. When a table is over budget its oldest rows are walked until enough are
+ * found and evicted with a single DELETE of an id range.
+ */
+public class BatchDbOperation {
+    public final static int DEFAULT_PAGE_SIZE = 200;
+    /*** number of bulk inserts after which running totals are replaced by a count of the table */
+    public final static int RECOUNT_INTERVAL = 50;
+
+    private final static String INSERT_MESSAGE = "INSERT INTO " + TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF + "("
+            + COLUMN_GCM_MSG_ID + "," + COLUMN_GCM_MSG_DATA + "," + COLUMN_GCM_MSG_TYPE + ","
+            + COLUMN_GCM_MSG_CREATED_TIME + "," + COLUMN_GCM_MSG_CREATED_DATE + ") VALUES (?,?,?,?,?)";
+    private final static String INSERT_COLLECTION = "INSERT INTO " + TABLE_COLLECTION + "("
+            + COLUMN_COLL_JSON + "," + COLUMN_COLL_TYPE + ") VALUES (?,?)";
+
+    private volatile static BatchDbOperation mInstance;
+
+    private DatabaseHelper mDbHelper;
+    private SQLiteDatabase mDb;
+    private SQLiteStatement mInsertMessage;
+    private SQLiteStatement mInsertCollection;
+    private final Budget mMessageBudget = new Budget(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF,
+            "IFNULL(length(" + COLUMN_GCM_MSG_DATA + "), 0) + IFNULL(length(" + COLUMN_GCM_MSG_ID + "), 0)");
+    private final Budget mCollectionBudget = new Budget(TABLE_COLLECTION,
+            "IFNULL(length(" + COLUMN_COLL_JSON + "), 0)");
+
+    private BatchDbOperation(final Context context) {
+        mDbHelper = DatabaseHelper.getInstance(context);
+        applyBudgets(SdkConfig.get(context));
+        // registered after the listener of SdkConfig, so it reads the new snapshot
+        KeyStore.getInstance(context).registerOnChangeListener(new KeyStore.OnChangeListener() {
+            @Override
+            public void onKeyStoreChanged(KeyStore keyStore, Set<String> changedKeys) {
+                if (changedKeys.contains(SdkConfig.MESSAGE_MAX_BYTES) || changedKeys.contains(SdkConfig.MESSAGE_MAX_ROWS)
+                        || changedKeys.contains(SdkConfig.COLLECTION_MAX_BYTES)
+                        || changedKeys.contains(SdkConfig.COLLECTION_MAX_ROWS)) {
+                    applyBudgets(SdkConfig.get(context));
+                }
+            }
+        });
+    }
+
+    private void applyBudgets(SdkConfig config) {
+        setMessageBudget(config.getMessageMaxBytes(), config.getMessageMaxRows());
+        setCollectionBudget(config.getCollectionMaxBytes(), config.getCollectionMaxRows());
+    }
+
+    public static BatchDbOperation getInstance(Context context) {
+        if (mInstance == null) {
+            synchronized (BatchDbOperation.class) {
+                if (mInstance == null) {
+                    mInstance = new BatchDbOperation(context);
+                }
+            }
+        }
+        return mInstance;
+    }
+
+    /***
+     * insert messages in one transaction
+     *
+     * @param messages the messages
+     * @return number of inserted rows
+     */
+    public synchronized int insertMessages(Collection<MessageRow> messages) {
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        SQLiteDatabase db = getDatabase();
+        if (mInsertMessage == null) {
+            mInsertMessage = db.compileStatement(INSERT_MESSAGE);
+        }
+        int count = 0;
+        long bytes = 0;
+        db.beginTransaction();
+        try {
+            for (MessageRow message : messages) {
+                bindString(mInsertMessage, 1, message.getMessageId());
+                bindString(mInsertMessage, 2, message.getData());
+                mInsertMessage.bindLong(3, message.getType());
+                mInsertMessage.bindLong(4, message.getCreateTime());
+                bindString(mInsertMessage, 5, message.getCreateDate());
+                if (mInsertMessage.executeInsert() != -1) {
+                    count++;
+                    bytes += length(message.getData()) + length(message.getMessageId());
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        enforceAfterInsert(mMessageBudget, count, bytes);
+        return count;
+    }
+
+    /***
+     * insert collected data of one type in one transaction
+     *
+     * @param type the collection type
+     * @param data the collected items
+     * @return number of inserted rows
+     */
+    public synchronized int insertCollectionData(String type, Collection<Pack> data) {
+        if (data.isEmpty()) {
+            return 0;
+        }
+        SQLiteDatabase db = getDatabase();
+        if (mInsertCollection == null) {
+            mInsertCollection = db.compileStatement(INSERT_COLLECTION);
+        }
+        int count = 0;
+        long bytes = 0;
+        db.beginTransaction();
+        try {
+            for (Pack item : data) {
+                String json = item.toJson();
+                mInsertCollection.bindString(1, json);
+                bindString(mInsertCollection, 2, type);
+                if (mInsertCollection.executeInsert() != -1) {
+                    count++;
+                    bytes += json.length();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        enforceAfterInsert(mCollectionBudget, count, bytes);
+        return count;
+    }
+
+    /***
+     * set retention budget of {@link DatabaseHelper#TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF}, replaced
+     * when the budget of {@link SdkConfig} changes
+     *
+     * @param maxBytes size budget of the message ids and data
+     * @param maxRows  row budget
+     */
+    public void setMessageBudget(long maxBytes, int maxRows) {
+        mMessageBudget.set(maxBytes, maxRows);
+    }
+
+    /***
+     * set retention budget of {@link DatabaseHelper#TABLE_COLLECTION}, replaced when the budget of
+     * {@link SdkConfig} changes
+     *
+     * @param maxBytes size budget of the collected json
+     * @param maxRows  row budget
+     */
+    public void setCollectionBudget(long maxBytes, int maxRows) {
+        mCollectionBudget.set(maxBytes, maxRows);
+    }
+
+    /***
+     * evict oldest rows of tables which are over budget
+     *
+     * @return number of evicted rows
+     */
+    public synchronized int enforceBudgets() {
+        return enforce(mMessageBudget) + enforce(mCollectionBudget);
+    }
+
+    /***
+     * eviction counters are kept in memory for diagnostics, they are per process and start from
+     * zero when the process restarts
+     *
+     * @return number of messages evicted to stay in budget since the process started
+     */
+    public long getEvictedMessageCount() {
+        return mMessageBudget.mEvicted.get();
+    }
+
+    /***
+     * @return number of collected items evicted to stay in budget since the process started
+     */
+    public long getEvictedCollectionCount() {
+        return mCollectionBudget.mEvicted.get();
+    }
+
+    /***
+     * add inserted rows to the running totals of a table and evict if they exceed its budget
+     * the table is counted instead when its totals are unknown or due for a recount
+     */
+    private int enforceAfterInsert(Budget budget, int rows, long bytes) {
+        if (budget.mRows < 0 || ++budget.mInsertsSinceCount >= RECOUNT_INTERVAL) {
+            return enforce(budget);
+        }
+        budget.mRows += rows;
+        budget.mBytes += bytes;
+        return evict(budget);
+    }
+
+    /***
+     * count a table and evict its oldest rows if it is over budget
+     */
+    private int enforce(Budget budget) {
+        Cursor cursor = getDatabase().rawQuery("SELECT COUNT(*), IFNULL(SUM(" + budget.mSizeExpression
+                + "), 0) FROM " + budget.mTable, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+            budget.mRows = cursor.getLong(0);
+            budget.mBytes = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+        budget.mInsertsSinceCount = 0;
+        return evict(budget);
+    }
+
+    /***
+     * delete the oldest rows of a table in one statement until the running totals meet both its row
+     * and byte budgets, the totals are reduced by what is deleted
+     */
+    private int evict(Budget budget) {
+        long maxBytes = budget.mMaxBytes;
+        int maxRows = budget.mMaxRows;
+        long rows = budget.mRows;
+        long bytes = budget.mBytes;
+        if (rows <= maxRows && bytes <= maxBytes) {
+            return 0;
+        }
+        SQLiteDatabase db = getDatabase();
+
+        // walk from the oldest row until enough rows are found, every row up to the cutoff is evicted
+        long cutoff = -1;
+        long evictedRows = 0;
+        long evictedBytes = 0;
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_ID + ", " + budget.mSizeExpression + " FROM " + budget.mTable
+                + " ORDER BY " + COLUMN_ID + " ASC", null);
+        try {
+            while ((rows - evictedRows > maxRows || bytes - evictedBytes > maxBytes) && cursor.moveToNext()) {
+                cutoff = cursor.getLong(0);
+                evictedRows++;
+                evictedBytes += cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (cutoff < 0) {
+            budget.mRows = -1;
+            return 0;
+        }
+
+        int evicted = db.delete(budget.mTable, COLUMN_ID + " <= ?", new String[]{String.valueOf(cutoff)});
+        if (rows - evictedRows > maxRows || bytes - evictedBytes > maxBytes) {
+            // the table ran out of rows, the totals held rows deleted elsewhere
+            budget.mRows = -1;
+        } else {
+            budget.mRows = rows - evicted;
+            budget.mBytes = bytes - evictedBytes;
+        }
+        budget.mEvicted.addAndGet(evicted);
+        Logger.debug("Evicted rows over database budget", new LogData(
+                "Table", budget.mTable,
+                "Rows", String.valueOf(evicted),
+                "Row Budget", String.valueOf(maxRows),
+                "Byte Budget", String.valueOf(maxBytes)
+        ));
+        return evicted;
+    }
+
+    /***
+     * visit messages page by page in id order
+     *
+     * @param selection  optional where clause
+     * @param args       arguments of the where clause
+     * @param pageSize   number of rows loaded at a time
+     * @param visitor    called for every row, returning {@code false} stops the iteration
+     */
+    public void forEachMessage(String selection, String[] args, int pageSize, RowVisitor<MessageRow> visitor) {
+        String[] columns = new String[]{COLUMN_ID, COLUMN_GCM_MSG_ID, COLUMN_GCM_MSG_DATA, COLUMN_GCM_MSG_TYPE,
+                COLUMN_GCM_MSG_CREATED_TIME, COLUMN_GCM_MSG_CREATED_DATE};
+        long lastId = -1;
+        while (true) {
+            Cursor cursor = queryPage(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, columns, selection, args, lastId, pageSize);
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    rows++;
+                    lastId = cursor.getLong(0);
+                    MessageRow row = new MessageRow(cursor.getString(1), cursor.getString(2), cursor.getInt(3),
+                            cursor.getLong(4), cursor.getString(5));
+                    row.mId = lastId;
+                    if (!visitor.visit(row)) {
+                        return;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rows < pageSize) {
+                return;
+            }
+        }
+    }
+
+    /***
+     * visit collected data of a type page by page in id order
+     *
+     * @param type     the collection type
+     * @param pageSize number of rows loaded at a time
+     * @param visitor  called with the json of every row, returning {@code false} stops the iteration
+     */
+    public void forEachCollectionData(String type, int pageSize, RowVisitor<String> visitor) {
+        String[] columns = new String[]{COLUMN_ID, COLUMN_COLL_JSON, COLUMN_CREATED_AT};
+        long lastId = -1;
+        while (true) {
+            Cursor cursor = queryPage(TABLE_COLLECTION, columns, COLUMN_COLL_TYPE + " = ?", new String[]{type},
+                    lastId, pageSize);
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    rows++;
+                    lastId = cursor.getLong(0);
+                    if (!visitor.visit(cursor.getString(1))) {
+                        return;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rows < pageSize) {
+                return;
+            }
+        }
+    }
+
+    private Cursor queryPage(String table, String[] columns, String selection, String[] args, long afterId, int pageSize) {
+        String where = COLUMN_ID + " > ?";
+        String[] whereArgs;
+        if (selection == null) {
+            whereArgs = new String[]{String.valueOf(afterId)};
+        } else {
+            where = "(" + selection + ") AND " + where;
+            int argCount = args == null ? 0 : args.length;
+            whereArgs = new String[argCount + 1];
+            if (argCount > 0) {
+                System.arraycopy(args, 0, whereArgs, 0, argCount);
+            }
+            whereArgs[argCount] = String.valueOf(afterId);
+        }
+        return mDbHelper.getReadableDatabase().query(table, columns, where, whereArgs, null, null,
+                COLUMN_ID + " ASC", String.valueOf(pageSize));
+    }
+
+    /***
+     * compiled statements belong to a database connection, release them if the database was reopened
+     */
+    private SQLiteDatabase getDatabase() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if (db != mDb) {
+            mDb = db;
+            closeStatement(mInsertMessage);
+            closeStatement(mInsertCollection);
+            mInsertMessage = null;
+            mInsertCollection = null;
+        }
+        return db;
+    }
+
+    private static void closeStatement(SQLiteStatement statement) {
+        if (statement != null) {
+            statement.close();
+        }
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static class Budget {
+        private final String mTable;
+        private final String mSizeExpression;
+        private final AtomicLong mEvicted = new AtomicLong();
+        private volatile long mMaxBytes = Long.MAX_VALUE;
+        private volatile int mMaxRows = Integer.MAX_VALUE;
+        // running totals, guarded by the lock of BatchDbOperation, -1 until the table is counted
+        private long mRows = -1;
+        private long mBytes;
+        private int mInsertsSinceCount;
+
+        Budget(String table, String sizeExpression) {
+            mTable = table;
+            mSizeExpression = sizeExpression;
+        }
+
+        void set(long maxBytes, int maxRows) {
+            mMaxBytes = maxBytes;
+            mMaxRows = maxRows;
+        }
+    }
+
+    /***
+     * Callback of the paged reads
+     */
+    public interface RowVisitor<T> {
+        /***
+         * @return {@code false} to stop reading
+         */
+        boolean visit(T row);
+    }
+
+    /***
+     * A row of {@link DatabaseHelper#TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF}
+     */
+    public static class MessageRow {
+        private long mId;
+        private final String mMessageId;
+        private final String mData;
+        private final int mType;
+        private final long mCreateTime;
+        private final String mCreateDate;
+
+        public MessageRow(String messageId, String data, int type, long createTime, String createDate) {
+            mMessageId = messageId;
+            mData = data;
+            mType = type;
+            mCreateTime = createTime;
+            mCreateDate = createDate;
+        }
+
+        /***
+         * @return id of the row, {@code 0} for rows not read from database
+         */
+        public long getId() {
+            return mId;
+        }
+
+        public String getMessageId() {
+            return mMessageId;
+        }
+
+        public String getData() {
+            return mData;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public long getCreateTime() {
+            return mCreateTime;
+        }
+
+        public String getCreateDate() {
+            return mCreateDate;
+        }
+    }
+}
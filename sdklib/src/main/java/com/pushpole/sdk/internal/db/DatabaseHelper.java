@@ -1,8 +1,18 @@
 package com.pushpole.sdk.internal.db;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
 
 /**
  * Created on 16-03-29, 3:57 PM.
@@ -15,6 +25,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     static final String TABLE_TASK = "_task_table";
     static final String TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF = "_upstream_n_notif_table";
     static final String TABLE_COLLECTION = "_collection_data";
+    static final String TABLE_OUTBOX = "_upstream_outbox";
 
     // Common column names
     static final String COLUMN_ID = "_id";
@@ -26,8 +37,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     static final String COLUMN_NEXT_TRY_TIME = "next_try_time";
     static final String COLUMN_BACK_OFF_COUNT = "back_off_count";
     static final String COLUMN_TASK_DELAY = "task_delay";
+    static final String COLUMN_TASK_WINDOW = "task_window";
     static final String COLUMN_IS_PERIODIC = "is_periodic";
     static final String COLUMN_TASK_TYPE = "task_type";
+    static final String COLUMN_TASK_DATA = "task_data";
 
     // NOTIF Table - column names
     static final String COLUMN_GCM_MSG_ID = "gcm_msg_id";
@@ -40,9 +53,18 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     static final String COLUMN_COLL_JSON = "col_json";
     static final String COLUMN_COLL_TYPE = "col_type";
 
+    // Outbox Table - column names
+    static final String COLUMN_OUTBOX_MSG_ID = "msg_id";
+    static final String COLUMN_OUTBOX_DATA = "msg_data";
+    static final String COLUMN_OUTBOX_CREATED_TIME = "created_time";
+    static final String COLUMN_OUTBOX_BATCH_ID = "batch_id";
+    static final String COLUMN_OUTBOX_SENT_TIME = "sent_time";
+
 
     // Database Version
-    private static final int DATABASE_VERSION = 8;
+    static final int DATABASE_VERSION = 12;
+    // Oldest version migrated step by step, the schema of older versions is unknown so they are recreated
+    static final int MIN_MIGRATED_VERSION = 8;
 
     // Database Name
     private static final String DATABASE_NAME = "__pushpole_base_lib_db";
@@ -51,15 +73,20 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String CREATE_TABLE_TASK = "CREATE TABLE "
             + TABLE_TASK + "(" +
             COLUMN_ID + " INTEGER PRIMARY KEY," +
-            COLUMN_TAG + " TEXT," +
+            COLUMN_TAG + " TEXT UNIQUE," +
             COLUMN_IS_NETWORK_REQUIRED + " INTEGER," +
             COLUMN_NEXT_TRY_TIME + " INTEGER," +
             COLUMN_BACK_OFF_COUNT + " INTEGER," +
             COLUMN_TASK_DELAY + " INTEGER," +
+            COLUMN_TASK_WINDOW + " INTEGER," +
             COLUMN_IS_PERIODIC + " INTEGER," +
             COLUMN_TASK_TYPE + " INTEGER," +
+            COLUMN_TASK_DATA + " TEXT," +
             COLUMN_CREATED_AT + " DATETIME DEFAULT CURRENT_TIMESTAMP )";
 
+    private static final String CREATE_INDEX_TASK_NEXT_TRY_TIME = "CREATE INDEX IF NOT EXISTS "
+            + TABLE_TASK + "_" + COLUMN_NEXT_TRY_TIME + "_idx ON " + TABLE_TASK + "(" + COLUMN_NEXT_TRY_TIME + ")";
+
     // Table Create Statements
     private static final String CREATE_TABLE_RECEIVED_NOTIF = "CREATE TABLE "
             + TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF + "(" +
@@ -77,10 +104,46 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             COLUMN_COLL_TYPE + " TEXT," +
             COLUMN_CREATED_AT + " DATETIME DEFAULT CURRENT_TIMESTAMP )";
 
+    private static final String CREATE_TABLE_OUTBOX = "CREATE TABLE "
+            + TABLE_OUTBOX + "(" +
+            COLUMN_ID + " INTEGER PRIMARY KEY," +
+            COLUMN_OUTBOX_MSG_ID + " TEXT UNIQUE," +
+            COLUMN_OUTBOX_DATA + " TEXT," +
+            COLUMN_OUTBOX_CREATED_TIME + " INTEGER," +
+            COLUMN_OUTBOX_BATCH_ID + " TEXT," +
+            COLUMN_OUTBOX_SENT_TIME + " INTEGER )";
+
+    // Index Create Statements, message id lookups and age based cleanups use them
+    private static final String CREATE_INDEX_NOTIF_MSG_ID = createIndex(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, COLUMN_GCM_MSG_ID);
+    private static final String CREATE_INDEX_NOTIF_CREATED_TIME = createIndex(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, COLUMN_GCM_MSG_CREATED_TIME);
+    private static final String CREATE_INDEX_COLLECTION_TYPE = createIndex(TABLE_COLLECTION, COLUMN_COLL_TYPE);
+    private static final String CREATE_INDEX_COLLECTION_CREATED_AT = createIndex(TABLE_COLLECTION, COLUMN_CREATED_AT);
+    private static final String CREATE_INDEX_OUTBOX_BATCH_ID = createIndex(TABLE_OUTBOX, COLUMN_OUTBOX_BATCH_ID);
+
     private volatile static DatabaseHelper mInstance;
 
     private DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /***
+     * open a database with another name, used by tests to migrate databases of older versions
+     */
+    @VisibleForTesting
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLogging();
+        }
+    }
+
+    private static String createIndex(String table, String column) {
+        return "CREATE INDEX IF NOT EXISTS " + table + "_" + column + "_idx ON " + table + "(" + column + ")";
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void setWriteAheadLogging() {
+        setWriteAheadLoggingEnabled(true);
     }
 
     public static DatabaseHelper getInstance(Context context) {
@@ -98,27 +161,151 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         // creating required tables
         db.execSQL(CREATE_TABLE_TASK);
+        db.execSQL(CREATE_INDEX_TASK_NEXT_TRY_TIME);
         db.execSQL(CREATE_TABLE_RECEIVED_NOTIF);
         db.execSQL(CREATE_TABLE_COLLECTION);
+        db.execSQL(CREATE_TABLE_OUTBOX);
+        createIndexes(db);
+    }
+
+    private void createIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_INDEX_NOTIF_MSG_ID);
+        db.execSQL(CREATE_INDEX_NOTIF_CREATED_TIME);
+        db.execSQL(CREATE_INDEX_COLLECTION_TYPE);
+        db.execSQL(CREATE_INDEX_COLLECTION_CREATED_AT);
+        db.execSQL(CREATE_INDEX_OUTBOX_BATCH_ID);
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // write-ahead logging is enabled by the constructor on newer versions
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    /***
+     * keep the data written by a newer version if this version can still read it
+     * tables missing a column this version uses are recreated
+     */
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TASK);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COLLECTION);
-        onCreate(db);
+        recreateIfIncompatible(db, TABLE_TASK, CREATE_TABLE_TASK, COLUMN_TAG, COLUMN_NEXT_TRY_TIME,
+                COLUMN_BACK_OFF_COUNT, COLUMN_TASK_DATA, COLUMN_CREATED_AT, COLUMN_IS_NETWORK_REQUIRED,
+                COLUMN_TASK_DELAY, COLUMN_TASK_WINDOW, COLUMN_IS_PERIODIC);
+        recreateIfIncompatible(db, TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, CREATE_TABLE_RECEIVED_NOTIF, COLUMN_GCM_MSG_ID,
+                COLUMN_GCM_MSG_DATA, COLUMN_GCM_MSG_TYPE, COLUMN_GCM_MSG_CREATED_TIME, COLUMN_GCM_MSG_CREATED_DATE);
+        recreateIfIncompatible(db, TABLE_COLLECTION, CREATE_TABLE_COLLECTION, COLUMN_COLL_JSON, COLUMN_COLL_TYPE,
+                COLUMN_CREATED_AT);
+        recreateIfIncompatible(db, TABLE_OUTBOX, CREATE_TABLE_OUTBOX, COLUMN_OUTBOX_MSG_ID, COLUMN_OUTBOX_DATA,
+                COLUMN_OUTBOX_CREATED_TIME, COLUMN_OUTBOX_BATCH_ID, COLUMN_OUTBOX_SENT_TIME);
+        db.execSQL(CREATE_INDEX_TASK_NEXT_TRY_TIME);
+        createIndexes(db);
     }
 
+    /***
+     * migrate the database one version at a time, keeping its data
+     * databases older than {@link #MIN_MIGRATED_VERSION} are dropped and recreated
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // on upgrade drop older tables
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TASK);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COLLECTION);
+        if (oldVersion < MIN_MIGRATED_VERSION) {
+            Logger.warning("Database is too old to migrate, recreating it", new LogData(
+                    "Version", String.valueOf(oldVersion)
+            ));
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_TASK);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_COLLECTION);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_OUTBOX);
+            onCreate(db);
+            return;
+        }
+
+        for (int version = oldVersion; version < newVersion; version++) {
+            migrate(db, version);
+        }
+    }
 
-        // create new tables
-        onCreate(db);
+    /***
+     * migrate the database from {@code fromVersion} to the next version
+     * every step must keep working after later versions change the create statements, so steps
+     * spell out their own SQL
+     */
+    private void migrate(SQLiteDatabase db, int fromVersion) {
+        switch (fromVersion) {
+            case 8:
+                // tag became unique and task_data was added for the task journal
+                db.execSQL("CREATE TABLE " + TABLE_TASK + "_new(" +
+                        COLUMN_ID + " INTEGER PRIMARY KEY," +
+                        COLUMN_TAG + " TEXT UNIQUE," +
+                        COLUMN_IS_NETWORK_REQUIRED + " INTEGER," +
+                        COLUMN_NEXT_TRY_TIME + " INTEGER," +
+                        COLUMN_BACK_OFF_COUNT + " INTEGER," +
+                        COLUMN_TASK_DELAY + " INTEGER," +
+                        COLUMN_IS_PERIODIC + " INTEGER," +
+                        COLUMN_TASK_TYPE + " INTEGER," +
+                        COLUMN_TASK_DATA + " TEXT," +
+                        COLUMN_CREATED_AT + " DATETIME DEFAULT CURRENT_TIMESTAMP )");
+                String columns = COLUMN_ID + "," + COLUMN_TAG + "," + COLUMN_IS_NETWORK_REQUIRED + ","
+                        + COLUMN_NEXT_TRY_TIME + "," + COLUMN_BACK_OFF_COUNT + "," + COLUMN_TASK_DELAY + ","
+                        + COLUMN_IS_PERIODIC + "," + COLUMN_TASK_TYPE + "," + COLUMN_CREATED_AT;
+                // the latest row of a duplicated tag wins
+                db.execSQL("INSERT OR REPLACE INTO " + TABLE_TASK + "_new(" + columns + ") SELECT "
+                        + columns + " FROM " + TABLE_TASK + " ORDER BY " + COLUMN_ID);
+                db.execSQL("DROP TABLE " + TABLE_TASK);
+                db.execSQL("ALTER TABLE " + TABLE_TASK + "_new RENAME TO " + TABLE_TASK);
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_TASK + "_" + COLUMN_NEXT_TRY_TIME + "_idx ON "
+                        + TABLE_TASK + "(" + COLUMN_NEXT_TRY_TIME + ")");
+                break;
+            case 9:
+                db.execSQL(createIndex(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, COLUMN_GCM_MSG_ID));
+                db.execSQL(createIndex(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, COLUMN_GCM_MSG_CREATED_TIME));
+                db.execSQL(createIndex(TABLE_COLLECTION, COLUMN_COLL_TYPE));
+                db.execSQL(createIndex(TABLE_COLLECTION, COLUMN_CREATED_AT));
+                break;
+            case 10:
+                // outbox of upstream messages waiting to be sent in a batch
+                db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_OUTBOX + "(" +
+                        COLUMN_ID + " INTEGER PRIMARY KEY," +
+                        COLUMN_OUTBOX_MSG_ID + " TEXT UNIQUE," +
+                        COLUMN_OUTBOX_DATA + " TEXT," +
+                        COLUMN_OUTBOX_CREATED_TIME + " INTEGER," +
+                        COLUMN_OUTBOX_BATCH_ID + " TEXT," +
+                        COLUMN_OUTBOX_SENT_TIME + " INTEGER )");
+                db.execSQL(createIndex(TABLE_OUTBOX, COLUMN_OUTBOX_BATCH_ID));
+                break;
+            case 11:
+                // options of journaled tasks are kept to re-schedule them as they were scheduled
+                db.execSQL("ALTER TABLE " + TABLE_TASK + " ADD COLUMN " + COLUMN_TASK_WINDOW + " INTEGER");
+                break;
+            default:
+                throw new IllegalStateException("No database migration from version " + fromVersion);
+        }
+    }
+
+    private void recreateIfIncompatible(SQLiteDatabase db, String table, String createStatement, String... columns) {
+        Set<String> existing = new HashSet<>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                existing.add(cursor.getString(nameIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String column : columns) {
+            if (!existing.contains(column)) {
+                Logger.warning("Database table is not compatible, recreating it", new LogData(
+                        "Table", table,
+                        "Missing Column", column
+                ));
+                db.execSQL("DROP TABLE IF EXISTS " + table);
+                db.execSQL(createStatement);
+                return;
+            }
+        }
     }
 
     public static enum DBTaskType {
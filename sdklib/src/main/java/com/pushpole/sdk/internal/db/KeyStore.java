@@ -2,24 +2,302 @@ package com.pushpole.sdk.internal.db;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+import com.pushpole.sdk.task.PushPoleAsyncTask;
+import com.pushpole.sdk.task.TaskHandle;
+import com.pushpole.sdk.task.TaskManager;
+import com.pushpole.sdk.task.executor.Lane;
+import com.pushpole.sdk.task.executor.LaneExecutor;
 import com.pushpole.sdk.util.InvalidJsonException;
 import com.pushpole.sdk.util.ListPack;
 import com.pushpole.sdk.util.Pack;
 
 public class KeyStore {
     private final static String SHARED_PREF_NAME = "com.pushpole.sdk.keystore";
+    private final static String LOG_STORE_NAME = "com.pushpole.sdk.keystore.log";
+    /*** manifest meta-data of the application enabling the log store */
+    public final static String META_DATA_LOG_STORE = "com.pushpole.sdk.keystore_log";
+    /*** manifest meta-data of the application enabling the multi-process mode */
+    public final static String META_DATA_MULTI_PROCESS = "com.pushpole.sdk.keystore_multi_process";
     //private final static String ACTIVE_PACKS_KEY = "pack___tags"; //unused field
     //private final static String DUMMY_KEY = "DUM#MY"; //unused field
 
+    private final static Object REMOVED = KeyValueBackend.REMOVED;
+    private final static int PACK_CACHE_SIZE = 32;
+    private final static String EXPIRY_PREFIX = "__expires_at#";
+
     private volatile static KeyStore mInstance;
+    private volatile static Boolean mUseLogStore = null;
+    private volatile static Boolean mMultiProcess = null;
 
     private SharedPreferences mSharedPrefs;
+    private volatile KeyValueBackend mBackend;
+    private final KeyStoreSync mSync;
+    private volatile long mSeenVersion;
+    private final AtomicLong mWriteCount = new AtomicLong();
+    private final PackCache mPackCache = new PackCache(PACK_CACHE_SIZE);
+    private final Map<String, Long> mExpiries = new ConcurrentHashMap<>();
+    private final List<OnChangeListener> mListeners = new CopyOnWriteArrayList<>();
 
     private KeyStore(Context context) {//TODO: check context to be not null
         mSharedPrefs = context.getSharedPreferences(SHARED_PREF_NAME, Context.MODE_PRIVATE);
+        boolean multiProcess = mMultiProcess != null ? mMultiProcess
+                : getManifestFlag(context, META_DATA_MULTI_PROCESS);
+        mSync = multiProcess ? openSync(context) : null;
+        boolean useLogStore = mSync == null && (mUseLogStore != null ? mUseLogStore
+                : getManifestFlag(context, META_DATA_LOG_STORE));
+        if (!useLogStore && (mSync == null || mSync.isOwner())) {
+            moveLogStoreToPrefs(context);
+        }
+        if (mSync == null) {
+            mBackend = useLogStore ? openLogStore(context) : new PrefsBackend(mSharedPrefs);
+        } else if (mSync.isOwner()) {
+            mBackend = new PrefsBackend(mSharedPrefs);
+        } else {
+            mBackend = new RemoteBackend(context, SHARED_PREF_NAME, mSync);
+        }
+        mSeenVersion = mSync == null ? 0 : mSync.getVersion();
+        loadExpiries();
+    }
+
+    /***
+     * create a store on the given backend instead of the one chosen from the manifest, for tests
+     */
+    KeyStore(SharedPreferences sharedPrefs, KeyValueBackend backend, KeyStoreSync sync) {
+        mSharedPrefs = sharedPrefs;
+        mBackend = backend;
+        mSync = sync;
+        mSeenVersion = mSync == null ? 0 : mSync.getVersion();
+        loadExpiries();
+    }
+
+    /***
+     * keep the store consistent between the processes of the app
+     * writes of all processes are applied by the process hosting {@code PushPoleProvider}, other
+     * processes reload values only when the owner has changed them.
+     * {@code PushPoleProvider} creates the store before Application.onCreate, so the mode is
+     * normally enabled with the {@link #META_DATA_MULTI_PROCESS} meta-data of the application,
+     * which every process reads. This method overrides the meta-data and only has an effect
+     * before the first {@link #getInstance(Context)}. The log store is not used in this mode.
+     *
+     * @param multiProcess true to enable
+     */
+    public static void setMultiProcess(boolean multiProcess) {
+        if (mInstance != null) {
+            Logger.warning("KeyStore is already created, multi-process change ignored");
+            return;
+        }
+        mMultiProcess = multiProcess;
+    }
+
+    private static KeyStoreSync openSync(Context context) {
+        try {
+            return new KeyStoreSync(context);
+        } catch (IOException e) {
+            Logger.error("Opening KeyStore version file failed, multi-process mode disabled", e);
+            return null;
+        }
+    }
+
+    /***
+     * reload the store if the owner process changed it since it was last loaded
+     * every read does this, holders of values derived from the store call it before using them
+     * so that listeners hear about changes of other processes. Costs a single memory read when
+     * nothing has changed.
+     */
+    public void refreshIfChanged() {
+        if (mSync == null || mSync.isOwner() || mSync.getVersion() == mSeenVersion) {
+            return;
+        }
+        Set<String> keys;
+        synchronized (this) {
+            long version = mSync.getVersion();
+            if (version == mSeenVersion) {
+                return;
+            }
+            mSeenVersion = version;
+            ((RemoteBackend) mBackend).reload();
+            mPackCache.invalidateAll();
+            mExpiries.clear();
+            loadExpiries();
+            keys = mListeners.isEmpty() ? null : Collections.unmodifiableSet(new HashSet<>(mBackend.getAll().keySet()));
+        }
+        if (keys != null) {
+            // the changed keys are unknown, report every key
+            for (OnChangeListener listener : mListeners) {
+                listener.onKeyStoreChanged(this, keys);
+            }
+        }
+    }
+
+    /***
+     * store values in an append-only log file instead of {@link SharedPreferences}
+     * {@code PushPoleProvider} creates the store before Application.onCreate, so the log store is
+     * normally enabled with the {@link #META_DATA_LOG_STORE} meta-data of the application. This
+     * method overrides the meta-data and only has an effect before the first
+     * {@link #getInstance(Context)}, e.g. in tests.
+     * Values in the preferences file are moved to the log when it is enabled and moved back when
+     * it is disabled again.
+     *
+     * @param useLogStore true to use the log
+     */
+    public static void setUseLogStore(boolean useLogStore) {
+        if (mInstance != null) {
+            Logger.warning("KeyStore is already created, storage change ignored");
+            return;
+        }
+        mUseLogStore = useLogStore;
+    }
+
+    private static boolean getManifestFlag(Context context, String name) {
+        try {
+            ApplicationInfo info = context.getPackageManager().getApplicationInfo(
+                    context.getPackageName(), PackageManager.GET_META_DATA);
+            return info.metaData != null && info.metaData.getBoolean(name, false);
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    private KeyValueBackend openLogStore(Context context) {
+        File file = new File(context.getFilesDir(), LOG_STORE_NAME);
+        final Context appContext = context.getApplicationContext();
+        try {
+            // compactions run on the bulk lane, a full lane rejects them until a later write
+            LogStore logStore = new LogStore(file, new Executor() {
+                @Override
+                public void execute(final Runnable command) {
+                    TaskHandle handle = TaskManager.getInstance(appContext).asyncTask(Lane.BULK,
+                            LaneExecutor.PRIORITY_LOW, new PushPoleAsyncTask() {
+                                @Override
+                                public void run(Context context) {
+                                    command.run();
+                                }
+                            }, null, 0);
+                    if (handle.isCancelled()) {
+                        throw new RejectedExecutionException("KeyStore log compaction dropped");
+                    }
+                }
+            });
+            Map<String, ?> prefValues = mSharedPrefs.getAll();
+            if (!prefValues.isEmpty()) {
+                // a log with values has them all, left over preferences are from an interrupted move
+                if (logStore.size() == 0) {
+                    Map<String, Object> values = new HashMap<>();
+                    for (Map.Entry<String, ?> entry : prefValues.entrySet()) {
+                        Object value = entry.getValue();
+                        if (value instanceof String || value instanceof Integer || value instanceof Long
+                                || value instanceof Boolean) {
+                            values.put(entry.getKey(), value);
+                        } else {
+                            Logger.warning("Dropping KeyStore value of unsupported type", new LogData(
+                                    "Key", entry.getKey()
+                            ));
+                        }
+                    }
+                    logStore.apply(values);
+                    logStore.sync();
+                    Logger.debug("Moved KeyStore values to log", new LogData(
+                            "Count", String.valueOf(values.size())
+                    ));
+                }
+                // the preferences stay the source of truth until the log is on disk
+                mSharedPrefs.edit().clear().commit();
+            }
+            return logStore;
+        } catch (IOException e) {
+            Logger.error("Opening KeyStore log failed, using preferences", e);
+            return new PrefsBackend(mSharedPrefs);
+        }
+    }
+
+    /***
+     * move values of a log store which is no longer enabled back to the preferences file
+     * the log is deleted once the preferences are written to disk
+     */
+    private void moveLogStoreToPrefs(Context context) {
+        File file = new File(context.getFilesDir(), LOG_STORE_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        Map<String, ?> values;
+        try {
+            LogStore logStore = new LogStore(file);
+            try {
+                values = logStore.getAll();
+            } finally {
+                logStore.close();
+            }
+        } catch (IOException e) {
+            Logger.error("Reading KeyStore log failed, keeping it", e);
+            return;
+        }
+
+        if (writeToPrefs(values) && file.delete()) {
+            Logger.debug("Moved KeyStore values from log to preferences", new LogData(
+                    "Count", String.valueOf(values.size())
+            ));
+        }
+    }
+
+    /***
+     * switch to the preferences file once the log store is broken
+     * the values are read from the last mapping of the log, the log is deleted once they are on
+     * disk so that the next start does not take the preferences for left overs of a move
+     */
+    private KeyValueBackend fallBackToPrefs(LogStore logStore) {
+        Map<String, ?> values = logStore.getAll();
+        PrefsBackend prefsBackend = new PrefsBackend(mSharedPrefs);
+        if (writeToPrefs(values)) {
+            logStore.getFile().delete();
+        }
+        mBackend = prefsBackend;
+        Logger.warning("KeyStore log is broken, using preferences", new LogData(
+                "Count", String.valueOf(values.size())
+        ));
+        return prefsBackend;
+    }
+
+    /***
+     * replace the content of the preferences file with values of a log store
+     *
+     * @return true if the values were written to disk
+     */
+    private boolean writeToPrefs(Map<String, ?> values) {
+        SharedPreferences.Editor editor = mSharedPrefs.edit().clear();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else {
+                editor.putString(key, (String) value);
+            }
+        }
+        return editor.commit();
     }
 
     public static KeyStore getInstance(Context context) {
@@ -33,6 +311,9 @@ public class KeyStore {
         return mInstance;
     }
 
+    /***
+     * @return the preferences file of the store, it is empty when the log store is used
+     */
     public SharedPreferences getSharedPreferences() {
         return mSharedPrefs;
     }
@@ -48,53 +329,147 @@ public class KeyStore {
             return mSharedPrefs.getStringSet(key, defVal);
     }*/
     public String getString(String key, String defVal) {
-        return mSharedPrefs.getString(key, defVal);
+        if (isExpired(key)) {
+            return defVal;
+        }
+        return mBackend.getString(key, defVal);
     }
 
     public int getInt(String key, int defVal) {
-        return mSharedPrefs.getInt(key, defVal);
+        if (isExpired(key)) {
+            return defVal;
+        }
+        return mBackend.getInt(key, defVal);
     }
 
-    public synchronized long getLong(String key, long defVal) {
-        return mSharedPrefs.getLong(key, defVal);
+    public long getLong(String key, long defVal) {
+        if (isExpired(key)) {
+            return defVal;
+        }
+        return mBackend.getLong(key, defVal);
     }
 
     public Map<String, ?> getAll() {
-        return mSharedPrefs.getAll();
+        refreshIfChanged();
+        Map<String, ?> all = mBackend.getAll();
+        if (mExpiries.isEmpty()) {
+            return all;
+        }
+        Map<String, Object> live = new HashMap<>(all);
+        Map<String, Object> expired = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> expiry : mExpiries.entrySet()) {
+            live.remove(EXPIRY_PREFIX + expiry.getKey());
+            if (expiry.getValue() <= now) {
+                live.remove(expiry.getKey());
+                expired.put(expiry.getKey(), REMOVED);
+            }
+        }
+        // expired values are deleted when they are read, there is no periodic sweep
+        applyChanges(expired);
+        return live;
     }
 
     public boolean getBoolean(String key, boolean defVal) {
-        return mSharedPrefs.getBoolean(key, defVal);
+        if (isExpired(key)) {
+            return defVal;
+        }
+        return mBackend.getBoolean(key, defVal);
     }
 
     public Pack getPack(String key, Pack defValue) {
+        if (isExpired(key)) {
+            return defValue;
+        }
+        Pack cached = mPackCache.getPack(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        long cacheVersion = mPackCache.getVersion();
         String pVal = getString(key, null);
         if (pVal == null) {
             return defValue;
         }
 
-        try {
-            return Pack.fromJson(pVal);
-        } catch (InvalidJsonException e) {
-            return null;
+        Pack pack;
+        if (PackCodec.isEncoded(pVal)) {
+            pack = PackCodec.decodePack(pVal);
+        } else {
+            try {
+                pack = Pack.fromJson(pVal);
+            } catch (InvalidJsonException e) {
+                return null;
+            }
+            migrate(key, pVal, PackCodec.encode(pack));
         }
+        mPackCache.put(key, pack, cacheVersion);
+        return pack;
     }
 
     public Pack getPack(String key) {
         return getPack(key, null);
     }
 
+    /***
+     * read a single top level field of a stored pack
+     * only the requested field is decoded, use this instead of {@link #getPack(String)} when a
+     * large pack is stored but one value of it is needed
+     *
+     * @return the field value or {@code null} if there is no such pack or field
+     */
+    public Object getPackField(String key, String field) {
+        if (isExpired(key)) {
+            return null;
+        }
+        Pack cached = mPackCache.getPack(key);
+        if (cached != null) {
+            return cached.get(field);
+        }
+
+        String pVal = getString(key, null);
+        if (pVal == null) {
+            return null;
+        }
+        if (PackCodec.isEncoded(pVal)) {
+            return PackCodec.readField(pVal, field);
+        }
+        Object value = PackCodec.readJsonField(pVal, field);
+        if (value != PackCodec.NOT_READ) {
+            return value;
+        }
+        Pack pack = getPack(key, null);
+        return pack == null ? null : pack.get(field);
+    }
+
     public ListPack getListPack(String key, ListPack defValue) {
+        if (isExpired(key)) {
+            return defValue;
+        }
+        ListPack cached = mPackCache.getListPack(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        long cacheVersion = mPackCache.getVersion();
         String pVal = getString(key, null);
         if (pVal == null) {
             return defValue;
         }
 
-        try {
-            return ListPack.fromJson(pVal);
-        } catch (InvalidJsonException e) {
-            return null;
+        ListPack listPack;
+        if (PackCodec.isEncoded(pVal)) {
+            listPack = PackCodec.decodeListPack(pVal);
+        } else {
+            try {
+                listPack = ListPack.fromJson(pVal);
+            } catch (InvalidJsonException e) {
+                return null;
+            }
+            migrate(key, pVal, PackCodec.encode(listPack));
         }
+        mPackCache.put(key, listPack, cacheVersion);
+        return listPack;
     }
 
     public ListPack getListPack(String key) {
@@ -102,19 +477,19 @@ public class KeyStore {
     }
 
     public void putString(String key, String value) {
-        mSharedPrefs.edit().putString(key, value).apply();
+        applyChanges(Collections.<String, Object>singletonMap(key, value));
     }
 
     public void putInt(String key, int value) {
-        mSharedPrefs.edit().putInt(key, value).apply();
+        applyChanges(Collections.<String, Object>singletonMap(key, value));
     }
 
-    public synchronized void putLong(String key, long value) {
-        mSharedPrefs.edit().putLong(key, value).apply();
+    public void putLong(String key, long value) {
+        applyChanges(Collections.<String, Object>singletonMap(key, value));
     }
 
     public void putBoolean(String key, boolean value) {
-        mSharedPrefs.edit().putBoolean(key, value).apply();
+        applyChanges(Collections.<String, Object>singletonMap(key, value));
     }
 
     /**
@@ -126,11 +501,35 @@ public class KeyStore {
         mSharedPrefs.edit().putStringSet(key, value).apply();
     }*/
     public void putPack(String key, Pack pack) {
-        mSharedPrefs.edit().putString(key, pack.toJson()).apply();
+        applyChanges(Collections.<String, Object>singletonMap(key, PackCodec.encode(pack)));
     }
 
     public void putListPack(String key, ListPack listPack) {
-        mSharedPrefs.edit().putString(key, listPack.toJson()).apply();
+        applyChanges(Collections.<String, Object>singletonMap(key, PackCodec.encode(listPack)));
+    }
+
+    /***
+     * store a value which is deleted once {@code ttl} milliseconds have passed
+     * a later put of the key without a ttl keeps the value forever
+     */
+    public void putString(String key, String value, long ttl) {
+        batch().putString(key, value, ttl).commit();
+    }
+
+    /***
+     * store a pack which is deleted once {@code ttl} milliseconds have passed
+     * a later put of the key without a ttl keeps the pack forever
+     */
+    public void putPack(String key, Pack pack, long ttl) {
+        batch().putPack(key, pack, ttl).commit();
+    }
+
+    /***
+     * @return time the value of the key expires at, or {@code 0} if it never expires
+     */
+    public long getExpiryTime(String key) {
+        Long expiresAt = mExpiries.get(key);
+        return expiresAt == null ? 0 : expiresAt;
     }
 
     /**
@@ -147,15 +546,284 @@ public class KeyStore {
                 .putStringSet(key, value).apply();
     }*/
     public boolean contains(String key) {
-        return mSharedPrefs.contains(key);
+        return !isExpired(key) && mBackend.contains(key);
     }
 
     public void delete(String key) {
-        mSharedPrefs.edit().remove(key).apply();
+        applyChanges(Collections.singletonMap(key, REMOVED));
+    }
+
+    /***
+     * start a batch of changes, the changes are written with a single backend write on
+     * {@link Batch#commit()}
+     *
+     * @return the batch
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /***
+     * register a listener notified after every write
+     *
+     * @param listener the listener
+     */
+    public void registerOnChangeListener(OnChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void unregisterOnChangeListener(OnChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /***
+     * delete all expired values with a single backend write
+     * called once per initialization, values expiring later are deleted by the read finding them
+     *
+     * @return number of deleted values
+     */
+    public int sweepExpired() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> changes = new HashMap<>();
+        for (Map.Entry<String, Long> expiry : mExpiries.entrySet()) {
+            if (expiry.getValue() <= now) {
+                changes.put(expiry.getKey(), REMOVED);
+            }
+        }
+        applyChanges(changes);
+        return changes.size();
+    }
+
+    /***
+     * check the expiry time of a key and delete its value if it has expired
+     * called before every read
+     */
+    private boolean isExpired(String key) {
+        // every read passes here, pick up changes of other processes first
+        refreshIfChanged();
+        if (mExpiries.isEmpty()) {
+            return false;
+        }
+        Long expiresAt = mExpiries.get(key);
+        if (expiresAt == null || expiresAt > System.currentTimeMillis()) {
+            return false;
+        }
+        applyChanges(Collections.singletonMap(key, REMOVED));
+        return true;
+    }
+
+    /***
+     * read the expiry times, they are stored next to their values under {@link #EXPIRY_PREFIX}
+     */
+    private void loadExpiries() {
+        for (Map.Entry<String, ?> entry : mBackend.getAll().entrySet()) {
+            if (entry.getKey().startsWith(EXPIRY_PREFIX) && entry.getValue() instanceof Long) {
+                mExpiries.put(entry.getKey().substring(EXPIRY_PREFIX.length()), (Long) entry.getValue());
+            }
+        }
+    }
+
+    /***
+     * write changes to the backend, a {@code REMOVED} value deletes the key
+     * changing a key without changing its expiry time clears the expiry time
+     *
+     * @param changes the changes
+     */
+    void applyChanges(Map<String, Object> changes) {
+        if (writeChanges(changes)) {
+            onChangesWritten(changes);
+        }
+    }
+
+    /***
+     * @return true if there were changes to write
+     */
+    private synchronized boolean writeChanges(Map<String, Object> changes) {
+        if (changes.isEmpty()) {
+            return false;
+        }
+        Map<String, Object> effective = changes;
+        for (String key : changes.keySet()) {
+            mPackCache.invalidate(key);
+            if (mExpiries.containsKey(key) && !changes.containsKey(EXPIRY_PREFIX + key)) {
+                if (effective == changes) {
+                    effective = new LinkedHashMap<>(changes);
+                }
+                effective.put(EXPIRY_PREFIX + key, REMOVED);
+            }
+        }
+        KeyValueBackend backend = mBackend;
+        if (backend instanceof LogStore && ((LogStore) backend).isBroken()) {
+            backend = fallBackToPrefs((LogStore) backend);
+        }
+        backend.apply(effective);
+        if (mSync != null && mSync.isOwner()) {
+            mSync.publishWhenWritten(mSharedPrefs);
+        }
+        for (Map.Entry<String, Object> change : effective.entrySet()) {
+            if (change.getKey().startsWith(EXPIRY_PREFIX)) {
+                String key = change.getKey().substring(EXPIRY_PREFIX.length());
+                if (change.getValue() instanceof Long) {
+                    mExpiries.put(key, (Long) change.getValue());
+                } else {
+                    mExpiries.remove(key);
+                }
+            }
+        }
+        mWriteCount.incrementAndGet();
+        return true;
+    }
+
+    /***
+     * send the changes of a process which does not own the store to the owner and tell listeners
+     * called without holding the lock of the store, so neither the call to the owner nor the
+     * listeners block other threads reading or writing the store
+     */
+    private void onChangesWritten(Map<String, Object> changes) {
+        KeyValueBackend backend = mBackend;
+        if (backend instanceof RemoteBackend) {
+            ((RemoteBackend) backend).sendPending();
+        }
+        if (!mListeners.isEmpty()) {
+            Set<String> changedKeys = Collections.unmodifiableSet(new HashSet<>(changes.keySet()));
+            for (OnChangeListener listener : mListeners) {
+                listener.onKeyStoreChanged(this, changedKeys);
+            }
+        }
+    }
+
+    /***
+     * apply changes sent by another process and publish them before returning, so the sender
+     * reads its own writes once the call returns
+     */
+    void applyRemoteChanges(Map<String, Object> changes) {
+        applyChanges(changes);
+        if (mSync != null && mSync.isOwner()) {
+            mSync.publishNow(mSharedPrefs);
+        }
+    }
+
+    /***
+     * rewrite a value stored in the old JSON format with {@link PackCodec}, unless it was changed
+     * since it was read or JSON is still the smaller form
+     */
+    private void migrate(String key, String json, String encoded) {
+        Map<String, Object> changes = Collections.<String, Object>singletonMap(key, encoded);
+        synchronized (this) {
+            if (encoded.equals(json) || !json.equals(mBackend.getString(key, null))
+                    || !writeChanges(changes)) {
+                return;
+            }
+        }
+        onChangesWritten(changes);
+    }
+
+    /***
+     * @return number of writes queued to the backend since the process started
+     */
+    public long getWriteCount() {
+        return mWriteCount.get();
     }
 
     public int size() {
-        return mSharedPrefs.getAll().size();
+        refreshIfChanged();
+        return mBackend.size() - mExpiries.size();
+    }
+
+    /***
+     * @return cache of decoded packs, to read its hit and miss counts
+     */
+    public PackCache getPackCache() {
+        return mPackCache;
+    }
+
+    /***
+     * Listener of {@link KeyStore} writes
+     * it is called on the writing thread right after the write, so it should return quickly
+     */
+    public interface OnChangeListener {
+        /***
+         * @param keyStore    the store
+         * @param changedKeys keys written or deleted
+         */
+        void onKeyStoreChanged(KeyStore keyStore, Set<String> changedKeys);
+    }
+
+    /***
+     * A group of changes written to {@link KeyStore} at once
+     * changes are not visible to reads until the batch is committed, a later change of a key
+     * overrides earlier changes of the same key in the batch
+     */
+    public class Batch {
+        private final Map<String, Object> mChanges = new LinkedHashMap<>();
+
+        private Batch() {
+        }
+
+        public Batch putString(String key, String value) {
+            set(key, value);
+            return this;
+        }
+
+        public Batch putInt(String key, int value) {
+            set(key, value);
+            return this;
+        }
+
+        public Batch putLong(String key, long value) {
+            set(key, value);
+            return this;
+        }
+
+        public Batch putBoolean(String key, boolean value) {
+            set(key, value);
+            return this;
+        }
+
+        public Batch putPack(String key, Pack pack) {
+            set(key, PackCodec.encode(pack));
+            return this;
+        }
+
+        public Batch putListPack(String key, ListPack listPack) {
+            set(key, PackCodec.encode(listPack));
+            return this;
+        }
+
+        public Batch putString(String key, String value, long ttl) {
+            set(key, value);
+            mChanges.put(EXPIRY_PREFIX + key, System.currentTimeMillis() + ttl);
+            return this;
+        }
+
+        public Batch putPack(String key, Pack pack, long ttl) {
+            set(key, PackCodec.encode(pack));
+            mChanges.put(EXPIRY_PREFIX + key, System.currentTimeMillis() + ttl);
+            return this;
+        }
+
+        public Batch delete(String key) {
+            set(key, REMOVED);
+            return this;
+        }
+
+        public int size() {
+            return mChanges.size();
+        }
+
+        private void set(String key, Object value) {
+            // a change without ttl drops a ttl set earlier in the batch
+            mChanges.remove(EXPIRY_PREFIX + key);
+            mChanges.put(key, value);
+        }
+
+        /***
+         * write all changes of the batch with a single backend write
+         */
+        public void commit() {
+            applyChanges(mChanges);
+            mChanges.clear();
+        }
     }
 
 }
@@ -0,0 +1,220 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+import com.pushpole.sdk.provider.PushPoleProvider;
+
+/***
+ * Keeps {@link KeyStore} consistent when the SDK runs in more than one process
+ *
+ * The process hosting {@link PushPoleProvider} owns the store and is its only writer, other
+ * processes send their changes to it through {@link android.content.ContentProvider#call}. Once
+ * written to disk the owner increments a version number kept in a small memory-mapped file, readers
+ * compare it with the version they last loaded and reload the store only when it has changed.
+ * The owner writes with {@link SharedPreferences.Editor#apply()} and publishes the version from a
+ * background thread, changes sent by other processes are published before the call returns so
+ * the sender reads its own writes.
+ */
+public class KeyStoreSync {
+    public final static String METHOD_APPLY = "pushpole_keystore_apply";
+
+    private final static String VERSION_FILE_NAME = "com.pushpole.sdk.keystore.version";
+    private final static String EXTRA_VALUES = "values";
+    private final static String EXTRA_REMOVED = "removed";
+    private final static String EXTRA_APPLIED = "applied";
+
+    private final Context mContext;
+    private final boolean mOwner;
+    private final Uri mProviderUri;
+    private final MappedByteBuffer mVersion;
+    private final AtomicBoolean mPublishPending = new AtomicBoolean(false);
+    private final ThreadPoolExecutor mPublisher;
+
+    KeyStoreSync(Context context) throws IOException {
+        mContext = context.getApplicationContext() == null ? context : context.getApplicationContext();
+        ProviderInfo providerInfo;
+        try {
+            providerInfo = context.getPackageManager().getProviderInfo(
+                    new ComponentName(context, PushPoleProvider.class), 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new IOException("PushPoleProvider is not declared in manifest");
+        }
+        String authority = providerInfo.authority.split(";")[0];
+        mProviderUri = Uri.parse("content://" + authority);
+        mOwner = providerInfo.processName == null || providerInfo.processName.equals(getProcessName());
+
+        RandomAccessFile file = new RandomAccessFile(new File(context.getFilesDir(), VERSION_FILE_NAME), "rw");
+        try {
+            mVersion = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        } finally {
+            // the mapping stays valid after the file is closed
+            file.close();
+        }
+        mPublisher = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mPublisher.allowCoreThreadTimeOut(true);
+    }
+
+    /***
+     * @return true if this process owns the store
+     */
+    boolean isOwner() {
+        return mOwner;
+    }
+
+    long getVersion() {
+        return mVersion.getLong(0);
+    }
+
+    /***
+     * tell other processes the stored values have changed once the pending writes of
+     * {@code sharedPrefs} are on disk, called by the owner after every write
+     * writes made while a publish is pending are covered by it
+     */
+    void publishWhenWritten(final SharedPreferences sharedPrefs) {
+        if (!mPublishPending.compareAndSet(false, true)) {
+            return;
+        }
+        mPublisher.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPublishPending.set(false);
+                publishNow(sharedPrefs);
+            }
+        });
+    }
+
+    /***
+     * wait for the pending writes of {@code sharedPrefs} to reach the disk and tell other processes
+     */
+    void publishNow(SharedPreferences sharedPrefs) {
+        // a commit is queued behind earlier apply() writes and returns once they are done
+        sharedPrefs.edit().commit();
+        incrementVersion();
+    }
+
+    /***
+     * only the owner increments the version, so the read and the write need no lock between
+     * processes
+     */
+    private synchronized void incrementVersion() {
+        mVersion.putLong(0, mVersion.getLong(0) + 1);
+    }
+
+    /***
+     * send changes to the owner process
+     *
+     * @return true if the owner applied the changes
+     */
+    boolean sendToOwner(Map<String, Object> changes) {
+        try {
+            Bundle result = mContext.getContentResolver().call(mProviderUri, METHOD_APPLY, null, toBundle(changes));
+            return result != null && result.getBoolean(EXTRA_APPLIED, false);
+        } catch (RuntimeException e) {
+            Logger.error("Sending KeyStore changes to owner process failed", new LogData(
+                    "Error", e.getMessage()
+            ));
+            return false;
+        }
+    }
+
+    /***
+     * handle a {@link android.content.ContentProvider#call} of {@link PushPoleProvider}
+     *
+     * @return the result or {@code null} if the method is not a KeyStore method
+     */
+    public static Bundle handleCall(Context context, String method, Bundle extras) {
+        if (!METHOD_APPLY.equals(method) || extras == null) {
+            return null;
+        }
+        KeyStore.getInstance(context).applyRemoteChanges(fromBundle(extras));
+        Bundle result = new Bundle();
+        result.putBoolean(EXTRA_APPLIED, true);
+        return result;
+    }
+
+    private static Bundle toBundle(Map<String, Object> changes) {
+        Bundle values = new Bundle();
+        ArrayList<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            String key = change.getKey();
+            Object value = change.getValue();
+            if (value == KeyValueBackend.REMOVED) {
+                removed.add(key);
+            } else if (value instanceof Integer) {
+                values.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                values.putLong(key, (Long) value);
+            } else if (value instanceof Boolean) {
+                values.putBoolean(key, (Boolean) value);
+            } else {
+                values.putString(key, (String) value);
+            }
+        }
+        Bundle bundle = new Bundle();
+        bundle.putBundle(EXTRA_VALUES, values);
+        bundle.putStringArrayList(EXTRA_REMOVED, removed);
+        return bundle;
+    }
+
+    private static Map<String, Object> fromBundle(Bundle bundle) {
+        Map<String, Object> changes = new LinkedHashMap<>();
+        Bundle values = bundle.getBundle(EXTRA_VALUES);
+        if (values != null) {
+            for (String key : values.keySet()) {
+                changes.put(key, values.get(key));
+            }
+        }
+        ArrayList<String> removed = bundle.getStringArrayList(EXTRA_REMOVED);
+        if (removed != null) {
+            for (String key : removed) {
+                changes.put(key, KeyValueBackend.REMOVED);
+            }
+        }
+        return changes;
+    }
+
+    static String getProcessName() {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream("/proc/self/cmdline");
+            byte[] buffer = new byte[256];
+            int length = in.read(buffer);
+            int end = 0;
+            while (end < length && buffer[end] != 0) {
+                end++;
+            }
+            return new String(buffer, 0, end, "UTF-8");
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
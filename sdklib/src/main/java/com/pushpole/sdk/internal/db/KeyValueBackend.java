@@ -0,0 +1,33 @@
+package com.pushpole.sdk.internal.db;
+
+import java.util.Map;
+
+/***
+ * Storage used by {@link KeyStore}
+ * getters behave like {@link android.content.SharedPreferences}, a value of another type than
+ * requested throws {@link ClassCastException}
+ */
+interface KeyValueBackend {
+    /*** value of a change which deletes the key */
+    Object REMOVED = new Object();
+
+    String getString(String key, String defVal);
+
+    int getInt(String key, int defVal);
+
+    long getLong(String key, long defVal);
+
+    boolean getBoolean(String key, boolean defVal);
+
+    boolean contains(String key);
+
+    Map<String, ?> getAll();
+
+    int size();
+
+    /***
+     * write a group of changes at once, values are {@link String}, {@link Integer}, {@link Long},
+     * {@link Boolean} or {@link #REMOVED}
+     */
+    void apply(Map<String, Object> changes);
+}
@@ -0,0 +1,497 @@
+package com.pushpole.sdk.internal.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+
+/***
+ * Append-only, memory-mapped {@link KeyValueBackend}
+ *
+ * The file starts with a magic number and a format version followed by frames. A frame holds the
+ * changes of one {@link #apply(Map)}, prefixed by its length and CRC32, so a batch is written
+ * entirely or not at all. The index maps every key to the position of its latest value in the
+ * mapped file, a write costs time proportional to its own changes.
+ *
+ * On open the frames are replayed until the first frame with a bad length or checksum, anything
+ * after it is the tail of an interrupted write and is cleared. Once superseded values take more
+ * space than live ones, live values are rewritten to a new file by the compaction executor.
+ * If the compacted file can not be opened the store is marked broken, it keeps serving the values
+ * of its last mapping until {@link KeyStore} moves them elsewhere.
+ *
+ * Writes go to the page cache through the mapping, so like {@link android.content.SharedPreferences}
+ * apply they survive a process crash but not necessarily a power loss, unless followed by
+ * {@link #sync()}. Mappings replaced by a larger one or by a compacted file are released by the
+ * garbage collector.
+ */
+class LogStore implements KeyValueBackend {
+    private final static int MAGIC = 0x504C4F47;
+    private final static int VERSION = 1;
+    private final static int HEADER_SIZE = 8;
+    private final static int FRAME_HEADER_SIZE = 8;
+    private final static int MIN_CAPACITY = 16 * 1024;
+    private final static int COMPACT_MIN_GARBAGE = 64 * 1024;
+    private final static String COMPACT_SUFFIX = ".compact";
+
+    private final static byte OP_STRING = 1;
+    private final static byte OP_INT = 2;
+    private final static byte OP_LONG = 3;
+    private final static byte OP_BOOLEAN = 4;
+    private final static byte OP_REMOVE = 5;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final Executor mCompactor;
+    private final Map<String, Slot> mIndex = new HashMap<>();
+    private final AtomicBoolean mCompacting = new AtomicBoolean(false);
+    private volatile boolean mBroken;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mMap;
+    private int mEnd;
+    private long mGarbage;
+
+    /***
+     * open a store which compacts on the writing thread, for stores which are only read or tests
+     */
+    LogStore(File file) throws IOException {
+        this(file, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    /***
+     * @param file      the log file, created if missing
+     * @param compactor runs compactions, it may reject them and they are tried again on a later write
+     */
+    LogStore(File file, Executor compactor) throws IOException {
+        mFile = file;
+        mCompactor = compactor;
+        new File(file.getPath() + COMPACT_SUFFIX).delete();
+        open();
+    }
+
+    @Override
+    public synchronized String getString(String key, String defVal) {
+        Slot slot = getSlot(key, OP_STRING);
+        return slot == null ? defVal : readString(slot.mPosition);
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defVal) {
+        Slot slot = getSlot(key, OP_INT);
+        return slot == null ? defVal : mMap.getInt(slot.mPosition);
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defVal) {
+        Slot slot = getSlot(key, OP_LONG);
+        return slot == null ? defVal : mMap.getLong(slot.mPosition);
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defVal) {
+        Slot slot = getSlot(key, OP_BOOLEAN);
+        return slot == null ? defVal : mMap.get(slot.mPosition) != 0;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mIndex.containsKey(key);
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<>(mIndex.size() * 2);
+        for (Map.Entry<String, Slot> entry : mIndex.entrySet()) {
+            all.put(entry.getKey(), readValue(entry.getValue()));
+        }
+        return all;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mIndex.size();
+    }
+
+    /***
+     * @throws IllegalArgumentException if a value is not one of the types of {@link KeyValueBackend}
+     */
+    @Override
+    public void apply(Map<String, Object> changes) {
+        byte[] frame = encodeFrame(changes);
+        boolean compact;
+        synchronized (this) {
+            try {
+                appendFrame(frame);
+            } catch (IOException e) {
+                Logger.error("Writing KeyStore log failed", e);
+                return;
+            }
+            compact = !mBroken && mGarbage > COMPACT_MIN_GARBAGE && mGarbage > mEnd - HEADER_SIZE - mGarbage;
+        }
+        if (compact && mCompacting.compareAndSet(false, true)) {
+            try {
+                mCompactor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            compact();
+                        } catch (IOException e) {
+                            Logger.error("Compacting KeyStore log failed", e);
+                        } finally {
+                            mCompacting.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mCompacting.set(false);
+            }
+        }
+    }
+
+    /***
+     * @return true if the log could not be reopened after a compaction, values are still readable
+     * but should be moved to another backend
+     */
+    boolean isBroken() {
+        return mBroken;
+    }
+
+    /***
+     * @return the log file
+     */
+    File getFile() {
+        return mFile;
+    }
+
+    /***
+     * write the mapped log to disk before returning
+     */
+    synchronized void sync() {
+        mMap.force();
+    }
+
+    /***
+     * release the mapping and the file, the store can not be used afterwards
+     */
+    synchronized void close() throws IOException {
+        mChannel.close();
+        mRandomAccessFile.close();
+    }
+
+    /***
+     * @return bytes of the log taken by superseded or removed values
+     */
+    synchronized long getGarbageSize() {
+        return mGarbage;
+    }
+
+    /***
+     * @return bytes of the log in use
+     */
+    synchronized int getLogSize() {
+        return mEnd;
+    }
+
+    private void open() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        boolean isNew = mChannel.size() < HEADER_SIZE;
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_CAPACITY, mChannel.size()));
+        if (!isNew && (mMap.getInt(0) != MAGIC || mMap.getInt(4) != VERSION)) {
+            Logger.warning("Unknown KeyStore log format, starting an empty log", new LogData(
+                    "Magic", String.valueOf(mMap.getInt(0)),
+                    "Version", String.valueOf(mMap.getInt(4))
+            ));
+            clear(0);
+            isNew = true;
+        }
+        if (isNew) {
+            mMap.putInt(0, MAGIC);
+            mMap.putInt(4, VERSION);
+        }
+        recover();
+    }
+
+    /***
+     * rebuild the index from the frames of the log and clear the tail of an interrupted write
+     */
+    private void recover() {
+        mIndex.clear();
+        mGarbage = 0;
+        int position = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (position + FRAME_HEADER_SIZE <= mMap.capacity()) {
+            int length = mMap.getInt(position);
+            if (length <= 0 || length > mMap.capacity() - position - FRAME_HEADER_SIZE) {
+                break;
+            }
+            byte[] frame = new byte[length];
+            ByteBuffer view = mMap.duplicate();
+            view.position(position + FRAME_HEADER_SIZE);
+            view.get(frame);
+            crc.reset();
+            crc.update(frame, 0, length);
+            if ((int) crc.getValue() != mMap.getInt(position + 4)) {
+                break;
+            }
+            indexFrame(position + FRAME_HEADER_SIZE, length);
+            position += FRAME_HEADER_SIZE + length;
+        }
+        mEnd = position;
+        if (mEnd + 4 <= mMap.capacity() && mMap.getInt(mEnd) != 0) {
+            Logger.warning("Dropping incomplete KeyStore log tail", new LogData(
+                    "Position", String.valueOf(mEnd)
+            ));
+            clear(mEnd);
+        }
+    }
+
+    private void clear(int from) {
+        for (int i = from; i < mMap.capacity(); i++) {
+            mMap.put(i, (byte) 0);
+        }
+    }
+
+    private void appendFrame(byte[] frame) throws IOException {
+        ensureCapacity(mEnd + FRAME_HEADER_SIZE + frame.length);
+        CRC32 crc = new CRC32();
+        crc.update(frame, 0, frame.length);
+        ByteBuffer view = mMap.duplicate();
+        view.position(mEnd + FRAME_HEADER_SIZE);
+        view.put(frame);
+        mMap.putInt(mEnd + 4, (int) crc.getValue());
+        // the length is written last, a frame without it is ignored on recovery
+        mMap.putInt(mEnd, frame.length);
+        indexFrame(mEnd + FRAME_HEADER_SIZE, frame.length);
+        mEnd += FRAME_HEADER_SIZE + frame.length;
+    }
+
+    private void ensureCapacity(int needed) throws IOException {
+        if (needed <= mMap.capacity()) {
+            return;
+        }
+        int capacity = Math.max(needed, mMap.capacity() * 2);
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void indexFrame(int start, int length) {
+        int position = start;
+        int end = start + length;
+        while (position < end) {
+            byte op = mMap.get(position);
+            int keyLength = mMap.getShort(position + 1) & 0xFFFF;
+            byte[] keyBytes = new byte[keyLength];
+            ByteBuffer view = mMap.duplicate();
+            view.position(position + 3);
+            view.get(keyBytes);
+            String key = new String(keyBytes, UTF_8);
+            int valuePosition = position + 3 + keyLength;
+            int valueLength;
+            switch (op) {
+                case OP_STRING:
+                    valueLength = 4 + mMap.getInt(valuePosition);
+                    break;
+                case OP_INT:
+                    valueLength = 4;
+                    break;
+                case OP_LONG:
+                    valueLength = 8;
+                    break;
+                case OP_BOOLEAN:
+                    valueLength = 1;
+                    break;
+                default:
+                    valueLength = 0;
+                    break;
+            }
+            int entrySize = 3 + keyLength + valueLength;
+            Slot previous;
+            if (op == OP_REMOVE) {
+                previous = mIndex.remove(key);
+                mGarbage += entrySize;
+            } else {
+                previous = mIndex.put(key, new Slot(op, valuePosition, entrySize));
+            }
+            if (previous != null) {
+                mGarbage += previous.mSize;
+            }
+            position += entrySize;
+        }
+    }
+
+    private Slot getSlot(String key, byte type) {
+        Slot slot = mIndex.get(key);
+        if (slot != null && slot.mType != type) {
+            throw new ClassCastException("KeyStore value of " + key + " has another type");
+        }
+        return slot;
+    }
+
+    private Object readValue(Slot slot) {
+        switch (slot.mType) {
+            case OP_STRING:
+                return readString(slot.mPosition);
+            case OP_INT:
+                return mMap.getInt(slot.mPosition);
+            case OP_LONG:
+                return mMap.getLong(slot.mPosition);
+            default:
+                return mMap.get(slot.mPosition) != 0;
+        }
+    }
+
+    private String readString(int position) {
+        byte[] bytes = new byte[mMap.getInt(position)];
+        ByteBuffer view = mMap.duplicate();
+        view.position(position + 4);
+        view.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static byte[] encodeFrame(Map<String, ?> changes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (Map.Entry<String, ?> change : changes.entrySet()) {
+                Object value = change.getValue();
+                byte[] key = change.getKey().getBytes(UTF_8);
+                if (key.length > 0xFFFF) {
+                    throw new IllegalArgumentException("KeyStore key is too long");
+                }
+                if (value == REMOVED || value == null) {
+                    out.writeByte(OP_REMOVE);
+                    out.writeShort(key.length);
+                    out.write(key);
+                } else if (value instanceof Integer) {
+                    out.writeByte(OP_INT);
+                    out.writeShort(key.length);
+                    out.write(key);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(OP_LONG);
+                    out.writeShort(key.length);
+                    out.write(key);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Boolean) {
+                    out.writeByte(OP_BOOLEAN);
+                    out.writeShort(key.length);
+                    out.write(key);
+                    out.writeByte((Boolean) value ? 1 : 0);
+                } else if (value instanceof String) {
+                    byte[] string = ((String) value).getBytes(UTF_8);
+                    out.writeByte(OP_STRING);
+                    out.writeShort(key.length);
+                    out.write(key);
+                    out.writeInt(string.length);
+                    out.write(string);
+                } else {
+                    throw new IllegalArgumentException("Unsupported KeyStore value type " + value.getClass().getName());
+                }
+            }
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /***
+     * rewrite the live values to a new file and switch to it
+     * the live values are copied without blocking writers, frames appended meanwhile are copied
+     * as they are right before the switch
+     */
+    private void compact() throws IOException {
+        Map<String, ?> live;
+        int snapshotEnd;
+        synchronized (this) {
+            live = getAll();
+            snapshotEnd = mEnd;
+        }
+
+        File compactFile = new File(mFile.getPath() + COMPACT_SUFFIX);
+        FileOutputStream out = new FileOutputStream(compactFile);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            byte[] frame = encodeFrame(live);
+            if (frame.length > 0) {
+                CRC32 crc = new CRC32();
+                crc.update(frame, 0, frame.length);
+                data.writeInt(frame.length);
+                data.writeInt((int) crc.getValue());
+                data.write(frame);
+            }
+            data.flush();
+
+            synchronized (this) {
+                byte[] tail = new byte[mEnd - snapshotEnd];
+                ByteBuffer view = mMap.duplicate();
+                view.position(snapshotEnd);
+                view.get(tail);
+                out.write(tail);
+                out.getFD().sync();
+
+                long before = mEnd;
+                if (!compactFile.renameTo(mFile)) {
+                    throw new IOException("Renaming compacted KeyStore log failed");
+                }
+                MappedByteBuffer previous = mMap;
+                RandomAccessFile previousFile = mRandomAccessFile;
+                mChannel.close();
+                mRandomAccessFile.close();
+                try {
+                    open();
+                } catch (IOException e) {
+                    // the previous mapping stays valid after its channel is closed, it serves the
+                    // values until KeyStore moves them to the preferences
+                    if (mRandomAccessFile != previousFile) {
+                        mRandomAccessFile.close();
+                    }
+                    mMap = previous;
+                    mBroken = true;
+                    throw e;
+                }
+                Logger.debug("KeyStore log compacted", new LogData(
+                        "Before", String.valueOf(before),
+                        "After", String.valueOf(mEnd)
+                ));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class Slot {
+        private final byte mType;
+        private final int mPosition;
+        private final int mSize;
+
+        Slot(byte type, int position, int size) {
+            mType = type;
+            mPosition = position;
+            mSize = size;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_ID;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_OUTBOX_BATCH_ID;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_OUTBOX_CREATED_TIME;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_OUTBOX_DATA;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_OUTBOX_MSG_ID;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_OUTBOX_SENT_TIME;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.TABLE_OUTBOX;
+
+/***
+ * Durable outbox of upstream messages, stored in {@link DatabaseHelper#TABLE_OUTBOX}
+ *
+ * Every message has one row keyed by its message id, adding a message twice keeps the first row.
+ * When a message is sent the row is marked with the id of the upstream message carrying it, and is
+ * deleted once that id is acknowledged. Rows sent but never acknowledged become sendable again
+ * after a timeout.
+ */
+public class OutboxDbOperation {
+    private final static String SENDABLE = COLUMN_OUTBOX_BATCH_ID + " IS NULL OR " + COLUMN_OUTBOX_SENT_TIME + " < ?";
+    private final static String SENT_AS = COLUMN_OUTBOX_BATCH_ID + " = ? OR " + COLUMN_OUTBOX_MSG_ID + " = ?";
+
+    private volatile static OutboxDbOperation mInstance;
+
+    private DatabaseHelper mDbHelper;
+
+    private OutboxDbOperation(Context context) {
+        mDbHelper = DatabaseHelper.getInstance(context);
+    }
+
+    public static OutboxDbOperation getInstance(Context context) {
+        if (mInstance == null) {
+            synchronized (OutboxDbOperation.class) {
+                if (mInstance == null) {
+                    mInstance = new OutboxDbOperation(context);
+                }
+            }
+        }
+        return mInstance;
+    }
+
+    /***
+     * add a message to outbox
+     *
+     * @param messageId id of the message
+     * @param data      the message json
+     * @param time      time the message was created
+     * @return {@code false} if a message with the same id is already in outbox
+     */
+    public boolean add(String messageId, String data, long time) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_OUTBOX_MSG_ID, messageId);
+        values.put(COLUMN_OUTBOX_DATA, data);
+        values.put(COLUMN_OUTBOX_CREATED_TIME, time);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.insertWithOnConflict(TABLE_OUTBOX, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1;
+    }
+
+    /***
+     * @param resendBefore messages sent before this time without an acknowledgement are counted
+     * @return number of messages waiting to be sent
+     */
+    public long getSendableCount(long resendBefore) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(db, TABLE_OUTBOX, SENDABLE,
+                new String[]{String.valueOf(resendBefore)});
+    }
+
+    /***
+     * @param resendBefore messages sent before this time without an acknowledgement are counted
+     * @return total length of messages waiting to be sent
+     */
+    public long getSendableLength(long resendBefore) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(SUM(length(" + COLUMN_OUTBOX_DATA + ")), 0) FROM "
+                + TABLE_OUTBOX + " WHERE " + SENDABLE, new String[]{String.valueOf(resendBefore)});
+    }
+
+    /***
+     * return the oldest messages waiting to be sent, the first message is returned even if it is
+     * longer than {@code maxLength}
+     *
+     * @param resendBefore messages sent before this time without an acknowledgement are returned
+     * @param maxCount     maximum number of messages
+     * @param maxLength    maximum total length of messages
+     */
+    public List<Entry> getSendable(long resendBefore, int maxCount, long maxLength) {
+        List<Entry> entries = new ArrayList<>();
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_OUTBOX, new String[]{COLUMN_ID, COLUMN_OUTBOX_MSG_ID, COLUMN_OUTBOX_DATA},
+                SENDABLE, new String[]{String.valueOf(resendBefore)}, null, null, COLUMN_ID,
+                String.valueOf(maxCount));
+        try {
+            long length = 0;
+            while (cursor.moveToNext()) {
+                String data = cursor.getString(2);
+                length += data == null ? 0 : data.length();
+                if (length > maxLength && !entries.isEmpty()) {
+                    break;
+                }
+                entries.add(new Entry(cursor.getLong(0), cursor.getString(1), data));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /***
+     * mark messages as sent in one upstream message
+     *
+     * @param entries the sent messages
+     * @param batchId id of the upstream message carrying them
+     * @param time    time they were sent
+     */
+    public void markSent(List<Entry> entries, String batchId, long time) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        StringBuilder ids = new StringBuilder();
+        for (Entry entry : entries) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(entry.getId());
+        }
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_OUTBOX_BATCH_ID, batchId);
+        values.put(COLUMN_OUTBOX_SENT_TIME, time);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.update(TABLE_OUTBOX, values, COLUMN_ID + " IN (" + ids + ")", null);
+    }
+
+    /***
+     * delete messages delivered by an upstream message
+     *
+     * @param messageId id of the acknowledged upstream message
+     * @return number of deleted messages
+     */
+    public int acknowledge(String messageId) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.delete(TABLE_OUTBOX, SENT_AS, new String[]{messageId, messageId});
+    }
+
+    /***
+     * make messages of a failed upstream message sendable again
+     *
+     * @param messageId id of the failed upstream message
+     * @return number of released messages
+     */
+    public int release(String messageId) {
+        ContentValues values = new ContentValues();
+        values.putNull(COLUMN_OUTBOX_BATCH_ID);
+        values.putNull(COLUMN_OUTBOX_SENT_TIME);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.update(TABLE_OUTBOX, values, SENT_AS, new String[]{messageId, messageId});
+    }
+
+    /***
+     * delete messages created before {@code time}, whether sent or not
+     *
+     * @return number of deleted messages
+     */
+    public int removeOlderThan(long time) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.delete(TABLE_OUTBOX, COLUMN_OUTBOX_CREATED_TIME + " < ?", new String[]{String.valueOf(time)});
+    }
+
+    /***
+     * A message in outbox
+     */
+    public static class Entry {
+        private final long mId;
+        private final String mMessageId;
+        private final String mData;
+
+        Entry(long id, String messageId, String data) {
+            mId = id;
+            mMessageId = messageId;
+            mData = data;
+        }
+
+        long getId() {
+            return mId;
+        }
+
+        public String getMessageId() {
+            return mMessageId;
+        }
+
+        public String getData() {
+            return mData;
+        }
+    }
+}
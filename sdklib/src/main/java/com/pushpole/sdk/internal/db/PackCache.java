@@ -0,0 +1,134 @@
+package com.pushpole.sdk.internal.db;
+
+import android.util.LruCache;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pushpole.sdk.util.ListPack;
+import com.pushpole.sdk.util.Pack;
+
+/***
+ * Bounded cache of decoded {@link Pack} and {@link ListPack} values of {@link KeyStore}
+ * cached values are never handed out, every read returns a deep copy so callers may modify it
+ *
+ * Entries are invalidated by {@link KeyStore} when their key is written or deleted, a decoded value
+ * is only cached if no write to the cache happened while it was being decoded
+ */
+public class PackCache {
+    private final LruCache<String, Object> mCache;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private long mVersion;
+
+    PackCache(int maxEntries) {
+        mCache = new LruCache<String, Object>(maxEntries) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Object oldValue, Object newValue) {
+                if (evicted) {
+                    mEvictions.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /***
+     * @return copy of the cached pack or {@code null} on miss
+     */
+    Pack getPack(String key) {
+        Object value = mCache.get(key);
+        if (value instanceof Pack) {
+            mHits.incrementAndGet();
+            return copy((Pack) value);
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /***
+     * @return copy of the cached list pack or {@code null} on miss
+     */
+    ListPack getListPack(String key) {
+        Object value = mCache.get(key);
+        if (value instanceof ListPack) {
+            mHits.incrementAndGet();
+            return copy((ListPack) value);
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /***
+     * @return version to pass to {@link #put(String, Object, long)} for a value about to be decoded
+     */
+    synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /***
+     * cache a copy of a decoded value, unless the cache was written since {@code version}
+     */
+    synchronized void put(String key, Object value, long version) {
+        if (version != mVersion || value == null) {
+            return;
+        }
+        if (value instanceof Pack) {
+            mCache.put(key, copy((Pack) value));
+        } else if (value instanceof ListPack) {
+            mCache.put(key, copy((ListPack) value));
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        mVersion++;
+        mCache.remove(key);
+    }
+
+    synchronized void invalidateAll() {
+        mVersion++;
+        mCache.evictAll();
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    public int size() {
+        return mCache.size();
+    }
+
+    static Pack copy(Pack pack) {
+        Pack copy = new Pack();
+        for (Map.Entry<String, Object> entry : pack.entrySet()) {
+            copy.put(entry.getKey(), copyValue(entry.getValue()));
+        }
+        return copy;
+    }
+
+    static ListPack copy(ListPack listPack) {
+        ListPack copy = new ListPack();
+        for (Object value : listPack) {
+            copy.add(copyValue(value));
+        }
+        return copy;
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof Pack) {
+            return copy((Pack) value);
+        } else if (value instanceof ListPack) {
+            return copy((ListPack) value);
+        }
+        // Strings, numbers and booleans are immutable
+        return value;
+    }
+}
@@ -0,0 +1,499 @@
+package com.pushpole.sdk.internal.db;
+
+import android.util.Base64;
+import android.util.JsonReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import com.pushpole.sdk.util.ListPack;
+import com.pushpole.sdk.util.Pack;
+
+/***
+ * Compact binary encoding of {@link Pack} and {@link ListPack} used by {@link KeyStore}
+ *
+ * An encoded value starts with a header of a magic byte, a format version and the root type. Packs
+ * are a varint entry count followed by the entries, lists a varint count followed by the values.
+ * Strings, nested packs and nested lists are prefixed by their length in bytes, so a single field
+ * can be read without decoding the values before it.
+ *
+ * The bytes are stored as Base64 behind {@link #PREFIX}, which never starts a JSON document, so
+ * values written in the old JSON format are still told apart and can be migrated on read.
+ * Base64 adds a third to the size of the bytes, which text heavy packs do not win back, so
+ * {@link #encode(Pack)} keeps the JSON form whenever it is the smaller one in the preferences file.
+ * Values of types the binary format does not know are stored as JSON as well. Single fields of
+ * packs kept as JSON are read by tokenizing the document without building the other values.
+ */
+public final class PackCodec {
+    /*** prefix of every encoded value */
+    public final static String PREFIX = "!";
+
+    private final static int MAGIC = 0x50;
+    private final static int VERSION = 1;
+
+    private final static int TYPE_NULL = 0;
+    private final static int TYPE_STRING = 1;
+    private final static int TYPE_INT = 2;
+    private final static int TYPE_LONG = 3;
+    private final static int TYPE_DOUBLE = 4;
+    private final static int TYPE_TRUE = 5;
+    private final static int TYPE_FALSE = 6;
+    private final static int TYPE_PACK = 7;
+    private final static int TYPE_LIST = 8;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /*** returned by {@link #readJsonField} when the field can only be read by decoding the whole pack */
+    final static Object NOT_READ = new Object();
+
+    private PackCodec() {
+    }
+
+    /***
+     * @return true if the stored value was written by this codec
+     */
+    public static boolean isEncoded(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    /***
+     * @return the value to store for {@code pack}, either encoded or JSON, whichever takes less
+     * space in the preferences file
+     */
+    public static String encode(Pack pack) {
+        String json = pack.toJson();
+        try {
+            return smaller(encodeBinary(pack), json);
+        } catch (IllegalArgumentException e) {
+            return json;
+        }
+    }
+
+    /***
+     * @return the binary form of {@code pack}, whatever its size
+     * @throws IllegalArgumentException if the pack holds a value of an unsupported type
+     */
+    static String encodeBinary(Pack pack) {
+        Writer writer = new Writer();
+        writer.writeHeader(TYPE_PACK);
+        writer.writePackBody(pack);
+        return writer.toStoredString();
+    }
+
+    /***
+     * @return the value to store for {@code listPack}, either encoded or JSON, whichever takes less
+     * space in the preferences file
+     */
+    public static String encode(ListPack listPack) {
+        String json = listPack.toJson();
+        try {
+            Writer writer = new Writer();
+            writer.writeHeader(TYPE_LIST);
+            writer.writeListBody(listPack);
+            return smaller(writer.toStoredString(), json);
+        } catch (IllegalArgumentException e) {
+            return json;
+        }
+    }
+
+    private static String smaller(String encoded, String json) {
+        return getStoredSize(encoded) < getStoredSize(json) ? encoded : json;
+    }
+
+    /***
+     * @return number of bytes {@code value} takes in the preferences XML file, counting UTF-8
+     * encoding and escaping of markup characters
+     */
+    static int getStoredSize(String value) {
+        int size = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\'') {
+                size += 6;
+            } else if (c == '&') {
+                size += 5;
+            } else if (c == '<' || c == '>') {
+                size += 4;
+            } else if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800 || Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                size += 2;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    /***
+     * @return the decoded pack or {@code null} if the value is not an encoded pack
+     */
+    public static Pack decodePack(String stored) {
+        Reader reader = Reader.open(stored, TYPE_PACK);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            return reader.readPackBody();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /***
+     * @return the decoded list pack or {@code null} if the value is not an encoded list pack
+     */
+    public static ListPack decodeListPack(String stored) {
+        Reader reader = Reader.open(stored, TYPE_LIST);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            return reader.readListBody();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /***
+     * read one top level field of an encoded pack, other fields are skipped without being decoded
+     *
+     * @return the field value or {@code null} if the pack has no such field or is not an encoded pack
+     */
+    public static Object readField(String stored, String field) {
+        Reader reader = Reader.open(stored, TYPE_PACK);
+        if (reader == null) {
+            return null;
+        }
+        byte[] fieldBytes = field.getBytes(UTF_8);
+        try {
+            int count = reader.readVarInt();
+            for (int i = 0; i < count; i++) {
+                if (reader.matchKey(fieldBytes)) {
+                    return reader.readValue();
+                }
+                reader.skipValue();
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return null;
+    }
+
+    /***
+     * read one top level field of a pack stored as JSON, numbers are typed like {@code org.json}
+     * does: {@link Integer} or {@link Long} for integers and {@link Double} otherwise
+     *
+     * @return the field value, {@code null} if the pack has no such field, or {@link #NOT_READ} if
+     * the value is a nested pack or list or the document is malformed
+     */
+    static Object readJsonField(String json, String field) {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!field.equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (reader.peek()) {
+                    case STRING:
+                        return reader.nextString();
+                    case NUMBER:
+                        return parseNumber(reader.nextString());
+                    case BOOLEAN:
+                        return reader.nextBoolean();
+                    case NULL:
+                        reader.nextNull();
+                        return null;
+                    default:
+                        return NOT_READ;
+                }
+            }
+            return null;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            return NOT_READ;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static Object parseNumber(String number) {
+        if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0
+                || "-0".equals(number)) {
+            return Double.valueOf(number);
+        }
+        long value = Long.parseLong(number);
+        if (value == (int) value) {
+            return (int) value;
+        }
+        return value;
+    }
+
+    private static class Writer {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream(128);
+
+        void writeHeader(int rootType) {
+            mOut.write(MAGIC);
+            mOut.write(VERSION);
+            mOut.write(rootType);
+        }
+
+        String toStoredString() {
+            return PREFIX + Base64.encodeToString(mOut.toByteArray(), Base64.NO_WRAP);
+        }
+
+        void writePackBody(Pack pack) {
+            writeVarInt(pack.size());
+            for (Map.Entry<String, Object> entry : pack.entrySet()) {
+                writeBytes(entry.getKey().getBytes(UTF_8));
+                writeValue(entry.getValue());
+            }
+        }
+
+        void writeListBody(ListPack listPack) {
+            writeVarInt(listPack.size());
+            for (Object value : listPack) {
+                writeValue(value);
+            }
+        }
+
+        private void writeValue(Object value) {
+            if (value == null) {
+                mOut.write(TYPE_NULL);
+            } else if (value instanceof Boolean) {
+                mOut.write((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                mOut.write(TYPE_INT);
+                writeVarLong(zigZag(((Number) value).intValue()));
+            } else if (value instanceof Long) {
+                mOut.write(TYPE_LONG);
+                writeVarLong(zigZag((Long) value));
+            } else if (value instanceof Double || value instanceof Float) {
+                mOut.write(TYPE_DOUBLE);
+                long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    mOut.write((int) (bits >>> shift));
+                }
+            } else if (value instanceof Pack || value instanceof ListPack) {
+                // nested values are length prefixed so readers can skip them
+                Writer nested = new Writer();
+                if (value instanceof Pack) {
+                    mOut.write(TYPE_PACK);
+                    nested.writePackBody((Pack) value);
+                } else {
+                    mOut.write(TYPE_LIST);
+                    nested.writeListBody((ListPack) value);
+                }
+                writeBytes(nested.mOut.toByteArray());
+            } else if (value instanceof String) {
+                mOut.write(TYPE_STRING);
+                writeBytes(((String) value).getBytes(UTF_8));
+            } else {
+                throw new IllegalArgumentException("Unsupported pack value type " + value.getClass().getName());
+            }
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarInt(bytes.length);
+            mOut.write(bytes, 0, bytes.length);
+        }
+
+        private void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                mOut.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mOut.write((int) value);
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] mData;
+        private int mPos;
+        private final int mEnd;
+
+        private Reader(byte[] data, int pos, int end) {
+            mData = data;
+            mPos = pos;
+            mEnd = end;
+        }
+
+        /***
+         * @return a reader positioned after the header or {@code null} if the header does not match
+         */
+        static Reader open(String stored, int rootType) {
+            if (!isEncoded(stored)) {
+                return null;
+            }
+            byte[] data;
+            try {
+                data = Base64.decode(stored.substring(PREFIX.length()), Base64.NO_WRAP);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (data.length < 3 || (data[0] & 0xFF) != MAGIC || data[1] != VERSION || data[2] != rootType) {
+                return null;
+            }
+            return new Reader(data, 3, data.length);
+        }
+
+        Pack readPackBody() {
+            Pack pack = new Pack();
+            int count = readVarInt();
+            for (int i = 0; i < count; i++) {
+                String key = readString();
+                pack.put(key, readValue());
+            }
+            return pack;
+        }
+
+        ListPack readListBody() {
+            ListPack listPack = new ListPack();
+            int count = readVarInt();
+            for (int i = 0; i < count; i++) {
+                listPack.add(readValue());
+            }
+            return listPack;
+        }
+
+        Object readValue() {
+            int type = readByte();
+            switch (type) {
+                case TYPE_NULL:
+                    return null;
+                case TYPE_TRUE:
+                    return Boolean.TRUE;
+                case TYPE_FALSE:
+                    return Boolean.FALSE;
+                case TYPE_INT:
+                    return (int) unZigZag(readVarLong());
+                case TYPE_LONG:
+                    return unZigZag(readVarLong());
+                case TYPE_DOUBLE:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = (bits << 8) | readByte();
+                    }
+                    return Double.longBitsToDouble(bits);
+                case TYPE_STRING:
+                    return readString();
+                case TYPE_PACK:
+                case TYPE_LIST:
+                    int length = readVarInt();
+                    Reader nested = new Reader(mData, mPos, checkLength(length));
+                    mPos += length;
+                    return type == TYPE_PACK ? nested.readPackBody() : nested.readListBody();
+                default:
+                    throw new IllegalStateException("Unknown pack value type " + type);
+            }
+        }
+
+        void skipValue() {
+            int type = readByte();
+            switch (type) {
+                case TYPE_NULL:
+                case TYPE_TRUE:
+                case TYPE_FALSE:
+                    break;
+                case TYPE_INT:
+                case TYPE_LONG:
+                    readVarLong();
+                    break;
+                case TYPE_DOUBLE:
+                    checkLength(8);
+                    mPos += 8;
+                    break;
+                case TYPE_STRING:
+                case TYPE_PACK:
+                case TYPE_LIST:
+                    int length = readVarInt();
+                    checkLength(length);
+                    mPos += length;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown pack value type " + type);
+            }
+        }
+
+        /***
+         * consume the next key and compare it to {@code key} without building a String
+         */
+        boolean matchKey(byte[] key) {
+            int length = readVarInt();
+            int start = mPos;
+            checkLength(length);
+            mPos += length;
+            if (length != key.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (mData[start + i] != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String readString() {
+            int length = readVarInt();
+            checkLength(length);
+            String value = new String(mData, mPos, length, UTF_8);
+            mPos += length;
+            return value;
+        }
+
+        private int readByte() {
+            checkLength(1);
+            return mData[mPos++] & 0xFF;
+        }
+
+        int readVarInt() {
+            long value = readVarLong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Invalid length " + value);
+            }
+            return (int) value;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed varint");
+        }
+
+        /***
+         * @return end position of the next {@code length} bytes
+         */
+        private int checkLength(int length) {
+            if (length < 0 || mPos + length > mEnd) {
+                throw new IllegalStateException("Truncated pack data");
+            }
+            return mPos + length;
+        }
+
+        private static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/***
+ * {@link KeyValueBackend} storing values in {@link SharedPreferences}
+ */
+class PrefsBackend implements KeyValueBackend {
+    private final SharedPreferences mSharedPrefs;
+
+    PrefsBackend(SharedPreferences sharedPrefs) {
+        mSharedPrefs = sharedPrefs;
+    }
+
+    @Override
+    public String getString(String key, String defVal) {
+        return mSharedPrefs.getString(key, defVal);
+    }
+
+    @Override
+    public int getInt(String key, int defVal) {
+        return mSharedPrefs.getInt(key, defVal);
+    }
+
+    @Override
+    public long getLong(String key, long defVal) {
+        return mSharedPrefs.getLong(key, defVal);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defVal) {
+        return mSharedPrefs.getBoolean(key, defVal);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mSharedPrefs.contains(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return mSharedPrefs.getAll();
+    }
+
+    @Override
+    public int size() {
+        return mSharedPrefs.getAll().size();
+    }
+
+    @Override
+    public void apply(Map<String, Object> changes) {
+        SharedPreferences.Editor editor = mSharedPrefs.edit();
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            String key = change.getKey();
+            Object value = change.getValue();
+            if (value == REMOVED) {
+                editor.remove(key);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else {
+                editor.putString(key, (String) value);
+            }
+        }
+        editor.apply();
+    }
+}
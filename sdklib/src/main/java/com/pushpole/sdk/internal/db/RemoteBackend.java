@@ -0,0 +1,223 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+
+/***
+ * {@link KeyValueBackend} of processes which do not own {@link KeyStore}
+ * values are read from the shared preferences file and reloaded when the owner has changed it.
+ * Changes are only ever written by the owner process. {@link #apply(Map)} keeps them pending, so
+ * this process reads its own changes right away, and {@link #sendPending()} sends them to the
+ * owner outside the lock of the store. Changes the owner could not take are saved to a file of
+ * this process and sent again with the next change, also after a restart.
+ */
+class RemoteBackend implements KeyValueBackend {
+    private final static String PENDING_SUFFIX = ".pending.";
+    private final static String PENDING_VALUE = "v";
+    private final static String PENDING_REMOVED = "r";
+
+    private final Context mContext;
+    private final String mName;
+    private final KeyStoreSync mSync;
+    private volatile PrefsBackend mPrefs;
+    private final Map<String, Object> mPending = new LinkedHashMap<>();
+    private final Object mSendLock = new Object();
+    private final SharedPreferences mSavedPending;
+
+    RemoteBackend(Context context, String name, KeyStoreSync sync) {
+        mContext = context;
+        mName = name;
+        mSync = sync;
+        mPrefs = new PrefsBackend(open());
+        String processName = KeyStoreSync.getProcessName();
+        mSavedPending = context.getSharedPreferences(name + PENDING_SUFFIX
+                + (processName == null ? "" : processName), Context.MODE_PRIVATE);
+        loadSavedPending();
+    }
+
+    @SuppressWarnings("deprecation")
+    private SharedPreferences open() {
+        // MODE_MULTI_PROCESS reloads the file if it changed on disk since it was loaded
+        return mContext.getSharedPreferences(mName, Context.MODE_MULTI_PROCESS);
+    }
+
+    /***
+     * reload values written by the owner process
+     */
+    void reload() {
+        mPrefs = new PrefsBackend(open());
+    }
+
+    @Override
+    public String getString(String key, String defVal) {
+        synchronized (mPending) {
+            if (mPending.containsKey(key)) {
+                Object value = mPending.get(key);
+                return value == REMOVED ? defVal : (String) value;
+            }
+        }
+        return mPrefs.getString(key, defVal);
+    }
+
+    @Override
+    public int getInt(String key, int defVal) {
+        synchronized (mPending) {
+            if (mPending.containsKey(key)) {
+                Object value = mPending.get(key);
+                return value == REMOVED ? defVal : (Integer) value;
+            }
+        }
+        return mPrefs.getInt(key, defVal);
+    }
+
+    @Override
+    public long getLong(String key, long defVal) {
+        synchronized (mPending) {
+            if (mPending.containsKey(key)) {
+                Object value = mPending.get(key);
+                return value == REMOVED ? defVal : (Long) value;
+            }
+        }
+        return mPrefs.getLong(key, defVal);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defVal) {
+        synchronized (mPending) {
+            if (mPending.containsKey(key)) {
+                Object value = mPending.get(key);
+                return value == REMOVED ? defVal : (Boolean) value;
+            }
+        }
+        return mPrefs.getBoolean(key, defVal);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        synchronized (mPending) {
+            if (mPending.containsKey(key)) {
+                return mPending.get(key) != REMOVED;
+            }
+        }
+        return mPrefs.contains(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, ?> stored = mPrefs.getAll();
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                return stored;
+            }
+            Map<String, Object> all = new HashMap<>(stored);
+            for (Map.Entry<String, Object> change : mPending.entrySet()) {
+                if (change.getValue() == REMOVED) {
+                    all.remove(change.getKey());
+                } else {
+                    all.put(change.getKey(), change.getValue());
+                }
+            }
+            return all;
+        }
+    }
+
+    @Override
+    public int size() {
+        return getAll().size();
+    }
+
+    /***
+     * keep changes until {@link #sendPending()} sends them, they are read back right away
+     */
+    @Override
+    public void apply(Map<String, Object> changes) {
+        synchronized (mPending) {
+            mPending.putAll(changes);
+        }
+    }
+
+    /***
+     * send pending changes to the owner process, called without holding the lock of {@link KeyStore}
+     * sends are serialized so the owner receives changes in the order they were made
+     */
+    void sendPending() {
+        synchronized (mSendLock) {
+            Map<String, Object> sending;
+            synchronized (mPending) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                sending = new LinkedHashMap<>(mPending);
+            }
+            if (mSync.sendToOwner(sending)) {
+                synchronized (mPending) {
+                    for (Map.Entry<String, Object> change : sending.entrySet()) {
+                        // keep changes made while sending
+                        if (mPending.get(change.getKey()) == change.getValue()) {
+                            mPending.remove(change.getKey());
+                        }
+                    }
+                }
+                if (!mSavedPending.getAll().isEmpty()) {
+                    savePending();
+                }
+            } else {
+                Logger.warning("KeyStore owner process is not reachable, changes kept", new LogData(
+                        "Pending", String.valueOf(sending.size())
+                ));
+                savePending();
+            }
+        }
+    }
+
+    /***
+     * replace the saved changes with the pending ones
+     */
+    private void savePending() {
+        SharedPreferences.Editor editor = mSavedPending.edit().clear();
+        synchronized (mPending) {
+            for (Map.Entry<String, Object> change : mPending.entrySet()) {
+                String key = change.getKey();
+                Object value = change.getValue();
+                if (value == REMOVED) {
+                    editor.putBoolean(PENDING_REMOVED + key, true);
+                } else if (value instanceof Integer) {
+                    editor.putInt(PENDING_VALUE + key, (Integer) value);
+                } else if (value instanceof Long) {
+                    editor.putLong(PENDING_VALUE + key, (Long) value);
+                } else if (value instanceof Boolean) {
+                    editor.putBoolean(PENDING_VALUE + key, (Boolean) value);
+                } else {
+                    editor.putString(PENDING_VALUE + key, (String) value);
+                }
+            }
+        }
+        editor.apply();
+    }
+
+    private void loadSavedPending() {
+        Map<String, ?> saved = mSavedPending.getAll();
+        synchronized (mPending) {
+            for (Map.Entry<String, ?> entry : saved.entrySet()) {
+                String key = entry.getKey().substring(1);
+                if (entry.getKey().startsWith(PENDING_REMOVED)) {
+                    mPending.put(key, REMOVED);
+                } else {
+                    mPending.put(key, entry.getValue());
+                }
+            }
+        }
+        if (!saved.isEmpty()) {
+            Logger.debug("Loaded KeyStore changes not sent to owner process", new LogData(
+                    "Pending", String.valueOf(saved.size())
+            ));
+        }
+    }
+}
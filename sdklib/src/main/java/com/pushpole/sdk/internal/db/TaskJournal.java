@@ -0,0 +1,355 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.pushpole.sdk.internal.log.Logger;
+import com.pushpole.sdk.task.options.TaskOptions;
+import com.pushpole.sdk.util.InvalidJsonException;
+import com.pushpole.sdk.util.Pack;
+
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_BACK_OFF_COUNT;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_CREATED_AT;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_IS_NETWORK_REQUIRED;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_IS_PERIODIC;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_NEXT_TRY_TIME;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_TAG;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_TASK_DATA;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_TASK_DELAY;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_TASK_WINDOW;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.TABLE_TASK;
+
+/***
+ * Durable journal of scheduled tasks, stored in {@link DatabaseHelper#TABLE_TASK}
+ * every scheduled task instance has one row keyed by its tag, holding the task data, the options
+ * it was scheduled with and the time it is expected to run. The row is deleted when the task
+ * completes, rows which stay long after their expected run time belong to jobs the scheduler has lost.
+ *
+ * Options are stored in {@code network_required}, {@code is_periodic}, {@code task_window} and
+ * {@code task_delay} which holds the period of periodic tasks and the delay of the others.
+ */
+public class TaskJournal {
+    private final static String COLUMN_CREATED_TIME = "created_time";
+    private final static String[] COLUMNS = new String[]{
+            COLUMN_TAG,
+            COLUMN_TASK_DATA,
+            COLUMN_NEXT_TRY_TIME,
+            COLUMN_BACK_OFF_COUNT,
+            COLUMN_IS_NETWORK_REQUIRED,
+            COLUMN_IS_PERIODIC,
+            COLUMN_TASK_DELAY,
+            COLUMN_TASK_WINDOW,
+            "strftime('%s', " + COLUMN_CREATED_AT + ") * 1000 AS " + COLUMN_CREATED_TIME
+    };
+
+    private volatile static TaskJournal mInstance;
+
+    private DatabaseHelper mDbHelper;
+
+    private TaskJournal(Context context) {
+        mDbHelper = DatabaseHelper.getInstance(context);
+    }
+
+    public static TaskJournal getInstance(Context context) {
+        if (mInstance == null) {
+            synchronized (TaskJournal.class) {
+                if (mInstance == null) {
+                    mInstance = new TaskJournal(context);
+                }
+            }
+        }
+        return mInstance;
+    }
+
+    /***
+     * insert or replace the journal entry of a task
+     * a replaced entry belongs to a new instance of the task, so its creation time is reset
+     *
+     * @param entry the entry
+     */
+    public void put(Entry entry) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.insertWithOnConflict(TABLE_TASK, null, toContentValues(entry), SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /***
+     * update data, next try time and back off count of a journaled task
+     * unlike {@link #put(Entry)} the creation time of the entry is kept
+     *
+     * @param entry the entry
+     * @return {@code true} if the task was in journal
+     */
+    public boolean update(Entry entry) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.update(TABLE_TASK, toContentValues(entry), COLUMN_TAG + " = ?", new String[]{entry.getTag()}) > 0;
+    }
+
+    /***
+     * insert or replace journal entries of many tasks in a single transaction
+     *
+     * @param entries the entries
+     */
+    public void putAll(Collection<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Entry entry : entries) {
+                db.insertWithOnConflict(TABLE_TASK, null, toContentValues(entry), SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /***
+     * update entries of many journaled tasks in a single transaction, keeping their creation time
+     *
+     * @param entries the entries
+     * @return number of updated entries
+     */
+    public int updateAll(Collection<Entry> entries) {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (Entry entry : entries) {
+                count += db.update(TABLE_TASK, toContentValues(entry), COLUMN_TAG + " = ?", new String[]{entry.getTag()});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    /***
+     * return journal entry of a task
+     *
+     * @param tag the task tag
+     * @return the entry or {@code null} if task is not in journal
+     */
+    public Entry get(String tag) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_TASK, COLUMNS, COLUMN_TAG + " = ?", new String[]{tag},
+                null, null, null, "1");
+        try {
+            return cursor.moveToFirst() ? fromCursor(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /***
+     * return entries expected to run at or before {@code time}, oldest first
+     *
+     * @param time  the time in milliseconds
+     * @param limit maximum number of returned entries
+     * @return the entries
+     */
+    public List<Entry> getDue(long time, int limit) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_TASK, COLUMNS, COLUMN_NEXT_TRY_TIME + " <= ?",
+                new String[]{String.valueOf(time)}, null, null, COLUMN_NEXT_TRY_TIME + " ASC",
+                String.valueOf(limit));
+        List<Entry> entries = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                entries.add(fromCursor(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /***
+     * remove entry of a completed task
+     *
+     * @param tag the task tag
+     * @return {@code true} if the task was in journal
+     */
+    public boolean complete(String tag) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.delete(TABLE_TASK, COLUMN_TAG + " = ?", new String[]{tag}) > 0;
+    }
+
+    /***
+     * remove entries of many tasks in one transaction
+     *
+     * @param tags the task tags
+     * @return number of removed entries
+     */
+    public int completeAll(Collection<String> tags) {
+        if (tags.isEmpty()) {
+            return 0;
+        }
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (String tag : tags) {
+                count += db.delete(TABLE_TASK, COLUMN_TAG + " = ?", new String[]{tag});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    public int size() {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_TASK, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private ContentValues toContentValues(Entry entry) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_TAG, entry.getTag());
+        values.put(COLUMN_NEXT_TRY_TIME, entry.getNextTryTime());
+        values.put(COLUMN_BACK_OFF_COUNT, entry.getBackOffCount());
+        values.put(COLUMN_TASK_DATA, entry.getData() == null ? null : entry.getData().toJson());
+        TaskOptions options = entry.getOptions();
+        if (options != null) {
+            boolean periodic = options.getPeriod() > 0;
+            values.put(COLUMN_IS_NETWORK_REQUIRED, options.isNetworkRequired() ? 1 : 0);
+            values.put(COLUMN_IS_PERIODIC, periodic ? 1 : 0);
+            values.put(COLUMN_TASK_DELAY, periodic ? options.getPeriod() : options.getDelay());
+            values.put(COLUMN_TASK_WINDOW, options.getWindow());
+        }
+        return values;
+    }
+
+    /***
+     * @return options stored in the row or {@code null} for rows written before options were journaled
+     */
+    private TaskOptions optionsFromCursor(Cursor cursor) {
+        int delayIndex = cursor.getColumnIndex(COLUMN_TASK_DELAY);
+        if (cursor.isNull(delayIndex)) {
+            return null;
+        }
+        TaskOptions.Builder builder = new TaskOptions.Builder();
+        builder.setNetworkRequired(cursor.getInt(cursor.getColumnIndex(COLUMN_IS_NETWORK_REQUIRED)) == 1);
+        if (cursor.getInt(cursor.getColumnIndex(COLUMN_IS_PERIODIC)) == 1) {
+            builder.setPeriod(cursor.getLong(delayIndex));
+        } else {
+            builder.setDelay(cursor.getLong(delayIndex));
+        }
+        int windowIndex = cursor.getColumnIndex(COLUMN_TASK_WINDOW);
+        if (!cursor.isNull(windowIndex)) {
+            builder.setWindow(cursor.getLong(windowIndex));
+        }
+        return builder.build();
+    }
+
+    private Entry fromCursor(Cursor cursor) {
+        String tag = cursor.getString(cursor.getColumnIndex(COLUMN_TAG));
+        String json = cursor.getString(cursor.getColumnIndex(COLUMN_TASK_DATA));
+        Pack data = null;
+        if (json != null) {
+            try {
+                data = Pack.fromJson(json);
+            } catch (InvalidJsonException e) {
+                Logger.error("Invalid task data in journal", e);
+            }
+        }
+        Entry entry = new Entry(tag, data, cursor.getLong(cursor.getColumnIndex(COLUMN_NEXT_TRY_TIME)));
+        entry.setBackOffCount(cursor.getInt(cursor.getColumnIndex(COLUMN_BACK_OFF_COUNT)));
+        entry.setOptions(optionsFromCursor(cursor));
+        entry.mCreatedTime = cursor.getLong(cursor.getColumnIndex(COLUMN_CREATED_TIME));
+        return entry;
+    }
+
+    /***
+     * A journaled task instance
+     */
+    public static class Entry {
+        private final String mTag;
+        private Pack mData;
+        private long mNextTryTime;
+        private int mBackOffCount;
+        private long mCreatedTime;
+        private TaskOptions mOptions;
+
+        public Entry(String tag, Pack data, long nextTryTime) {
+            mTag = tag;
+            mData = data;
+            mNextTryTime = nextTryTime;
+        }
+
+        public Entry(String tag, Pack data, long nextTryTime, TaskOptions options) {
+            this(tag, data, nextTryTime);
+            mOptions = options;
+        }
+
+        public String getTag() {
+            return mTag;
+        }
+
+        public Pack getData() {
+            return mData;
+        }
+
+        public void setData(Pack data) {
+            mData = data;
+        }
+
+        public long getNextTryTime() {
+            return mNextTryTime;
+        }
+
+        public void setNextTryTime(long nextTryTime) {
+            mNextTryTime = nextTryTime;
+        }
+
+        public int getBackOffCount() {
+            return mBackOffCount;
+        }
+
+        public void setBackOffCount(int backOffCount) {
+            mBackOffCount = backOffCount;
+        }
+
+        /***
+         * @return options the task was scheduled with or {@code null} if they are unknown
+         */
+        public TaskOptions getOptions() {
+            return mOptions;
+        }
+
+        public void setOptions(TaskOptions options) {
+            mOptions = options;
+        }
+
+        /***
+         * @return {@code true} if the task runs periodically and its entry is kept after it completes
+         */
+        public boolean isPeriodic() {
+            return mOptions != null && mOptions.getPeriod() > 0;
+        }
+
+        /***
+         * @return time the task was scheduled in milliseconds, {@code 0} for entries not read from journal
+         */
+        public long getCreatedTime() {
+            return mCreatedTime;
+        }
+    }
+}
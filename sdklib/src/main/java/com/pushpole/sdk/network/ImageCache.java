@@ -0,0 +1,359 @@
+package com.pushpole.sdk.network;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+import com.pushpole.sdk.util.InvalidJsonException;
+import com.pushpole.sdk.util.Pack;
+
+/***
+ * Two level cache of downloaded images, shared by all {@link ImageDownloader}s
+ *
+ * Decoded bitmaps are kept in memory in an LRU cache sized in bytes. They are returned to every
+ * caller asking for the same key, so only immutable bitmaps are cached and callers must never
+ * recycle them. Downloaded files are kept in the cache directory with the validators and expiry
+ * time of their response, files used least recently are deleted when the directory grows over
+ * {@link #MAX_DISK_SIZE}. The modification time of a file is its last use, on filesystems which do
+ * not let it be changed the time is kept in the meta file instead.
+ */
+public class ImageCache {
+    final static long MAX_DISK_SIZE = 10 * 1024 * 1024L;
+    private final static int MAX_MEMORY_SIZE = 8 * 1024 * 1024;
+    private final static String DIRECTORY_NAME = "pushpole_images";
+    private final static String META_SUFFIX = ".meta";
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    private final static String META_URL = "url";
+    private final static String META_ETAG = "etag";
+    private final static String META_LAST_MODIFIED = "last_modified";
+    private final static String META_EXPIRES_AT = "expires_at";
+    private final static String META_ACCESSED_AT = "accessed_at";
+
+    private volatile static ImageCache mInstance;
+
+    private final File mDirectory;
+    private final long mMaxDiskSize;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private long mDiskSize = -1;
+
+    ImageCache(File directory, long maxDiskSize, int maxMemorySize) {
+        mDirectory = directory;
+        mMaxDiskSize = maxDiskSize;
+        mMemoryCache = new LruCache<String, Bitmap>(maxMemorySize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    public static ImageCache getInstance(Context context) {
+        if (mInstance == null) {
+            synchronized (ImageCache.class) {
+                if (mInstance == null) {
+                    int memorySize = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_MEMORY_SIZE);
+                    mInstance = new ImageCache(new File(context.getCacheDir(), DIRECTORY_NAME), MAX_DISK_SIZE,
+                            memorySize);
+                }
+            }
+        }
+        return mInstance;
+    }
+
+    /***
+     * @return the cached bitmap, shared with other callers and must not be recycled
+     */
+    public Bitmap getBitmap(String key) {
+        return mMemoryCache.get(key);
+    }
+
+    /***
+     * cache a decoded bitmap, mutable bitmaps are not cached since their owner may still change or
+     * recycle them
+     */
+    public void putBitmap(String key, Bitmap bitmap) {
+        if (bitmap != null && !bitmap.isMutable()) {
+            mMemoryCache.put(key, bitmap);
+        }
+    }
+
+    /***
+     * return the cached file of a url and mark it as recently used
+     *
+     * @param url the image url
+     * @return the entry or {@code null} if url is not cached
+     */
+    public synchronized DiskEntry getEntry(String url) {
+        String name = getFileName(url);
+        File file = new File(mDirectory, name);
+        File metaFile = new File(mDirectory, name + META_SUFFIX);
+        if (!file.exists() || !metaFile.exists()) {
+            return null;
+        }
+        try {
+            Pack meta = Pack.fromJson(readString(metaFile));
+            if (!url.equals(meta.getString(META_URL, null))) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            if (!file.setLastModified(now)) {
+                meta.putLong(META_ACCESSED_AT, now);
+                try {
+                    writeMetaFile(metaFile, meta);
+                } catch (IOException e) {
+                    Logger.warning("Recording image cache use failed", new LogData("Url", url));
+                }
+            }
+            return new DiskEntry(file, meta.getString(META_ETAG, null), meta.getString(META_LAST_MODIFIED, null),
+                    meta.getLong(META_EXPIRES_AT));
+        } catch (IOException | InvalidJsonException e) {
+            Logger.warning("Invalid image cache entry removed", new LogData("Url", url));
+            removeFile(file);
+            removeFile(metaFile);
+            return null;
+        }
+    }
+
+    /***
+     * @return a new file to download an image into before it is added with {@link #put}
+     */
+    public File newTempFile() throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Creating image cache directory failed");
+        }
+        return File.createTempFile("image", TEMP_SUFFIX, mDirectory);
+    }
+
+    /***
+     * add a downloaded image to disk cache, replacing the previous file of its url
+     *
+     * @param url          the image url
+     * @param downloaded   the file created by {@link #newTempFile()} holding the image
+     * @param etag         {@code ETag} of the response
+     * @param lastModified {@code Last-Modified} of the response
+     * @param expiresAt    time the file should be revalidated
+     * @return the cached entry
+     */
+    public synchronized DiskEntry put(String url, File downloaded, String etag, String lastModified, long expiresAt)
+            throws IOException {
+        String name = getFileName(url);
+        File file = new File(mDirectory, name);
+        ensureDiskSize();
+        mDiskSize -= file.length();
+        if (!downloaded.renameTo(file)) {
+            removeFile(downloaded);
+            throw new IOException("Moving downloaded image to cache failed");
+        }
+        mDiskSize += file.length();
+        DiskEntry entry = new DiskEntry(file, etag, lastModified, expiresAt);
+        writeMeta(url, entry);
+        trim();
+        return entry;
+    }
+
+    /***
+     * update expiry time of an entry revalidated by the server
+     */
+    public synchronized void refresh(String url, DiskEntry entry, long expiresAt) throws IOException {
+        entry.mExpiresAt = expiresAt;
+        writeMeta(url, entry);
+    }
+
+    private void writeMeta(String url, DiskEntry entry) throws IOException {
+        Pack meta = new Pack();
+        meta.putString(META_URL, url);
+        if (entry.getETag() != null) {
+            meta.putString(META_ETAG, entry.getETag());
+        }
+        if (entry.getLastModified() != null) {
+            meta.putString(META_LAST_MODIFIED, entry.getLastModified());
+        }
+        meta.putLong(META_EXPIRES_AT, entry.getExpiresAt());
+        writeMetaFile(new File(mDirectory, entry.getFile().getName() + META_SUFFIX), meta);
+    }
+
+    private static void writeMetaFile(File metaFile, Pack meta) throws IOException {
+        OutputStream out = new FileOutputStream(metaFile);
+        try {
+            out.write(meta.toJson().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void ensureDiskSize() {
+        if (mDiskSize >= 0) {
+            return;
+        }
+        mDiskSize = 0;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // left by a download interrupted in an earlier run
+                if (file.lastModified() < now - 60 * 60 * 1000L) {
+                    removeFile(file);
+                }
+            } else if (!file.getName().endsWith(META_SUFFIX)) {
+                mDiskSize += file.length();
+            }
+        }
+    }
+
+    /***
+     * delete least recently used files until disk cache is in its size limit
+     */
+    private void trim() {
+        if (mDiskSize <= mMaxDiskSize) {
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final Map<File, Long> accessTimes = new HashMap<>(files.length);
+        for (File file : files) {
+            accessTimes.put(file, getAccessTime(file));
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long difference = accessTimes.get(first) - accessTimes.get(second);
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        int removed = 0;
+        for (File file : files) {
+            if (mDiskSize <= mMaxDiskSize) {
+                break;
+            }
+            String name = file.getName();
+            if (name.endsWith(META_SUFFIX) || name.endsWith(TEMP_SUFFIX)) {
+                continue;
+            }
+            mDiskSize -= file.length();
+            removeFile(file);
+            removeFile(new File(mDirectory, name + META_SUFFIX));
+            removed++;
+        }
+        Logger.debug("Least recently used images removed from cache", new LogData(
+                "Count", String.valueOf(removed),
+                "Cache Size", String.valueOf(mDiskSize)
+        ));
+    }
+
+    /***
+     * @return last use of a cached file, the later of its modification time and the use recorded in
+     * its meta file
+     */
+    private long getAccessTime(File file) {
+        long accessedAt = file.lastModified();
+        String name = file.getName();
+        if (name.endsWith(META_SUFFIX) || name.endsWith(TEMP_SUFFIX)) {
+            return accessedAt;
+        }
+        File metaFile = new File(mDirectory, name + META_SUFFIX);
+        try {
+            Pack meta = Pack.fromJson(readString(metaFile));
+            if (meta.containsKey(META_ACCESSED_AT)) {
+                accessedAt = Math.max(accessedAt, meta.getLong(META_ACCESSED_AT));
+            }
+        } catch (IOException | InvalidJsonException e) {
+            // trimmed by its modification time
+        }
+        return accessedAt;
+    }
+
+    private static void removeFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Logger.warning("Deleting cached image failed", new LogData("File", file.getName()));
+        }
+    }
+
+    private static String readString(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            int count;
+            while (offset < buffer.length && (count = in.read(buffer, offset, buffer.length - offset)) != -1) {
+                offset += count;
+            }
+            return new String(buffer, 0, offset, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String getFileName(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return String.valueOf(url.hashCode() & 0x7FFFFFFF);
+        }
+    }
+
+    /***
+     * A downloaded image in disk cache
+     */
+    public static class DiskEntry {
+        private final File mFile;
+        private final String mETag;
+        private final String mLastModified;
+        private long mExpiresAt;
+
+        DiskEntry(File file, String etag, String lastModified, long expiresAt) {
+            mFile = file;
+            mETag = etag;
+            mLastModified = lastModified;
+            mExpiresAt = expiresAt;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public long getExpiresAt() {
+            return mExpiresAt;
+        }
+
+        /***
+         * @return {@code true} if the file can be used without revalidation
+         */
+        public boolean isFresh() {
+            return mExpiresAt > System.currentTimeMillis();
+        }
+    }
+}
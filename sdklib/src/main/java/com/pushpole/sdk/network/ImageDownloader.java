@@ -1,22 +1,59 @@
 package com.pushpole.sdk.network;
 
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Arrays;
 
 import com.pushpole.sdk.internal.log.LogData;
 import com.pushpole.sdk.internal.log.Logger;
 
 /***
  * A class for downloading notification image
+ *
+ * Downloaders created with a {@link Context} keep images in {@link ImageCache}. Cached files are
+ * used without network until they expire, then revalidated with {@code ETag} and
+ * {@code Last-Modified}, and used as they are if revalidation fails. Responses with
+ * {@code Cache-Control: no-store} are decoded from a temporary file which is deleted right after,
+ * they are never added to the cache. Downloaders without cache decode from memory. Bitmaps
+ * returned by cached downloaders may be shared through the memory cache and must not be recycled.
  */
 
 public class ImageDownloader {
-    //private Context mContext;
+    // freshness of responses without cache headers
+    final static long DEFAULT_FRESHNESS = 24 * 60 * 60 * 1000L;
+
+    // images are not decoded larger than this on either side
+    final static int MAX_IMAGE_SIZE = 2048;
+    private final static int SPOOL_BUFFER_SIZE = 64 * 1024;
+    private final static int MAX_SPOOL_SIZE = 16 * 1024 * 1024;
+
+    private final ImageCache mCache;
+    private boolean mPreferRgb565;
+
+    public ImageDownloader() {
+        mCache = null;
+    }
+
+    public ImageDownloader(Context context) {
+        mCache = ImageCache.getInstance(context);
+    }
+
+    /***
+     * decode images without alpha channel in {@link Bitmap.Config#RGB_565}, halving their memory
+     */
+    public void setPreferRgb565(boolean preferRgb565) {
+        mPreferRgb565 = preferRgb565;
+    }
 
     /***
      * Calculate the largest inSampleSize value that is a power of 2 and keeps both
@@ -51,9 +88,8 @@ public class ImageDownloader {
     }
 
     /***
-     * First decode with inJustDecodeBounds=true to check dimensions
-     * Calculate inSampleSize
-     * Decode bitmap with inSampleSize set
+     * Decode an image read once from a stream, sampled and scaled to the requested size
+     * see {@link #decodeSampledBitmapFromStream(InputStream, int, int, boolean, Bitmap)}
      *
      * @param stream
      * @param reqWidth
@@ -62,17 +98,168 @@ public class ImageDownloader {
      */
     public static Bitmap decodeSampledBitmapFromStream(InputStream stream,
                                                        int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromStream(stream, reqWidth, reqHeight, false, null);
+    }
+
+    /***
+     * Read the stream once into memory, decode only the image header to check dimensions, then
+     * decode straight to the requested size with inSampleSize and density scaling
+     *
+     * @param stream       the image stream, read to its end but not closed
+     * @param reqWidth     the desired width, the image is not made smaller than it, {@code 0} for
+     *                     the image width
+     * @param reqHeight    the desired height, the image is not made smaller than it, {@code 0} for
+     *                     the image height
+     * @param preferRgb565 decode images without alpha channel in {@link Bitmap.Config#RGB_565}
+     * @param reusable     a bitmap no longer in use whose memory is reused if it is large enough,
+     *                     may be {@code null}
+     * @return bitmap or {@code null} if the image could not be read
+     */
+    public static Bitmap decodeSampledBitmapFromStream(InputStream stream, int reqWidth, int reqHeight,
+                                                       boolean preferRgb565, Bitmap reusable) {
+        return decodeSampledBitmapFromStream(stream, -1, reqWidth, reqHeight, preferRgb565, reusable);
+    }
+
+    /***
+     * see {@link #decodeSampledBitmapFromStream(InputStream, int, int, boolean, Bitmap)}
+     *
+     * @param expectedLength length of the stream if known, e.g. from {@code Content-Length}, or
+     *                       {@code -1}. The stream is read into a buffer of this size, so a stream
+     *                       of the expected length is never copied to a larger buffer.
+     */
+    static Bitmap decodeSampledBitmapFromStream(InputStream stream, int expectedLength, int reqWidth,
+                                                int reqHeight, boolean preferRgb565, Bitmap reusable) {
+        byte[] data;
+        int length;
+        try {
+            if (expectedLength > MAX_SPOOL_SIZE) {
+                throw new IOException("Image is larger than " + MAX_SPOOL_SIZE + " bytes");
+            }
+            data = new byte[expectedLength > 0 ? expectedLength : SPOOL_BUFFER_SIZE];
+            length = 0;
+            while (true) {
+                if (length == data.length) {
+                    // grow only if the stream is longer than the buffer
+                    int next = stream.read();
+                    if (next == -1) {
+                        break;
+                    }
+                    if (data.length >= MAX_SPOOL_SIZE) {
+                        throw new IOException("Image is larger than " + MAX_SPOOL_SIZE + " bytes");
+                    }
+                    data = Arrays.copyOf(data, Math.min(data.length * 2, MAX_SPOOL_SIZE));
+                    data[length++] = (byte) next;
+                }
+                int count = stream.read(data, length, data.length - length);
+                if (count == -1) {
+                    break;
+                }
+                length += count;
+            }
+        } catch (IOException e) {
+            Logger.warning("Reading image failed", new LogData("Error", e.getMessage()));
+            return null;
+        }
 
         // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (!prepareDecode(options, reqWidth, reqHeight, preferRgb565, reusable)) {
+            return null;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            // the reusable bitmap could not be used
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+        return finishDecode(bitmap, options);
+    }
+
+    /***
+     * Decode an image file sampled and scaled to the requested size
+     * see {@link #decodeSampledBitmapFromStream(InputStream, int, int, boolean, Bitmap)}
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String path, int reqWidth, int reqHeight,
+                                                     boolean preferRgb565, Bitmap reusable) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(stream, null, options);
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        BitmapFactory.decodeFile(path, options);
+        if (!prepareDecode(options, reqWidth, reqHeight, preferRgb565, reusable)) {
+            return null;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // the reusable bitmap could not be used
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        return finishDecode(bitmap, options);
+    }
+
+    /***
+     * set decode options from the image bounds read into {@code options}
+     *
+     * @return {@code false} if the image header could not be read
+     */
+    static boolean prepareDecode(BitmapFactory.Options options, int reqWidth, int reqHeight,
+                                 boolean preferRgb565, Bitmap reusable) {
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Logger.warning("Decoding image bounds failed");
+            return false;
+        }
+        DecodeSize size = DecodeSize.calculate(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        options.inSampleSize = size.mSampleSize;
+        // Scale the rest of the way while decoding
+        options.inScaled = size.mScaled;
+        if (size.mScaled) {
+            options.inDensity = options.outWidth / size.mSampleSize;
+            options.inTargetDensity = size.mWidth;
+        }
 
-        // Decode bitmap with inSampleSize set
+        // jpeg images have no alpha channel
+        if (preferRgb565 && "image/jpeg".equals(options.outMimeType)) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+        if (reusable != null && canReuse(reusable, options, size.mWidth, size.mHeight)) {
+            options.inMutable = true;
+            options.inBitmap = reusable;
+        }
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeStream(stream, null, options);
+        return true;
+    }
+
+    /***
+     * the decoder tags a density scaled bitmap with {@code inTargetDensity}, which is a pixel width
+     * here and would make views scale the bitmap again, so it is marked as having no density
+     */
+    private static Bitmap finishDecode(Bitmap bitmap, BitmapFactory.Options options) {
+        if (bitmap != null && options.inScaled) {
+            bitmap.setDensity(Bitmap.DENSITY_NONE);
+        }
+        return bitmap;
+    }
+
+    /***
+     * check a bitmap can be decoded into, from API 19 any mutable bitmap large enough can be
+     * reused, before that only an unscaled and unsampled image of the same size and config
+     */
+    static boolean canReuse(Bitmap candidate, BitmapFactory.Options options, int width, int height) {
+        if (!candidate.isMutable() || candidate.isRecycled()) {
+            return false;
+        }
+        Bitmap.Config config = options.inPreferredConfig == null ? Bitmap.Config.ARGB_8888 : options.inPreferredConfig;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+            return (long) width * height * bytesPerPixel <= candidate.getAllocationByteCount();
+        }
+        return options.inSampleSize == 1 && !options.inScaled && candidate.getConfig() == config
+                && candidate.getWidth() == width && candidate.getHeight() == height;
     }
 
     /**
@@ -82,14 +269,11 @@ public class ImageDownloader {
      * @return The downloaded Bitmap image or null if downloading fails
      */
     public Bitmap downloadImage(String url) {
+        if (mCache != null) {
+            return downloadCachedImage(url, url, 0, 0);
+        }
         try {
-            URL imgUrl = new URL(url);
-            HttpURLConnection connection = (HttpURLConnection) imgUrl.openConnection();
-            connection.setDoInput(true);
-            connection.connect();
-            InputStream input = connection.getInputStream();
-
-            return BitmapFactory.decodeStream(input);
+            return downloadUncachedImage(url, 0, 0);
         } catch (IOException e) {
             Logger.warning("Downloading image failed", new LogData(
                     "Url", url
@@ -105,18 +289,247 @@ public class ImageDownloader {
      * @return The downloaded Bitmap image or null if downloading fails
      */
     public Bitmap downloadImage(String url, int reqWidth, int reqHeight) {
+        if (mCache != null) {
+            return downloadCachedImage(url, url + "@" + reqWidth + "x" + reqHeight, reqWidth, reqHeight);
+        }
+        try {
+            return downloadUncachedImage(url, reqWidth, reqHeight);
+        } catch (IOException e) {
+            Logger.warning("Downloading image failed", new LogData(
+                    "Url", url
+            ));
+            return null;
+        }
+    }
+
+    private Bitmap downloadUncachedImage(String url, int reqWidth, int reqHeight) throws IOException {
+        URL imgUrl = new URL(url);
+        HttpURLConnection connection = (HttpURLConnection) imgUrl.openConnection();
         try {
-            URL imgUrl = new URL(url);
-            HttpURLConnection connection = (HttpURLConnection) imgUrl.openConnection();
             connection.setDoInput(true);
             connection.connect();
             InputStream input = connection.getInputStream();
-            return decodeSampledBitmapFromStream(input, reqWidth, reqHeight);
+            try {
+                return decodeSampledBitmapFromStream(input, connection.getContentLength(), reqWidth, reqHeight,
+                        mPreferRgb565, null);
+            } finally {
+                input.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /***
+     * decode an image from memory cache, disk cache or network, in that order
+     *
+     * @param key key of the decoded bitmap in memory cache
+     * @param reqWidth the desired width or {@code 0} to decode in full size
+     */
+    private Bitmap downloadCachedImage(String url, String key, int reqWidth, int reqHeight) {
+        key = mPreferRgb565 ? key + "#rgb565" : key;
+        Bitmap bitmap = mCache.getBitmap(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        try {
+            bitmap = fetch(url, reqWidth, reqHeight);
+            mCache.putBitmap(key, bitmap);
+            return bitmap;
         } catch (IOException e) {
             Logger.warning("Downloading image failed", new LogData(
-                    "Url", url
+                    "Url", url,
+                    "Error", e.getMessage()
             ));
             return null;
         }
     }
+
+    /***
+     * decode the disk cached file of an image, downloading or revalidating it if it is not fresh
+     */
+    private Bitmap fetch(String url, int reqWidth, int reqHeight) throws IOException {
+        ImageCache.DiskEntry entry = mCache.getEntry(url);
+        if (entry != null && entry.isFresh()) {
+            Bitmap bitmap = decodeFile(entry.getFile(), reqWidth, reqHeight);
+            if (bitmap != null || entry.getFile().exists()) {
+                return bitmap;
+            }
+            // trimmed by another download since it was looked up
+            entry = null;
+        }
+        return download(url, entry, reqWidth, reqHeight, true);
+    }
+
+    /***
+     * download an image into disk cache, or revalidate the stale cached file {@code entry}
+     *
+     * @param retry download once more if the file is trimmed by another download before it is
+     *              decoded
+     */
+    private Bitmap download(String url, ImageCache.DiskEntry entry, int reqWidth, int reqHeight,
+                            boolean retry) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setDoInput(true);
+            if (entry != null && entry.getETag() != null) {
+                connection.setRequestProperty("If-None-Match", entry.getETag());
+            }
+            if (entry != null && entry.getLastModified() != null) {
+                connection.setRequestProperty("If-Modified-Since", entry.getLastModified());
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                mCache.refresh(url, entry, getExpiresAt(connection));
+                Bitmap bitmap = decodeFile(entry.getFile(), reqWidth, reqHeight);
+                if (bitmap == null && !entry.getFile().exists()) {
+                    return download(url, null, reqWidth, reqHeight, retry);
+                }
+                return bitmap;
+            } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response code " + responseCode);
+            }
+
+            File downloaded = mCache.newTempFile();
+            if (isNoStore(connection.getHeaderField("Cache-Control"))) {
+                try {
+                    writeToFile(connection, downloaded);
+                    return decodeFile(downloaded, reqWidth, reqHeight);
+                } finally {
+                    downloaded.delete();
+                }
+            }
+            writeToFile(connection, downloaded);
+            File file = mCache.put(url, downloaded, connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"), getExpiresAt(connection)).getFile();
+            Bitmap bitmap = decodeFile(file, reqWidth, reqHeight);
+            if (bitmap == null && retry && !file.exists()) {
+                return download(url, null, reqWidth, reqHeight, false);
+            }
+            return bitmap;
+        } catch (IOException e) {
+            if (entry == null) {
+                throw e;
+            }
+            Bitmap bitmap = decodeFile(entry.getFile(), reqWidth, reqHeight);
+            if (bitmap == null && !entry.getFile().exists()) {
+                throw e;
+            }
+            Logger.debug("Revalidating cached image failed, using cached file", new LogData(
+                    "Url", url
+            ));
+            return bitmap;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /***
+     * write the response body to a file, which is deleted if the download fails
+     */
+    private static void writeToFile(HttpURLConnection connection, File file) throws IOException {
+        InputStream in = connection.getInputStream();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private Bitmap decodeFile(File file, int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromFile(file.getPath(), reqWidth, reqHeight, mPreferRgb565, null);
+    }
+
+    /***
+     * @param cacheControl {@code Cache-Control} header of a response, may be {@code null}
+     * @return {@code true} if the response must not be stored
+     */
+    static boolean isNoStore(String cacheControl) {
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String directive : cacheControl.split(",")) {
+            if (directive.trim().equalsIgnoreCase("no-store")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /***
+     * expiry time from {@code Cache-Control} or {@code Expires} headers, {@link #DEFAULT_FRESHNESS}
+     * if the response has none
+     */
+    private static long getExpiresAt(HttpURLConnection connection) {
+        long now = System.currentTimeMillis();
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring("max-age=".length())) * 1000L;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        long expiration = connection.getExpiration();
+        return expiration > 0 ? expiration : now + DEFAULT_FRESHNESS;
+    }
+
+    /***
+     * Size an image is decoded to, the largest power of 2 sample size which does not go below the
+     * target size and the target size reached from it by density scaling
+     */
+    static class DecodeSize {
+        final int mSampleSize;
+        final int mWidth;
+        final int mHeight;
+        final boolean mScaled;
+
+        private DecodeSize(int sampleSize, int width, int height, boolean scaled) {
+            mSampleSize = sampleSize;
+            mWidth = width;
+            mHeight = height;
+            mScaled = scaled;
+        }
+
+        /***
+         * @param reqWidth  the desired width, {@code 0} for the image width
+         * @param reqHeight the desired height, {@code 0} for the image height
+         */
+        static DecodeSize calculate(int imageWidth, int imageHeight, int reqWidth, int reqHeight) {
+            reqWidth = reqWidth > 0 ? reqWidth : imageWidth;
+            reqHeight = reqHeight > 0 ? reqHeight : imageHeight;
+
+            // target size keeps both dimensions at least as large as requested and at most MAX_IMAGE_SIZE
+            float scale = Math.max((float) reqWidth / imageWidth, (float) reqHeight / imageHeight);
+            scale = Math.min(scale, Math.min((float) MAX_IMAGE_SIZE / imageWidth,
+                    (float) MAX_IMAGE_SIZE / imageHeight));
+            scale = Math.min(scale, 1f);
+            int width = Math.max(1, Math.round(imageWidth * scale));
+            int height = Math.max(1, Math.round(imageHeight * scale));
+
+            int sampleSize = 1;
+            while (imageWidth / (sampleSize * 2) >= width && imageHeight / (sampleSize * 2) >= height) {
+                sampleSize *= 2;
+            }
+            if (imageWidth / sampleSize > width) {
+                return new DecodeSize(sampleSize, width, height, true);
+            }
+            return new DecodeSize(sampleSize, imageWidth / sampleSize, imageHeight / sampleSize, false);
+        }
+    }
 }
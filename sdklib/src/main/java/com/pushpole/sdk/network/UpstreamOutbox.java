@@ -0,0 +1,290 @@
+package com.pushpole.sdk.network;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.pushpole.sdk.Constants;
+import com.pushpole.sdk.SdkConfig;
+import com.pushpole.sdk.internal.db.OutboxDbOperation;
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+import com.pushpole.sdk.message.upstream.RefactoredUpstreamMessage;
+import com.pushpole.sdk.task.PushPoleAsyncTask;
+import com.pushpole.sdk.task.Result;
+import com.pushpole.sdk.task.TaskHandle;
+import com.pushpole.sdk.task.TaskManager;
+import com.pushpole.sdk.task.executor.Lane;
+import com.pushpole.sdk.util.InvalidJsonException;
+import com.pushpole.sdk.util.ListPack;
+import com.pushpole.sdk.util.Pack;
+
+/***
+ * Collects upstream messages in {@link OutboxDbOperation} and sends them in batches
+ *
+ * A flush sends the waiting messages in upstream messages of at most {@link #MAX_BATCH_MESSAGES}
+ * messages and {@link #MAX_BATCH_LENGTH} characters. Until the server enables batches through
+ * {@link SdkConfig#UPSTREAM_BATCH} messages skip the outbox and are sent right away, messages
+ * still waiting from a time batches were enabled are then flushed one at a time. Flushes run when the waiting messages reach
+ * {@link #FLUSH_THRESHOLD_MESSAGES} or {@link #FLUSH_THRESHOLD_LENGTH}, {@link #MAX_FLUSH_DELAY}
+ * after a message is added, on initialize, and when the device gets connected after a flush was
+ * skipped for lack of network. Messages are deleted when the upstream message carrying them is
+ * acknowledged by {@link #onMessageSent(String)}.
+ */
+public class UpstreamOutbox {
+    // key of the list of messages in a batch upstream message
+    public final static String BATCH_KEY = "batch";
+
+    final static int MAX_BATCH_MESSAGES = 50;
+    final static long MAX_BATCH_LENGTH = 3072; // upstream payloads are limited to 4KB
+    final static int FLUSH_THRESHOLD_MESSAGES = 20;
+    final static long FLUSH_THRESHOLD_LENGTH = 2048;
+    final static long MAX_FLUSH_DELAY = 60 * 1000L;
+    final static long ACK_TIMEOUT = 10 * 60 * 1000L;
+    final static long MAX_MESSAGE_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    private volatile static UpstreamOutbox mInstance;
+
+    private final Context mContext;
+    private final OutboxDbOperation mDbOperation;
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean mWaitingForNetwork = new AtomicBoolean(false);
+    private volatile Sender mSender;
+    private volatile long mFlushDelay = MAX_FLUSH_DELAY;
+
+    private UpstreamOutbox(Context context) {
+        mContext = context.getApplicationContext() == null ? context : context.getApplicationContext();
+        mDbOperation = OutboxDbOperation.getInstance(mContext);
+        mSender = new Sender() {
+            @Override
+            public void send(Pack message) {
+                new UpstreamSender(mContext).sendMessage(message);
+            }
+        };
+    }
+
+    public static UpstreamOutbox getInstance(Context context) {
+        if (mInstance == null) {
+            synchronized (UpstreamOutbox.class) {
+                if (mInstance == null) {
+                    mInstance = new UpstreamOutbox(context);
+                }
+            }
+        }
+        return mInstance;
+    }
+
+    /***
+     * add an upstream message to outbox, the message must already have a message id
+     * the message is sent right away while the server has not enabled batches
+     *
+     * @param message the message
+     */
+    public void enqueue(Pack message) {
+        if (!SdkConfig.get(mContext).isUpstreamBatchEnabled()) {
+            mSender.send(message);
+            return;
+        }
+        String messageId = message.getString(Constants.getVal(Constants.MESSAGE_ID), null);
+        if (messageId == null) {
+            Logger.warning("Upstream message without message id sent directly");
+            mSender.send(message);
+            return;
+        }
+        if (!mDbOperation.add(messageId, message.toJson(), System.currentTimeMillis())) {
+            Logger.debug("Upstream message already in outbox", new LogData("Message Id", messageId));
+            return;
+        }
+
+        long resendBefore = System.currentTimeMillis() - ACK_TIMEOUT;
+        if (mDbOperation.getSendableCount(resendBefore) >= FLUSH_THRESHOLD_MESSAGES
+                || mDbOperation.getSendableLength(resendBefore) >= FLUSH_THRESHOLD_LENGTH) {
+            flush();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    /***
+     * send waiting messages in background
+     */
+    public void flush() {
+        TaskManager.getInstance(mContext).asyncTask(Lane.CONTROL, new FlushTask());
+    }
+
+    /***
+     * send waiting messages in batches, called on a background thread
+     *
+     * @return number of sent messages
+     */
+    public synchronized int flushNow() {
+        mFlushScheduled.set(false);
+        long now = System.currentTimeMillis();
+        int removed = mDbOperation.removeOlderThan(now - MAX_MESSAGE_AGE);
+        if (removed > 0) {
+            Logger.warning("Outdated upstream messages removed from outbox", new LogData(
+                    "Count", String.valueOf(removed)
+            ));
+        }
+        if (!isConnected()) {
+            waitForNetwork();
+            return 0;
+        }
+
+        int maxMessages = SdkConfig.get(mContext).isUpstreamBatchEnabled() ? MAX_BATCH_MESSAGES : 1;
+        int sent = 0;
+        List<OutboxDbOperation.Entry> entries;
+        while (!(entries = mDbOperation.getSendable(now - ACK_TIMEOUT, maxMessages, MAX_BATCH_LENGTH)).isEmpty()) {
+            Pack message = buildMessage(entries);
+            if (message == null) {
+                continue;
+            }
+            String messageId = message.getString(Constants.getVal(Constants.MESSAGE_ID), null);
+            mDbOperation.markSent(entries, messageId, now);
+            mSender.send(message);
+            sent += entries.size();
+        }
+        if (sent > 0) {
+            Logger.debug("Upstream outbox flushed", new LogData("Messages", String.valueOf(sent)));
+        }
+        return sent;
+    }
+
+    /***
+     * delete messages delivered by an upstream message, called when it is acknowledged
+     *
+     * @param messageId id of the upstream message
+     */
+    public void onMessageSent(String messageId) {
+        if (messageId != null) {
+            mDbOperation.acknowledge(messageId);
+        }
+    }
+
+    /***
+     * keep messages of a failed upstream message for the next flush
+     *
+     * @param messageId id of the upstream message
+     */
+    public void onSendError(String messageId) {
+        if (messageId != null && mDbOperation.release(messageId) > 0) {
+            scheduleFlush();
+        }
+    }
+
+    /***
+     * flush after the flush delay unless a flush is already scheduled
+     * a flush dropped by a full lane lets the next message schedule another one
+     */
+    private void scheduleFlush() {
+        if (!mFlushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        TaskHandle handle = TaskManager.getInstance(mContext).asyncTaskDelayed(Lane.CONTROL, new FlushTask(), mFlushDelay);
+        handle.addCallback(new TaskHandle.Callback() {
+            @Override
+            public void onComplete(Result result) {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+            }
+
+            @Override
+            public void onCancel() {
+                mFlushScheduled.set(false);
+            }
+        });
+    }
+
+    /***
+     * a single message is sent as it is, several messages are sent as a list under
+     * {@link #BATCH_KEY} with a message id of their own
+     * messages which can not be parsed are dropped from outbox
+     *
+     * @return the upstream message or {@code null} if none of the messages could be parsed
+     */
+    private Pack buildMessage(List<OutboxDbOperation.Entry> entries) {
+        ListPack messages = new ListPack();
+        Iterator<OutboxDbOperation.Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            OutboxDbOperation.Entry entry = iterator.next();
+            try {
+                messages.add(Pack.fromJson(entry.getData()));
+            } catch (InvalidJsonException e) {
+                Logger.error("Invalid message removed from upstream outbox", new LogData(
+                        "Message Id", entry.getMessageId()
+                ));
+                mDbOperation.acknowledge(entry.getMessageId());
+                iterator.remove();
+            }
+        }
+
+        if (entries.isEmpty()) {
+            return null;
+        } else if (entries.size() == 1) {
+            return (Pack) messages.get(0);
+        }
+        Pack batch = new Pack();
+        batch.put(BATCH_KEY, messages);
+        return new RefactoredUpstreamMessage.Factory().addMessageIdToPack(batch);
+    }
+
+    void setSender(Sender sender) {
+        mSender = sender;
+    }
+
+    void setFlushDelay(long flushDelay) {
+        mFlushDelay = flushDelay;
+    }
+
+    private boolean isConnected() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return true;
+        }
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    /***
+     * flush once the device is connected
+     */
+    private void waitForNetwork() {
+        if (!mWaitingForNetwork.compareAndSet(false, true)) {
+            return;
+        }
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (isConnected()) {
+                    mContext.unregisterReceiver(this);
+                    mWaitingForNetwork.set(false);
+                    flush();
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /***
+     * Sends an upstream message, replaced in tests
+     */
+    interface Sender {
+        void send(Pack message);
+    }
+
+    private class FlushTask extends PushPoleAsyncTask {
+        @Override
+        public void run(Context context) {
+            flushNow();
+        }
+    }
+}
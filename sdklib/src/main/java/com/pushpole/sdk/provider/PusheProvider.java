@@ -1,9 +1,11 @@
 package com.pushpole.sdk.provider;
 
 import android.content.Context;
+import android.os.Bundle;
 import android.support.v4.content.FileProvider;
 
 import com.pushpole.sdk.internal.db.KeyStore;
+import com.pushpole.sdk.internal.db.KeyStoreSync;
 import com.pushpole.sdk.internal.log.ExceptionCatcher;
 import com.pushpole.sdk.internal.log.Logger;
 import com.pushpole.sdk.internal.log.Sentry;
@@ -36,4 +38,19 @@ public class PushPoleProvider extends FileProvider {
         }
         return true;
     }
+
+    /***
+     * receive {@link KeyStore} changes of other processes, see {@link KeyStoreSync}
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        Context context = getContext();
+        if (context != null) {
+            Bundle result = KeyStoreSync.handleCall(context, method, extras);
+            if (result != null) {
+                return result;
+            }
+        }
+        return super.call(method, arg, extras);
+    }
 }
@@ -0,0 +1,36 @@
+package com.pushpole.sdk.task;
+
+import java.util.Random;
+
+import com.pushpole.sdk.task.options.RetryPolicy;
+
+/***
+ * Exponential backoff with full jitter
+ * the delay before retry {@code n} is picked uniformly from
+ * {@code [0, min(maxBackoff, initialBackoff * 2^(n-1))]}, so devices failing at the same time
+ * spread their retries instead of retrying in synchronized waves
+ */
+final class Backoff {
+    private final static Random sRandom = new Random();
+
+    private Backoff() {
+    }
+
+    /***
+     * @param policy  the retry policy
+     * @param attempt number of the failed attempt, starting from 1
+     * @return delay before the next attempt in milliseconds
+     */
+    static long getDelay(RetryPolicy policy, int attempt) {
+        return getDelay(policy.initialBackoff(), policy.maxBackoff(), attempt, sRandom);
+    }
+
+    static long getDelay(long initialBackoff, long maxBackoff, int attempt, Random random) {
+        int shift = Math.max(0, Math.min(attempt - 1, 30));
+        long ceiling = initialBackoff << shift;
+        if (ceiling <= 0 || ceiling > maxBackoff || (ceiling >> shift) != initialBackoff) {
+            ceiling = maxBackoff;
+        }
+        return (long) (random.nextDouble() * ceiling);
+    }
+}
@@ -0,0 +1,149 @@
+package com.pushpole.sdk.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+import com.pushpole.sdk.task.executor.Lane;
+import com.pushpole.sdk.task.executor.LaneExecutor;
+
+/***
+ * A small graph of async tasks with explicit dependencies, run with {@link TaskManager#runGraph(TaskGraph)}
+ * every task is submitted to its lane as soon as all the tasks it depends on have finished,
+ * tasks without dependencies start immediately
+ *
+ * A task runs after its dependencies whether they succeeded or failed, tasks should check their
+ * own preconditions; if a dependency is cancelled its dependents are skipped
+ */
+public class TaskGraph {
+    private final List<Node> mNodes = new ArrayList<>();
+    private boolean mStarted;
+
+    /***
+     * add a task to the graph
+     *
+     * @param name         name of the task, used in logs
+     * @param lane         lane to run the task on
+     * @param task         the task
+     * @param dependencies tasks which must finish before this task starts
+     * @return node of the task, to be used as dependency of other tasks
+     */
+    public synchronized Node add(String name, Lane lane, PushPoleAsyncTask task, Node... dependencies) {
+        return add(name, lane, 0, task, dependencies);
+    }
+
+    /***
+     * add a task which is cancelled if it runs longer than {@code deadline}, its dependents are
+     * then skipped
+     *
+     * @param deadline maximum run time in milliseconds, {@code 0} for no deadline
+     * @see #add(String, Lane, PushPoleAsyncTask, Node...)
+     */
+    public synchronized Node add(String name, Lane lane, long deadline, PushPoleAsyncTask task,
+                                 Node... dependencies) {
+        if (mStarted) {
+            throw new IllegalStateException("Cannot add tasks to a started graph");
+        }
+        Node node = new Node(name, lane, task, deadline, dependencies.length);
+        for (Node dependency : dependencies) {
+            if (!mNodes.contains(dependency)) {
+                throw new IllegalArgumentException("Dependency " + dependency.getName() + " is not in graph");
+            }
+            dependency.mDependents.add(node);
+        }
+        mNodes.add(node);
+        return node;
+    }
+
+    public synchronized List<Node> getNodes() {
+        return Collections.unmodifiableList(mNodes);
+    }
+
+    void start(TaskManager taskManager) {
+        List<Node> roots = new ArrayList<>();
+        synchronized (this) {
+            if (mStarted) {
+                throw new IllegalStateException("Graph already started");
+            }
+            mStarted = true;
+            for (Node node : mNodes) {
+                if (node.mPendingDependencies.get() == 0) {
+                    roots.add(node);
+                }
+            }
+        }
+        for (Node node : roots) {
+            submit(taskManager, node);
+        }
+    }
+
+    private void submit(final TaskManager taskManager, final Node node) {
+        TaskHandle handle = taskManager.asyncTask(node.mLane, LaneExecutor.PRIORITY_NORMAL, node.mTask, null,
+                node.mDeadline);
+        node.mHandle = handle;
+        handle.addCallback(new TaskHandle.Callback() {
+            @Override
+            public void onComplete(Result result) {
+                onFinished(taskManager, node);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                Logger.warning("Task of graph failed, running its dependents", new LogData(
+                        "Task", node.mName
+                ));
+                onFinished(taskManager, node);
+            }
+
+            @Override
+            public void onCancel() {
+                Logger.warning("Task of graph cancelled, skipping its dependents", new LogData(
+                        "Task", node.mName
+                ));
+            }
+        });
+    }
+
+    private void onFinished(TaskManager taskManager, Node node) {
+        for (Node dependent : node.mDependents) {
+            if (dependent.mPendingDependencies.decrementAndGet() == 0) {
+                submit(taskManager, dependent);
+            }
+        }
+    }
+
+    /***
+     * A task of the graph
+     */
+    public static class Node {
+        private final String mName;
+        private final Lane mLane;
+        private final PushPoleAsyncTask mTask;
+        private final long mDeadline;
+        private final AtomicInteger mPendingDependencies;
+        private final List<Node> mDependents = new ArrayList<>();
+        private volatile TaskHandle mHandle;
+
+        Node(String name, Lane lane, PushPoleAsyncTask task, long deadline, int dependencyCount) {
+            mName = name;
+            mLane = lane;
+            mTask = task;
+            mDeadline = deadline;
+            mPendingDependencies = new AtomicInteger(dependencyCount);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /***
+         * @return handle of the submitted task or {@code null} if the task has not started yet
+         */
+        public TaskHandle getHandle() {
+            return mHandle;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.pushpole.sdk.task;
+
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+import com.pushpole.sdk.task.executor.Lane;
+import com.pushpole.sdk.task.executor.LaneExecutor;
+
+/***
+ * Handle of an async task submitted to {@link TaskManager}
+ * the task can be cancelled or waited for like any {@link java.util.concurrent.Future},
+ * callbacks are notified once the task completes, fails or is cancelled
+ *
+ * If the task has a deadline and is still running when the deadline passes, a watchdog reports
+ * the overrun, interrupts the task and lets its lane use an extra thread until the task returns.
+ * Tasks without a deadline have no watchdog.
+ */
+public class TaskHandle extends FutureTask<Result> {
+    // the extra thread is released by whichever of the watchdog and the returning task comes last
+    private final static int STATE_RUNNING = 0;
+    private final static int STATE_EXTRA_THREAD = 1;
+    private final static int STATE_RETURNED = 2;
+
+    private final String mName;
+    private final Lane mLane;
+    private final long mDeadline;
+    private final LaneExecutor mExecutor;
+    private final TaskStats mStats;
+    private final List<Callback> mCallbacks = new CopyOnWriteArrayList<>();
+
+    private volatile ScheduledFuture<?> mWatchdog;
+    private volatile boolean mOverrun;
+    private final AtomicInteger mState = new AtomicInteger(STATE_RUNNING);
+
+    TaskHandle(Callable<Result> callable, String name, Lane lane, long deadline,
+               LaneExecutor executor, TaskStats stats) {
+        super(callable);
+        mName = name;
+        mLane = lane;
+        mDeadline = deadline;
+        mExecutor = executor;
+        mStats = stats;
+    }
+
+    /***
+     * add a callback, it is called immediately if the task is already done
+     *
+     * @param callback the callback
+     * @return this handle
+     */
+    public TaskHandle addCallback(Callback callback) {
+        mCallbacks.add(callback);
+        if (isDone() && mCallbacks.remove(callback)) {
+            notifyCallback(callback);
+        }
+        return this;
+    }
+
+    /***
+     * @return {@code true} if the task has run longer than its deadline
+     */
+    public boolean isOverrun() {
+        return mOverrun;
+    }
+
+    @Override
+    public void run() {
+        if (isDone()) {
+            return;
+        }
+        final long startTime = SystemClock.elapsedRealtime();
+        if (mDeadline > 0) {
+            mWatchdog = mExecutor.scheduleOnTimer(new Runnable() {
+                @Override
+                public void run() {
+                    onDeadlinePassed(startTime);
+                }
+            }, mDeadline);
+        }
+        try {
+            super.run();
+        } finally {
+            // the lane gets its thread back once the stuck task has actually returned, not when it is cancelled
+            if (mState.getAndSet(STATE_RETURNED) == STATE_EXTRA_THREAD) {
+                mExecutor.releaseExtraThread(mLane);
+            }
+        }
+    }
+
+    private void onDeadlinePassed(long startTime) {
+        if (isDone()) {
+            return;
+        }
+        mOverrun = true;
+        mStats.recordOverrun();
+        if (mExecutor.addExtraThread(mLane) && !mState.compareAndSet(STATE_RUNNING, STATE_EXTRA_THREAD)) {
+            // the task returned meanwhile
+            mExecutor.releaseExtraThread(mLane);
+        }
+        Logger.warning("Async task overran its deadline, cancelling", new LogData(
+                "Task", mName,
+                "Lane", mLane.name(),
+                "Running", String.valueOf(SystemClock.elapsedRealtime() - startTime)
+        ));
+        cancel(true);
+    }
+
+    @Override
+    protected void done() {
+        ScheduledFuture<?> watchdog = mWatchdog;
+        if (watchdog != null) {
+            mExecutor.cancelOnTimer(watchdog);
+        }
+        for (Callback callback : mCallbacks) {
+            if (mCallbacks.remove(callback)) {
+                notifyCallback(callback);
+            }
+        }
+    }
+
+    private void notifyCallback(Callback callback) {
+        try {
+            if (isCancelled()) {
+                callback.onCancel();
+                return;
+            }
+            try {
+                callback.onComplete(get());
+            } catch (ExecutionException e) {
+                callback.onError(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (Exception e) {
+            Logger.error("Error in async task callback", e);
+        }
+    }
+
+    /***
+     * Notified once when the task is done
+     */
+    public interface Callback {
+        void onComplete(Result result);
+
+        void onError(Throwable error);
+
+        void onCancel();
+    }
+}
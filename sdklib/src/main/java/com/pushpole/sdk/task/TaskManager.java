@@ -2,45 +2,76 @@ package com.pushpole.sdk.task;
 
 import android.content.Context;
 import android.content.Intent;
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.pushpole.sdk.Constants;
 import com.pushpole.sdk.internal.db.KeyStore;
+import com.pushpole.sdk.internal.db.PackCodec;
+import com.pushpole.sdk.internal.db.TaskJournal;
 import com.pushpole.sdk.internal.log.LogData;
 import com.pushpole.sdk.internal.log.Logger;
 import com.pushpole.sdk.service.IntentTaskRunner;
 import com.pushpole.sdk.task.options.DefaultOptions;
-import com.pushpole.sdk.task.options.Defaults;
-import com.pushpole.sdk.task.options.SingletonTask;
+import com.pushpole.sdk.task.options.RetryPolicy;
 import com.pushpole.sdk.task.options.TaskOptions;
+import com.pushpole.sdk.task.executor.Lane;
+import com.pushpole.sdk.task.executor.LaneExecutor;
+import com.pushpole.sdk.task.scheduler.BatchScheduler;
+import com.pushpole.sdk.task.scheduler.ScheduleInspector;
 import com.pushpole.sdk.task.scheduler.Scheduler;
+import com.pushpole.sdk.task.scheduler.evernote.EvernoteScheduleInspector;
 import com.pushpole.sdk.task.scheduler.evernote.EvernoteScheduler;
 import com.pushpole.sdk.task.tasks.NotificationHandleTask;
 import com.pushpole.sdk.util.IdGenerator;
 import com.pushpole.sdk.util.InvalidJsonException;
+import com.pushpole.sdk.util.ListPack;
 import com.pushpole.sdk.util.Pack;
 
-import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
-
 /***
  * A singleton class for scheduling tasks
  * task will be scheduled to run with {GcmNetworkManager} or {@link IntentTaskRunner}
  * if GcmNetworkManager not available then task will be scheduled with {FallbackGcmNetworkManager}
  */
 public class TaskManager {
+    private final static long RECOVERY_GRACE_PERIOD = 6 * 60 * 60 * 1000L; // 6 hours
+    private final static int MAX_RECOVERED_TASKS = 100;
+    private final static long LEGACY_TASK_DATA_TTL = 7 * 24 * 60 * 60 * 1000L; // 1 week
+    private final static long ORPHAN_COLLECTION_INTERVAL = 24 * 60 * 60 * 1000L; // 1 day
+    private final static long ORPHAN_MAX_AGE = 7 * 24 * 60 * 60 * 1000L; // 1 week
+    private final static int MAX_COLLECTED_ORPHANS = 500;
+    private final static String LAST_ORPHAN_COLLECTION_TIME = "task_orphan_collection_time";
+    private final static String LEGACY_TASK_DATA_KEYS = "task_legacy_data_keys";
+    private final static String LEGACY_TASK_DATA_BACKFILLED = "task_legacy_data_backfilled";
+
     private volatile static TaskManager mInstance;
 
     private Map<String, PushPoleAsyncTask> mAsyncTaskStore;
 
 
     private Scheduler mScheduler;
+    private ScheduleInspector mScheduleInspector;
     private Context mContext;
 
-    private Handler mHandler;
+    private volatile LaneExecutor mExecutor;
+    private volatile long mIdleTimeout = LaneExecutor.DEFAULT_IDLE_TIMEOUT;
+    private final TaskMetrics mMetrics = new TaskMetrics();
+    // singleton task types whose legacy jobs were cancelled in this process
+    private final Set<Class<? extends PushPoleTask>> mLegacyCancelled =
+            Collections.newSetFromMap(new ConcurrentHashMap<Class<? extends PushPoleTask>, Boolean>());
+    // tags of scheduled tasks running in this process, schedulers no longer list them as pending
+    private final Set<String> mRunningTags = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /***
      * private constructor
@@ -49,10 +80,7 @@ public class TaskManager {
     private TaskManager(Context context) {
         mAsyncTaskStore = new HashMap<>();
         mScheduler = new EvernoteScheduler(context);
-
-        HandlerThread handlerThread = new HandlerThread("pushpole-background", THREAD_PRIORITY_BACKGROUND);
-        handlerThread.start();
-        mHandler = new Handler(handlerThread.getLooper());
+        mScheduleInspector = new EvernoteScheduleInspector();
     }
 
     /***
@@ -80,6 +108,55 @@ public class TaskManager {
         return mScheduler;
     }
 
+    /***
+     * return the background executor, it is created on first use
+     * its threads start when tasks are submitted and stop after being idle
+     */
+    private LaneExecutor getExecutor() {
+        LaneExecutor executor = mExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = mExecutor;
+                if (executor == null) {
+                    executor = new LaneExecutor(mIdleTimeout);
+                    mExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /***
+     * set the time background threads stay alive without tasks to run
+     *
+     * @param idleTimeout the timeout in milliseconds, must be positive
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        mIdleTimeout = idleTimeout;
+        if (mExecutor != null) {
+            mExecutor.setIdleTimeout(idleTimeout);
+        }
+    }
+
+    /***
+     * @return number of background threads currently alive
+     */
+    public int getLiveThreadCount() {
+        LaneExecutor executor = mExecutor;
+        return executor == null ? 0 : executor.getLiveThreadCount();
+    }
+
+    /***
+     * replace the scheduler, e.g. with the in-memory scheduler of tests
+     *
+     * @param scheduler the scheduler
+     */
+    @VisibleForTesting
+    void setScheduler(Scheduler scheduler) {
+        mScheduler = scheduler;
+        mScheduleInspector = scheduler instanceof ScheduleInspector ? (ScheduleInspector) scheduler : null;
+    }
+
     public Intent createTaskIntent(Class<? extends PushPoleTask> taskType, Pack taskData) {
         Intent intent = new Intent(mContext, IntentTaskRunner.class);
         intent.setAction(Constants.getVal(Constants.ACTION_RUN_TASK));
@@ -102,41 +179,131 @@ public class TaskManager {
 //        intent.putExtra(Constants.getVal(Constants.TASK_ID), task.getId());
 //        mAsyncTaskStore.put(task.getId(), task);
 //        mContext.startService(intent);
+        asyncTask(Lane.CONTROL, LaneExecutor.PRIORITY_NORMAL, task, taskData);
+    }
+
+    /***
+     * run {@link PushPoleAsyncTask} on the given {@link Lane} of the background executor
+     *
+     * @param lane     the lane, user visible work should use {@link Lane#RENDER}
+     * @param priority priority of the task inside its lane
+     * @param task     the task
+     * @param taskData the task data, could be {@code null}
+     */
+    public void asyncTask(Lane lane, int priority, final PushPoleAsyncTask task, final Pack taskData) {
+        asyncTask(lane, priority, task, taskData, 0);
+    }
+
+    /***
+     * run {@link PushPoleAsyncTask} on the given {@link Lane} of the background executor
+     * the task is cancelled and reported if it runs longer than {@code deadline}
+     *
+     * @param lane     the lane, user visible work should use {@link Lane#RENDER}
+     * @param priority priority of the task inside its lane
+     * @param task     the task
+     * @param taskData the task data, could be {@code null}
+     * @param deadline maximum run time in milliseconds, {@code 0} for no deadline
+     * @return handle to cancel or wait for the task
+     */
+    public TaskHandle asyncTask(Lane lane, int priority, PushPoleAsyncTask task, Pack taskData, long deadline) {
+        TaskHandle handle = createTaskHandle(lane, task, taskData, deadline, 0);
         try {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        task.runTask(mContext, taskData);
-                    } catch (Exception e) {
-                        Logger.error("Error occurred while running async task", e);
-                        android.util.Log.e("PushPole", "Failed to run PushPole task", e);
-                    }
-                }
-            });
+            boolean accepted = getExecutor().submit(lane, priority, handle);
+            if (!accepted) {
+                android.util.Log.w("PushPole", "PushPole task dropped, " + lane + " queue is full");
+                handle.cancel(false);
+            }
         } catch (Exception e) {
             Logger.error("Error occurred while running task on async thread", e);
             android.util.Log.e("PushPole", "Failed to run PushPole task on async thread", e);
+            handle.cancel(false);
         }
+        return handle;
+    }
+
+    /***
+     * run {@link PushPoleAsyncTask} on the given {@link Lane}
+     *
+     * @param lane the lane
+     * @param task the task
+     */
+    public void asyncTask(Lane lane, PushPoleAsyncTask task) {
+        asyncTask(lane, LaneExecutor.PRIORITY_NORMAL, task, null);
     }
 
     public void asyncTaskDelayed(final PushPoleAsyncTask task, Long millis) {
+        asyncTaskDelayed(Lane.CONTROL, task, millis);
+    }
+
+    /***
+     * run {@link PushPoleAsyncTask} on the given {@link Lane} after {@code millis} milliseconds
+     *
+     * @return handle to cancel or wait for the task, cancelling before it is due prevents it from running,
+     * the handle is cancelled if the lane queue is full when the task is due
+     */
+    public TaskHandle asyncTaskDelayed(final Lane lane, final PushPoleAsyncTask task, Long millis) {
+        final TaskHandle handle = createTaskHandle(lane, task, null, 0, millis);
         try {
-            mHandler.postDelayed(new Runnable() {
+            getExecutor().submitDelayed(lane, LaneExecutor.PRIORITY_NORMAL, handle, millis, new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        task.runTask(mContext, null);
-                    } catch (Exception e) {
-                        Logger.error("Error occurred while running async task", e);
-                        android.util.Log.e("PushPole", "Failed to run PushPole task", e);
-                    }
+                    android.util.Log.w("PushPole", "PushPole task dropped, " + lane + " queue is full");
+                    handle.cancel(false);
                 }
-            }, millis);
+            });
         } catch (Exception e) {
             Logger.error("Error occurred while running task on async thread", e);
             android.util.Log.e("PushPole", "Failed to run PushPole task on async thread", e);
+            handle.cancel(false);
         }
+        return handle;
+    }
+
+    /***
+     * run the tasks of a {@link TaskGraph}, each task starts as soon as its dependencies have finished
+     *
+     * @param graph the graph, a graph can only run once
+     */
+    public void runGraph(TaskGraph graph) {
+        graph.start(this);
+    }
+
+    private TaskHandle createTaskHandle(Lane lane, final PushPoleAsyncTask task, final Pack taskData,
+                                        long deadline, long delay) {
+        final long dueTime = SystemClock.elapsedRealtime() + delay;
+        final TaskStats stats = mMetrics.getStats(task.getClass());
+        Callable<Result> callable = new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                long startTime = SystemClock.elapsedRealtime();
+                stats.recordQueueWait(startTime - dueTime);
+                Result result = Result.FAIL;
+                try {
+                    result = task.runTask(mContext, taskData);
+                    if (result == null) {
+                        result = Result.SUCCESS;
+                    }
+                    return result;
+                } catch (Exception e) {
+                    Logger.error("Error occurred while running async task", e);
+                    android.util.Log.e("PushPole", "Failed to run PushPole task", e);
+                    throw e;
+                } finally {
+                    stats.recordRunTime(SystemClock.elapsedRealtime() - startTime);
+                    stats.recordResult(result);
+                }
+            }
+        };
+        return new TaskHandle(callable, task.getClass().getName(), lane, deadline, getExecutor(), stats);
+    }
+
+    /***
+     * return execution metrics of tasks run by this {@link TaskManager}
+     *
+     * @return the metrics
+     */
+    public TaskMetrics getMetrics() {
+        return mMetrics;
     }
 
 
@@ -173,51 +340,126 @@ public class TaskManager {
     }
 
     public void scheduleTask(Class<? extends PushPoleTask> taskType, Pack taskData, TaskOptions taskOptions) {
+        TaskRegistry.Entry entry = TaskRegistry.get(taskType);
+        taskOptions = buildTaskOptions(entry, taskOptions);
+
+        String tag = TaskRegistry.buildTag(entry, createDataKey(entry, taskData));
+
+        TaskJournal.getInstance(mContext).put(
+                new TaskJournal.Entry(tag, taskData, System.currentTimeMillis() + taskOptions.getDelay(), taskOptions));
+
+        getScheduler().schedule(mContext, tag, taskOptions);
+        cancelLegacySingleton(entry);
+
+        Logger.debug("Scheduling GCM Task", new LogData(
+                "Type", taskType.toString(),
+                "Tag", tag
+        ));
+    }
+
+    /***
+     * schedule many instances of a task type at once
+     * options are resolved once, all task data is written to the journal in a single transaction
+     * and the tasks are handed to the scheduler in a single pass
+     *
+     * @param taskType     the task type
+     * @param taskDataList data of every task instance
+     * @param taskOptions  options shared by all task instances, could be {@code null}
+     */
+    public void scheduleTasks(Class<? extends PushPoleTask> taskType, List<Pack> taskDataList, TaskOptions taskOptions) {
+        if (taskDataList.isEmpty()) {
+            return;
+        }
+        TaskRegistry.Entry entry = TaskRegistry.get(taskType);
+        if (entry.isSingleton()) {
+            // Every instance would replace the previous one
+            scheduleTask(taskType, taskDataList.get(taskDataList.size() - 1), taskOptions);
+            return;
+        }
+        taskOptions = buildTaskOptions(entry, taskOptions);
+
+        long nextTryTime = System.currentTimeMillis() + taskOptions.getDelay();
+        List<TaskJournal.Entry> journalEntries = new ArrayList<>(taskDataList.size());
+        List<String> tags = new ArrayList<>(taskDataList.size());
+        for (Pack taskData : taskDataList) {
+            String tag = TaskRegistry.buildTag(entry, createDataKey(entry, taskData));
+            journalEntries.add(new TaskJournal.Entry(tag, taskData, nextTryTime, taskOptions));
+            tags.add(tag);
+        }
+
+        TaskJournal.getInstance(mContext).putAll(journalEntries);
+        scheduleAll(tags, taskOptions);
+
+        Logger.debug("Scheduling GCM Tasks", new LogData(
+                "Type", taskType.toString(),
+                "Count", String.valueOf(tags.size())
+        ));
+    }
+
+    /***
+     * hand many tags sharing the same options to the scheduler, in a single pass if it is a
+     * {@link BatchScheduler}
+     */
+    private void scheduleAll(List<String> tags, TaskOptions taskOptions) {
+        Scheduler scheduler = getScheduler();
+        if (scheduler instanceof BatchScheduler) {
+            ((BatchScheduler) scheduler).scheduleAll(mContext, tags, taskOptions);
+        } else {
+            for (String tag : tags) {
+                scheduler.schedule(mContext, tag, taskOptions);
+            }
+        }
+    }
+
+    /***
+     * apply singleton and default options of a task type to the given options
+     */
+    private TaskOptions buildTaskOptions(TaskRegistry.Entry entry, TaskOptions taskOptions) {
         /* Set default task options */
         TaskOptions.Builder optionsBuilder = new TaskOptions.Builder();
         if (taskOptions != null) {
             optionsBuilder.update(taskOptions);
         }
-        if (isTaskSingleton(taskType)) {
+        if (entry.isSingleton()) {
             optionsBuilder.setReplace(true);
         }
-        DefaultOptions defaultOptions = taskType.getAnnotation(DefaultOptions.class);
-        if (defaultOptions != null) {
-            optionsBuilder.setDefaults(defaultOptions);
-        } else {
-            optionsBuilder.setDefaults(new Defaults());
-        }
-        taskOptions = optionsBuilder.build();
+        optionsBuilder.setDefaults(entry.getDefaultOptions());
+        return optionsBuilder.build();
+    }
 
-        String tag = null;
-        String dataKey = null;
-        if (isTaskSingleton(taskType)) {
-            dataKey = taskType.getSimpleName();
+    private String createDataKey(TaskRegistry.Entry entry, Pack taskData) {
+        if (entry.isSingleton()) {
+            return entry.getSingletonKey();
         } else if (taskData != null) {
-            dataKey = IdGenerator.generateUUID(4);
-        }
-
-        if (taskData != null) {
-            KeyStore.getInstance(mContext).putPack(dataKey, taskData);
+            return IdGenerator.generateUUID(4);
         }
-
-        tag = getTaskInstanceTag(taskType, dataKey);
-
-        getScheduler().schedule(mContext, tag, taskOptions);
-
-        Logger.debug("Scheduling GCM Task", new LogData(
-                "Type", taskType.toString(),
-                "Tag", tag
-        ));
+        return null;
     }
 
     public void cancelTask(Class<? extends PushPoleTask> taskType) {
-        if (!isTaskSingleton(taskType)) {
+        TaskRegistry.Entry entry = TaskRegistry.get(taskType);
+        if (!entry.isSingleton()) {
             throw new IllegalArgumentException("Cannot cancel non-singleton task");
         }
 
-        String tag = getTaskInstanceTag(taskType, taskType.getSimpleName());
+        String tag = TaskRegistry.buildTag(entry, entry.getSingletonKey());
         getScheduler().cancel(mContext, tag);
+        TaskJournal.getInstance(mContext).complete(tag);
+        if (entry.isRegistered()) {
+            // Jobs scheduled by older versions still use the legacy tag
+            getScheduler().cancel(mContext, TaskRegistry.buildLegacyTag(entry, entry.getSingletonKey()));
+        }
+    }
+
+    /***
+     * cancel the job an older version scheduled for a registered singleton task type under its
+     * legacy tag, the new tag would not replace it and the task would run twice
+     * done once per task type and process
+     */
+    private void cancelLegacySingleton(TaskRegistry.Entry entry) {
+        if (entry.isSingleton() && entry.isRegistered() && mLegacyCancelled.add(entry.getTaskType())) {
+            getScheduler().cancel(mContext, TaskRegistry.buildLegacyTag(entry, entry.getSingletonKey()));
+        }
     }
 
 
@@ -273,136 +515,397 @@ public class TaskManager {
      * @return result
      */
     public Result handleScheduledTask(String taskTag) {
+        mRunningTags.add(taskTag);
+        try {
+            return runScheduledTask(taskTag);
+        } finally {
+            mRunningTags.remove(taskTag);
+        }
+    }
+
+    private Result runScheduledTask(String taskTag) {
         Logger.debug("Running GCM Task", new LogData(
                 "Tag", taskTag
         ));
 
-        Class<? extends PushPoleTask> taskType = getTaskTypeFromInstanceTag(taskTag);
-        String dataKey = getTaskDataKeyFromTag(/*context,*/ taskTag);
-        Pack taskData = dataKey == null ? null : KeyStore.getInstance(mContext).getPack(dataKey, null);
+        TaskRegistry.Entry entry = TaskRegistry.fromTag(taskTag);
+        TaskJournal journal = TaskJournal.getInstance(mContext);
+        TaskJournal.Entry journalEntry = journal.get(taskTag);
+        Pack taskData = null;
+        String legacyDataKey = null;
+        if (journalEntry != null) {
+            taskData = journalEntry.getData();
+        } else {
+            // Task scheduled by an older version, its data is in KeyStore
+            legacyDataKey = TaskRegistry.getDataKey(taskTag);
+            taskData = legacyDataKey == null ? null : KeyStore.getInstance(mContext).getPack(legacyDataKey, null);
+        }
 
-        if (taskType == null) {
+        if (entry == null) {
             Logger.warning("Invalid task type %s", taskTag);
             return Result.FAIL;
         }
 
-        PushPoleTask task = null;
-        try {
-            task = taskType.newInstance();
-        } catch (InstantiationException e) {
-            Logger.error("Creating task instance %s failed", taskTag, e);
-            return Result.FAIL;
-        } catch (IllegalAccessException e) {
-            Logger.error("Creating task instance %s failed", taskTag, e);
+        Class<? extends PushPoleTask> taskType = entry.getTaskType();
+        PushPoleTask task = entry.newTask();
+        if (task == null) {
+            Logger.error("Creating task instance %s failed", taskTag);
             return Result.FAIL;
         }
 
 
         int retryCount = -1;
-
-        if (taskData != null) {
+        if (journalEntry != null) {
+            retryCount = journalEntry.getBackOffCount() + 1;
+        } else if (taskData != null) {
             retryCount = getAndIncRetryCount(taskData);
         }
 
-        Result result = task.runTask(mContext, taskData);
+        TaskStats stats = mMetrics.getStats(taskType);
+        if (journalEntry != null) {
+            stats.recordQueueWait(System.currentTimeMillis() - journalEntry.getNextTryTime());
+        }
+        if (retryCount >= 0) {
+            stats.recordRetryDepth(retryCount - 1);
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        // a task throwing an exception is counted as failed
+        Result result = Result.FAIL;
+        try {
+            result = task.runTask(mContext, taskData);
+        } finally {
+            stats.recordRunTime(SystemClock.elapsedRealtime() - startTime);
+            stats.recordResult(result == null ? Result.SUCCESS : result);
+        }
 
-        if (taskData != null && result != Result.RESCHEDULE) {
-            KeyStore.getInstance(mContext).delete(dataKey);
-        } else if (taskData != null) {
-            KeyStore.getInstance(mContext).putPack(dataKey, taskData);
+        if (result != Result.RESCHEDULE) {
+            completeTask(taskTag, journalEntry, legacyDataKey);
+            return result;
         }
 
-        if (result == Result.RESCHEDULE && retryCount >= 0) {
-            DefaultOptions taskOptions = taskType.getAnnotation(DefaultOptions.class);
-            if (taskOptions != null && taskOptions.retryCount() > 0 && retryCount > taskOptions.retryCount()) {
+        if (retryCount >= 0) {
+            DefaultOptions taskOptions = entry.getDefaultOptions();
+            if (taskOptions.retryCount() > 0 && retryCount > taskOptions.retryCount()) {
                 Logger.warning("Task " + taskType + " failed too many times, aborting");
-                if(taskType.getName().contains("NotificationBuildTask")){
-                    NotificationBuildTask.sendNotifPublishStatus(mContext,
-                            taskData.getString(Constants.getVal(Constants.MESSAGE_ID), null), NotificationBuildTask.NOTIF_FAILED);
-                }
+                abortTask(taskTag, taskType, taskData, journalEntry, legacyDataKey);
                 return Result.FAIL;
             } else {
                 Logger.warning("Task " + taskType + " attempt %d failed", retryCount);
             }
         }
 
-        return result;
+        if (journalEntry == null) {
+            if (taskData != null) {
+                // expires in case the scheduler loses the job and the task never completes
+                KeyStore.getInstance(mContext).putPack(legacyDataKey, taskData, LEGACY_TASK_DATA_TTL);
+            }
+            return Result.RESCHEDULE;
+        }
+
+        long now = System.currentTimeMillis();
+        journalEntry.setData(taskData);
+        journalEntry.setBackOffCount(retryCount);
+
+        RetryPolicy retryPolicy = entry.getRetryPolicy();
+        if (retryPolicy == null || journalEntry.isPeriodic()) {
+            // Retry timing is left to the scheduler, a periodic job keeps its period
+            journalEntry.setNextTryTime(now);
+            journal.update(journalEntry);
+            return Result.RESCHEDULE;
+        }
+
+        if (journalEntry.getCreatedTime() > 0 && now - journalEntry.getCreatedTime() > retryPolicy.maxElapsedTime()) {
+            Logger.warning("Task " + taskType + " retried for too long, aborting");
+            abortTask(taskTag, taskType, taskData, journalEntry, legacyDataKey);
+            return Result.FAIL;
+        }
+
+        long delay = Backoff.getDelay(retryPolicy, retryCount);
+        journalEntry.setNextTryTime(now + delay);
+        journal.update(journalEntry);
+
+        TaskOptions.Builder optionsBuilder = new TaskOptions.Builder();
+        if (journalEntry.getOptions() != null) {
+            optionsBuilder.update(journalEntry.getOptions());
+        }
+        optionsBuilder.setDelay(delay);
+        optionsBuilder.setReplace(true);
+        optionsBuilder.setDefaults(entry.getDefaultOptions());
+        getScheduler().schedule(mContext, taskTag, optionsBuilder.build());
+
+        // The retry is scheduled by TaskManager, the current job of the scheduler is done
+        return Result.SUCCESS;
     }
 
     /***
-     * get and increment retry count by 1
-     *
-     * @param taskPack the test pack
-     * @return retry count
+     * remove data of a finished task, entries of periodic tasks are kept for their next run
      */
-    private int getAndIncRetryCount(Pack taskPack) {
-        String retryCountStr = taskPack.getString(Constants.getVal(Constants.RETRY_COUNT), "0");
-        int retryCount;
-        try {
-            retryCount = Integer.parseInt(retryCountStr);
-        } catch (NumberFormatException e) {
-            retryCount = 0;
+    private void completeTask(String taskTag, TaskJournal.Entry journalEntry, String legacyDataKey) {
+        if (journalEntry != null && journalEntry.isPeriodic()) {
+            journalEntry.setBackOffCount(0);
+            journalEntry.setNextTryTime(System.currentTimeMillis() + journalEntry.getOptions().getPeriod());
+            TaskJournal.getInstance(mContext).update(journalEntry);
+        } else if (journalEntry != null) {
+            TaskJournal.getInstance(mContext).complete(taskTag);
+        } else if (legacyDataKey != null) {
+            KeyStore.getInstance(mContext).delete(legacyDataKey);
         }
-        retryCount += 1;
-        taskPack.putString(Constants.getVal(Constants.RETRY_COUNT), String.valueOf(retryCount));
-        return retryCount;
     }
 
     /***
-     * return task tag
-     *
-     * @param taskType the task type
-     * @param dataKey  the data key
-     * @return the tag
+     * give up retrying a task
+     */
+    private void abortTask(String taskTag, Class<? extends PushPoleTask> taskType, Pack taskData,
+                           TaskJournal.Entry journalEntry, String legacyDataKey) {
+        if (taskType == NotificationBuildTask.class && taskData != null) {
+            NotificationBuildTask.sendNotifPublishStatus(mContext,
+                    taskData.getString(Constants.getVal(Constants.MESSAGE_ID), null), NotificationBuildTask.NOTIF_FAILED);
+        }
+        completeTask(taskTag, journalEntry, legacyDataKey);
+    }
+
+    /***
+     * re-schedule journaled tasks which should have run long ago, their jobs were lost by the
+     * scheduler or the process crashed before they completed
+     * tasks are re-scheduled with their original tag and the options they were scheduled with,
+     * tasks the scheduler still has a job for are only late and are left alone
+     * tasks of the same type and options are handed to the scheduler together
      */
-    private String getTaskInstanceTag(Class<? extends PushPoleTask> taskType, String dataKey) {
-        String type = taskType.getName();
-        if (dataKey == null) {
+    public void recoverPendingTasks() {
+        TaskJournal journal = TaskJournal.getInstance(mContext);
+        long now = System.currentTimeMillis();
+        List<TaskJournal.Entry> lostEntries = journal.getDue(now - RECOVERY_GRACE_PERIOD, MAX_RECOVERED_TASKS);
+        if (lostEntries.isEmpty()) {
+            return;
+        }
+        ScheduleInspector inspector = mScheduleInspector;
+        Set<String> scheduledTags = inspector == null ? null : inspector.getScheduledTags(mContext);
+
+        List<TaskJournal.Entry> recovered = new ArrayList<>();
+        Map<String, List<String>> groupTags = new LinkedHashMap<>();
+        Map<String, TaskOptions> groupOptions = new HashMap<>();
+        for (TaskJournal.Entry journalEntry : lostEntries) {
+            TaskRegistry.Entry entry = TaskRegistry.fromTag(journalEntry.getTag());
+            if (entry == null) {
+                journal.complete(journalEntry.getTag());
+                continue;
+            }
+            if (scheduledTags == null || !scheduledTags.contains(journalEntry.getTag())) {
+                String group = getRecoveryGroup(entry, journalEntry.getOptions());
+                List<String> tags = groupTags.get(group);
+                if (tags == null) {
+                    tags = new ArrayList<>();
+                    groupTags.put(group, tags);
+                    groupOptions.put(group, buildRecoveryOptions(entry, journalEntry.getOptions()));
+                }
+                tags.add(journalEntry.getTag());
+            }
+            journalEntry.setNextTryTime(now);
+            recovered.add(journalEntry);
+        }
+        for (Map.Entry<String, List<String>> group : groupTags.entrySet()) {
+            scheduleAll(group.getValue(), groupOptions.get(group.getKey()));
+        }
+        journal.updateAll(recovered);
+
+        Logger.debug("Recovered unfinished tasks", new LogData(
+                "Count", String.valueOf(recovered.size())
+        ));
+    }
+
+    /***
+     * @return key shared by recovered tasks which are re-scheduled with the same options
+     */
+    private static String getRecoveryGroup(TaskRegistry.Entry entry, TaskOptions savedOptions) {
+        String type = entry.getTaskType().getName();
+        if (savedOptions == null) {
             return type;
         }
-        return type + "#" + dataKey;
+        return type + '|' + savedOptions.isNetworkRequired() + '|' + savedOptions.getPeriod()
+                + '|' + savedOptions.getWindow();
     }
 
     /***
-     * return task type by tag
+     * rebuild the options a journaled task was scheduled with, the delay of one-off tasks has
+     * already passed so they are due immediately
      *
-     * @param tag the tag
-     * @return the task type or {@code null}
+     * @param savedOptions the journaled options or {@code null} for entries written by older versions
      */
-    private Class<? extends PushPoleTask> getTaskTypeFromInstanceTag(String tag) {
-        String type = null;
-        try {
-            if (tag.contains("#")) {
-                String[] parts = tag.split("#");
-                type = parts[0];
-            } else {
-                type = tag;
+    private TaskOptions buildRecoveryOptions(TaskRegistry.Entry entry, TaskOptions savedOptions) {
+        TaskOptions.Builder optionsBuilder = new TaskOptions.Builder();
+        if (savedOptions != null) {
+            optionsBuilder.update(savedOptions);
+            if (savedOptions.getPeriod() <= 0) {
+                optionsBuilder.setDelay(0L);
             }
-            return getClass().getClassLoader().loadClass(type).asSubclass(PushPoleTask.class);
-        } catch (IllegalArgumentException e) {
-            return null;
-        } catch (ClassNotFoundException e) {
-            Logger.warning("Task " + type + " not found");
-            return null;
         }
+        optionsBuilder.setReplace(true);
+        optionsBuilder.setDefaults(entry.getDefaultOptions());
+        return optionsBuilder.build();
     }
 
     /***
-     * return task data key by tag
+     * delete task data whose job the scheduler no longer knows about, at most once a day
      *
-     * @param tag the tag
-     * @return the key or {@code null}
+     * @return number of reclaimed bytes
+     * @see #collectOrphanedTasks()
      */
-    private String getTaskDataKeyFromTag(/*Context context,*/ String tag) {
-        if (tag.contains("#")) {
-            String[] parts = tag.split("#");
-            return parts[1];
+    public long collectOrphanedTasksIfDue() {
+        KeyStore keyStore = KeyStore.getInstance(mContext);
+        long now = System.currentTimeMillis();
+        if (now - keyStore.getLong(LAST_ORPHAN_COLLECTION_TIME, 0) < ORPHAN_COLLECTION_INTERVAL) {
+            return 0;
         }
-        return null;
+        keyStore.putLong(LAST_ORPHAN_COLLECTION_TIME, now);
+        return collectOrphanedTasks();
+    }
+
+    /***
+     * delete task data whose job the scheduler no longer knows about
+     * <ul>
+     * <li>journal entries which are not scheduled and should have run more than a week ago,
+     * {@link #recoverPendingTasks()} failed to bring them back</li>
+     * <li>payloads of legacy tasks in {@link KeyStore} whose job is gone. This version keeps
+     * payloads in the journal, so the keys in {@link KeyStore} were written by older versions. A
+     * key is recorded while a legacy job refers to it and only recorded keys are deleted, other
+     * values of the store are never touched.</li>
+     * </ul>
+     * payloads which leaked before this version first ran were never referred to by a job it saw,
+     * so the first pass also records every unreferenced key shaped like a generated data key with a
+     * {@link Pack} value, they are deleted by a later pass unless a job refers to them by then
+     * jobs running in this process count as scheduled, nothing is deleted if the scheduler can
+     * not list its jobs
+     *
+     * @return number of reclaimed bytes
+     */
+    public long collectOrphanedTasks() {
+        ScheduleInspector inspector = mScheduleInspector;
+        Set<String> pendingTags = inspector == null ? null : inspector.getScheduledTags(mContext);
+        if (pendingTags == null) {
+            return 0;
+        }
+        Set<String> scheduledTags = new HashSet<>(pendingTags);
+        scheduledTags.addAll(mRunningTags);
+
+        long reclaimedBytes = 0;
+        TaskJournal journal = TaskJournal.getInstance(mContext);
+        List<String> orphanedTags = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (TaskJournal.Entry journalEntry : journal.getDue(now - ORPHAN_MAX_AGE, MAX_COLLECTED_ORPHANS)) {
+            if (!scheduledTags.contains(journalEntry.getTag())) {
+                orphanedTags.add(journalEntry.getTag());
+                reclaimedBytes += journalEntry.getTag().length()
+                        + (journalEntry.getData() == null ? 0 : journalEntry.getData().toJson().length());
+            }
+        }
+        int journalCount = journal.completeAll(orphanedTags);
+
+        KeyStore keyStore = KeyStore.getInstance(mContext);
+        Set<String> referencedKeys = new HashSet<>();
+        for (String tag : scheduledTags) {
+            String dataKey = TaskRegistry.getDataKey(tag);
+            if (dataKey != null && TaskRegistry.isLegacyTag(tag)) {
+                referencedKeys.add(dataKey);
+            }
+        }
+
+        KeyStore.Batch batch = keyStore.batch();
+        ListPack previousKeys = keyStore.getListPack(LEGACY_TASK_DATA_KEYS, null);
+        if (previousKeys != null) {
+            for (Object recorded : previousKeys) {
+                String key = String.valueOf(recorded);
+                String value = referencedKeys.contains(key) ? null : keyStore.getString(key, null);
+                if (value != null) {
+                    batch.delete(key);
+                    reclaimedBytes += key.length() + value.length();
+                }
+            }
+        }
+        int keyStoreCount = batch.size();
+        ListPack recordedKeys = new ListPack();
+        for (String key : referencedKeys) {
+            if (keyStore.contains(key)) {
+                recordedKeys.add(key);
+            }
+        }
+        if (!keyStore.getBoolean(LEGACY_TASK_DATA_BACKFILLED, false)) {
+            for (String key : findLegacyDataKeys(keyStore)) {
+                if (!referencedKeys.contains(key)) {
+                    recordedKeys.add(key);
+                }
+            }
+            batch.putBoolean(LEGACY_TASK_DATA_BACKFILLED, true);
+        }
+        batch.putListPack(LEGACY_TASK_DATA_KEYS, recordedKeys);
+        batch.commit();
+
+        if (journalCount > 0 || keyStoreCount > 0) {
+            Logger.debug("Orphaned task data removed", new LogData(
+                    "Journal Entries", String.valueOf(journalCount),
+                    "KeyStore Entries", String.valueOf(keyStoreCount),
+                    "Bytes", String.valueOf(reclaimedBytes)
+            ));
+        }
+        return reclaimedBytes;
+    }
+
+    /***
+     * find keys which may hold the payload of a legacy task, their key has the length and the
+     * characters of a key made by {@link #createDataKey} and their value is a stored {@link Pack}
+     */
+    private static List<String> findLegacyDataKeys(KeyStore keyStore) {
+        String sample = IdGenerator.generateUUID(4);
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : keyStore.getAll().entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String && isPackValue((String) value)
+                    && hasShapeOf(entry.getKey(), sample)) {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
     }
 
-    private boolean isTaskSingleton(Class<? extends PushPoleTask> taskType) {
-        return taskType.getAnnotation(SingletonTask.class) != null;
+    private static boolean isPackValue(String value) {
+        return PackCodec.isEncoded(value) || value.startsWith("{");
+    }
+
+    /***
+     * @return true if both keys have letters or digits at the same positions and the same
+     * separators between them
+     */
+    private static boolean hasShapeOf(String key, String sample) {
+        if (key.length() != sample.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            char expected = sample.charAt(i);
+            boolean alphanumeric = Character.isLetterOrDigit(expected);
+            if (alphanumeric ? !Character.isLetterOrDigit(c) : c != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /***
+     * get and increment retry count by 1
+     *
+     * @param taskPack the test pack
+     * @return retry count
+     */
+    private int getAndIncRetryCount(Pack taskPack) {
+        String retryCountStr = taskPack.getString(Constants.getVal(Constants.RETRY_COUNT), "0");
+        int retryCount;
+        try {
+            retryCount = Integer.parseInt(retryCountStr);
+        } catch (NumberFormatException e) {
+            retryCount = 0;
+        }
+        retryCount += 1;
+        taskPack.putString(Constants.getVal(Constants.RETRY_COUNT), String.valueOf(retryCount));
+        return retryCount;
     }
 
 }
@@ -0,0 +1,50 @@
+package com.pushpole.sdk.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * Per task type execution metrics recorded by {@link TaskManager}
+ * queue wait, run time, results and retry depth of every task type are kept in memory
+ * for the lifetime of the process, use {@link #getSnapshot()} to read them
+ */
+public class TaskMetrics {
+    private final ConcurrentHashMap<String, TaskStats> mStats = new ConcurrentHashMap<>();
+
+    TaskStats getStats(Class<?> taskType) {
+        String name = taskType.getName();
+        TaskStats stats = mStats.get(name);
+        if (stats == null) {
+            TaskStats newStats = new TaskStats(name);
+            stats = mStats.putIfAbsent(name, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /***
+     * @return snapshot of the statistics of every task type which has run in this process
+     */
+    public List<TaskStats.Snapshot> getSnapshot() {
+        List<TaskStats.Snapshot> snapshots = new ArrayList<>(mStats.size());
+        for (TaskStats stats : mStats.values()) {
+            snapshots.add(stats.snapshot());
+        }
+        return snapshots;
+    }
+
+    /***
+     * @return snapshot of the statistics of a task type or {@code null} if it has not run
+     */
+    public TaskStats.Snapshot getSnapshot(Class<?> taskType) {
+        TaskStats stats = mStats.get(taskType.getName());
+        return stats == null ? null : stats.snapshot();
+    }
+
+    public void reset() {
+        mStats.clear();
+    }
+}
@@ -0,0 +1,383 @@
+package com.pushpole.sdk.task;
+
+import java.lang.annotation.Annotation;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.pushpole.sdk.collection.tasks.AppListTask;
+import com.pushpole.sdk.collection.tasks.CheckIsHiddenAppTask;
+import com.pushpole.sdk.collection.tasks.ConstantTask;
+import com.pushpole.sdk.collection.tasks.DetectUserActivityTask;
+import com.pushpole.sdk.collection.tasks.FloatingTask;
+import com.pushpole.sdk.collection.tasks.MobileCellTask;
+import com.pushpole.sdk.collection.tasks.VariableTask;
+import com.pushpole.sdk.collection.tasks.WifiTask;
+import com.pushpole.sdk.internal.log.Logger;
+import com.pushpole.sdk.task.options.DefaultOptions;
+import com.pushpole.sdk.task.options.Defaults;
+import com.pushpole.sdk.task.options.RetryPolicy;
+import com.pushpole.sdk.task.options.SingletonTask;
+import com.pushpole.sdk.task.tasks.SubscribeTask;
+
+/***
+ * Registry of schedulable {@link PushPoleTask} types
+ * options, singleton flag and factory of every task type are resolved once, so running a
+ * scheduled task needs neither class loading nor annotation lookups
+ *
+ * Registered task types are scheduled with compact tags like {@code @3#key}, other task types
+ * fall back to the legacy {@code className#key} tags which are also used by jobs scheduled by
+ * older versions of the library
+ */
+public final class TaskRegistry {
+    private final static char TAG_PREFIX = '@';
+    private final static char TAG_SEPARATOR = '#';
+
+    private final static Entry[] sById = new Entry[32];
+    private final static Map<Class<? extends PushPoleTask>, Entry> sByType = new HashMap<>();
+    private final static Map<String, Entry> sByName = new ConcurrentHashMap<>();
+    private final static Map<Class<? extends PushPoleTask>, Entry> sUnregistered = new ConcurrentHashMap<>();
+
+    /*
+     * Ids are part of the tags of persisted jobs, never change or reuse an id
+     */
+    static {
+        register(1, NotificationBuildTask.class, new Factory() {
+            @Override
+            public PushPoleTask create() {
+                return new NotificationBuildTask();
+            }
+        });
+        // Topic subscriptions fail while FCM is unreachable, retries are spread to avoid waves
+        register(2, SubscribeTask.class, new Factory() {
+            @Override
+            public PushPoleTask create() {
+                return new SubscribeTask();
+            }
+        }, new Retry(60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L));
+        register(3, FloatingTask.class, new Factory() {
+            @Override
+            public PushPoleTask create() {
+                return new FloatingTask();
+            }
+        });
+        register(4, VariableTask.class, new Factory() {
+            @Override
+            public PushPoleTask create() {
+                return new VariableTask();
+            }
+        });
+        register(5, ConstantTask.class, new Factory() {
+            @Override
+            public PushPoleTask create() {
+                return new ConstantTask();
+            }
+        });
+        register(6, AppListTask.class, new Factory() {
+            @Override
+            public PushPoleTask create() {
+                return new AppListTask();
+            }
+        });
+        register(7, WifiTask.class, new Factory() {
+            @Override
+            public PushPoleTask create() {
+                return new WifiTask();
+            }
+        });
+        register(8, MobileCellTask.class, new Factory() {
+            @Override
+            public PushPoleTask create() {
+                return new MobileCellTask();
+            }
+        });
+        register(9, DetectUserActivityTask.class, new Factory() {
+            @Override
+            public PushPoleTask create() {
+                return new DetectUserActivityTask();
+            }
+        });
+        register(10, CheckIsHiddenAppTask.class, new Factory() {
+            @Override
+            public PushPoleTask create() {
+                return new CheckIsHiddenAppTask();
+            }
+        });
+    }
+
+    private TaskRegistry() {
+    }
+
+    private static void register(int id, Class<? extends PushPoleTask> taskType, Factory factory) {
+        register(id, taskType, factory, null);
+    }
+
+    /***
+     * register a task type with a retry policy, used for task types which can not be annotated
+     * with {@link RetryPolicy}, an annotation on the task type still takes precedence
+     */
+    private static void register(int id, Class<? extends PushPoleTask> taskType, Factory factory,
+                                 RetryPolicy retryPolicy) {
+        if (id <= 0 || id >= sById.length || sById[id] != null) {
+            throw new IllegalArgumentException("Invalid task id " + id);
+        }
+        Entry entry = new Entry(id, taskType, factory, retryPolicy);
+        sById[id] = entry;
+        sByType.put(taskType, entry);
+        sByName.put(taskType.getName(), entry);
+    }
+
+    /***
+     * return registry entry of task type, unregistered task types are resolved with reflection once
+     *
+     * @param taskType the task type
+     * @return the entry
+     */
+    public static Entry get(Class<? extends PushPoleTask> taskType) {
+        Entry entry = sByType.get(taskType);
+        if (entry != null) {
+            return entry;
+        }
+        entry = sUnregistered.get(taskType);
+        if (entry == null) {
+            entry = new Entry(-1, taskType, new ReflectiveFactory(taskType), null);
+            sUnregistered.put(taskType, entry);
+            sByName.put(taskType.getName(), entry);
+        }
+        return entry;
+    }
+
+    /***
+     * return registry entry of the task type a tag was built for
+     *
+     * @param tag the tag
+     * @return the entry or {@code null} if the task type is unknown
+     */
+    public static Entry fromTag(String tag) {
+        int id = parseId(tag);
+        if (id > 0) {
+            return id < sById.length ? sById[id] : null;
+        }
+        if (id == 0) {
+            return null;
+        }
+
+        // Legacy tag
+        int separator = tag.indexOf(TAG_SEPARATOR);
+        String type = separator < 0 ? tag : tag.substring(0, separator);
+        Entry entry = sByName.get(type);
+        if (entry != null) {
+            return entry;
+        }
+        try {
+            return get(TaskRegistry.class.getClassLoader().loadClass(type).asSubclass(PushPoleTask.class));
+        } catch (ClassCastException e) {
+            Logger.warning("Task " + type + " is not a PushPoleTask");
+            return null;
+        } catch (ClassNotFoundException e) {
+            Logger.warning("Task " + type + " not found");
+            return null;
+        }
+    }
+
+    /***
+     * build tag for a task instance
+     *
+     * @param entry   the task type entry
+     * @param dataKey the data key or {@code null}
+     * @return the tag
+     */
+    public static String buildTag(Entry entry, String dataKey) {
+        String type = entry.isRegistered() ? TAG_PREFIX + String.valueOf(entry.getId()) : entry.getTaskType().getName();
+        if (dataKey == null) {
+            return type;
+        }
+        return type + TAG_SEPARATOR + dataKey;
+    }
+
+    /***
+     * build tag in the format used before the registry, for jobs scheduled by older versions
+     */
+    static String buildLegacyTag(Entry entry, String dataKey) {
+        String type = entry.getTaskType().getName();
+        if (dataKey == null) {
+            return type;
+        }
+        return type + TAG_SEPARATOR + dataKey;
+    }
+
+    /***
+     * @return true if the tag was built by an older version, see {@link #buildLegacyTag}
+     */
+    static boolean isLegacyTag(String tag) {
+        return parseId(tag) < 0;
+    }
+
+    /***
+     * return data key of a tag
+     *
+     * @param tag the tag
+     * @return the key or {@code null}
+     */
+    public static String getDataKey(String tag) {
+        int separator = tag.indexOf(TAG_SEPARATOR);
+        return separator < 0 ? null : tag.substring(separator + 1);
+    }
+
+    /***
+     * parse id of a compact tag without allocating
+     *
+     * @return the id, {@code 0} for a malformed compact tag or {@code -1} for a legacy tag
+     */
+    private static int parseId(String tag) {
+        int length = tag.length();
+        if (length == 0 || tag.charAt(0) != TAG_PREFIX) {
+            return -1;
+        }
+        int id = 0;
+        int i = 1;
+        for (; i < length; i++) {
+            char c = tag.charAt(i);
+            if (c == TAG_SEPARATOR) {
+                break;
+            }
+            if (c < '0' || c > '9' || id > sById.length) {
+                return 0;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return i == 1 ? 0 : id;
+    }
+
+    /***
+     * creates task instances without reflection
+     */
+    public interface Factory {
+        PushPoleTask create();
+    }
+
+    /***
+     * Resolved information of a task type
+     */
+    public static class Entry {
+        private final int mId;
+        private final Class<? extends PushPoleTask> mTaskType;
+        private final Factory mFactory;
+        private final DefaultOptions mDefaultOptions;
+        private final boolean mSingleton;
+        private final RetryPolicy mRetryPolicy;
+
+        Entry(int id, Class<? extends PushPoleTask> taskType, Factory factory, RetryPolicy retryPolicy) {
+            mId = id;
+            mTaskType = taskType;
+            mFactory = factory;
+            DefaultOptions defaultOptions = taskType.getAnnotation(DefaultOptions.class);
+            mDefaultOptions = defaultOptions != null ? defaultOptions : new Defaults();
+            mSingleton = taskType.getAnnotation(SingletonTask.class) != null;
+            RetryPolicy annotation = taskType.getAnnotation(RetryPolicy.class);
+            mRetryPolicy = annotation != null ? annotation : retryPolicy;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public boolean isRegistered() {
+            return mId > 0;
+        }
+
+        public Class<? extends PushPoleTask> getTaskType() {
+            return mTaskType;
+        }
+
+        /***
+         * @return the {@link DefaultOptions} annotation of the task type or {@link Defaults}
+         */
+        public DefaultOptions getDefaultOptions() {
+            return mDefaultOptions;
+        }
+
+        public boolean isSingleton() {
+            return mSingleton;
+        }
+
+        /***
+         * @return the {@link RetryPolicy} of the task type or {@code null} if retries are left to the scheduler
+         */
+        public RetryPolicy getRetryPolicy() {
+            return mRetryPolicy;
+        }
+
+        /***
+         * @return data key used for singleton tasks
+         */
+        public String getSingletonKey() {
+            return mTaskType.getSimpleName();
+        }
+
+        /***
+         * create a new task instance
+         *
+         * @return the task or {@code null} if creating task failed
+         */
+        public PushPoleTask newTask() {
+            return mFactory.create();
+        }
+    }
+
+    /***
+     * {@link RetryPolicy} given at registration
+     */
+    private static class Retry implements RetryPolicy {
+        private final long mInitialBackoff;
+        private final long mMaxBackoff;
+        private final long mMaxElapsedTime;
+
+        Retry(long initialBackoff, long maxBackoff, long maxElapsedTime) {
+            mInitialBackoff = initialBackoff;
+            mMaxBackoff = maxBackoff;
+            mMaxElapsedTime = maxElapsedTime;
+        }
+
+        @Override
+        public long initialBackoff() {
+            return mInitialBackoff;
+        }
+
+        @Override
+        public long maxBackoff() {
+            return mMaxBackoff;
+        }
+
+        @Override
+        public long maxElapsedTime() {
+            return mMaxElapsedTime;
+        }
+
+        @Override
+        public Class<? extends Annotation> annotationType() {
+            return RetryPolicy.class;
+        }
+    }
+
+    private static class ReflectiveFactory implements Factory {
+        private final Class<? extends PushPoleTask> mTaskType;
+
+        ReflectiveFactory(Class<? extends PushPoleTask> taskType) {
+            mTaskType = taskType;
+        }
+
+        @Override
+        public PushPoleTask create() {
+            try {
+                return mTaskType.newInstance();
+            } catch (InstantiationException e) {
+                Logger.error("Creating task instance %s failed", mTaskType.getName(), e);
+                return null;
+            } catch (IllegalAccessException e) {
+                Logger.error("Creating task instance %s failed", mTaskType.getName(), e);
+                return null;
+            }
+        }
+    }
+}
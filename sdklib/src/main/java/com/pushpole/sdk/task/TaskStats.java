@@ -0,0 +1,171 @@
+package com.pushpole.sdk.task;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/***
+ * Execution statistics of a single task type
+ * all counters are atomic arrays, recording never locks or allocates
+ *
+ * Durations are kept in base-2 histograms, bucket {@code 0} counts durations below 1ms and
+ * bucket {@code i} counts durations in {@code [2^(i-1), 2^i)} milliseconds, the last bucket
+ * also counts every longer duration
+ */
+public class TaskStats {
+    public final static int TIME_BUCKETS = 18; // last bucket starts at ~65 seconds
+    public final static int RETRY_BUCKETS = 8;
+
+    private final String mTaskType;
+    private final AtomicLongArray mQueueWait = new AtomicLongArray(TIME_BUCKETS);
+    private final AtomicLongArray mRunTime = new AtomicLongArray(TIME_BUCKETS);
+    private final AtomicLongArray mResults = new AtomicLongArray(Result.values().length);
+    private final AtomicLongArray mRetryDepth = new AtomicLongArray(RETRY_BUCKETS);
+    private final AtomicLong mOverruns = new AtomicLong();
+
+    TaskStats(String taskType) {
+        mTaskType = taskType;
+    }
+
+    void recordQueueWait(long millis) {
+        mQueueWait.incrementAndGet(getTimeBucket(millis));
+    }
+
+    void recordRunTime(long millis) {
+        mRunTime.incrementAndGet(getTimeBucket(millis));
+    }
+
+    void recordResult(Result result) {
+        mResults.incrementAndGet(result.ordinal());
+    }
+
+    void recordRetryDepth(int depth) {
+        mRetryDepth.incrementAndGet(Math.max(0, Math.min(depth, RETRY_BUCKETS - 1)));
+    }
+
+    void recordOverrun() {
+        mOverruns.incrementAndGet();
+    }
+
+    static int getTimeBucket(long millis) {
+        if (millis < 1) {
+            return 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, TIME_BUCKETS - 1);
+    }
+
+    /***
+     * @return lower bound of the durations counted in a bucket in milliseconds
+     */
+    public static long getBucketLowerBound(int bucket) {
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(mTaskType, toArray(mQueueWait), toArray(mRunTime),
+                toArray(mResults), toArray(mRetryDepth), mOverruns.get());
+    }
+
+    private static long[] toArray(AtomicLongArray array) {
+        long[] values = new long[array.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.get(i);
+        }
+        return values;
+    }
+
+    /***
+     * Immutable copy of the statistics of a task type
+     */
+    public static class Snapshot {
+        private final String mTaskType;
+        private final long[] mQueueWait;
+        private final long[] mRunTime;
+        private final long[] mResults;
+        private final long[] mRetryDepth;
+        private final long mOverruns;
+
+        Snapshot(String taskType, long[] queueWait, long[] runTime, long[] results, long[] retryDepth, long overruns) {
+            mTaskType = taskType;
+            mQueueWait = queueWait;
+            mRunTime = runTime;
+            mResults = results;
+            mRetryDepth = retryDepth;
+            mOverruns = overruns;
+        }
+
+        public String getTaskType() {
+            return mTaskType;
+        }
+
+        /***
+         * @return number of runs which finished with {@code result}
+         */
+        public long getCount(Result result) {
+            return mResults[result.ordinal()];
+        }
+
+        /***
+         * @return number of runs which passed their deadline
+         */
+        public long getOverrunCount() {
+            return mOverruns;
+        }
+
+        public long getRunCount() {
+            long count = 0;
+            for (long value : mRunTime) {
+                count += value;
+            }
+            return count;
+        }
+
+        public long[] getQueueWaitHistogram() {
+            return mQueueWait.clone();
+        }
+
+        public long[] getRunTimeHistogram() {
+            return mRunTime.clone();
+        }
+
+        /***
+         * @return histogram of attempt numbers, the last bucket also counts deeper retries
+         */
+        public long[] getRetryDepthHistogram() {
+            return mRetryDepth.clone();
+        }
+
+        /***
+         * approximate a percentile of run time
+         *
+         * @param percentile the percentile between 0 and 1
+         * @return lower bound of the histogram bucket holding the percentile in milliseconds
+         */
+        public long getRunTimePercentile(double percentile) {
+            return getPercentile(mRunTime, percentile);
+        }
+
+        public long getQueueWaitPercentile(double percentile) {
+            return getPercentile(mQueueWait, percentile);
+        }
+
+        private static long getPercentile(long[] histogram, double percentile) {
+            long total = 0;
+            for (long value : histogram) {
+                total += value;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank) {
+                    return getBucketLowerBound(i);
+                }
+            }
+            return getBucketLowerBound(histogram.length - 1);
+        }
+    }
+}
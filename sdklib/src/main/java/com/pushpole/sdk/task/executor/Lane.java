@@ -0,0 +1,61 @@
+package com.pushpole.sdk.task.executor;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static android.os.Process.THREAD_PRIORITY_DEFAULT;
+import static android.os.Process.THREAD_PRIORITY_MORE_FAVORABLE;
+
+/***
+ * Execution lanes of {@link LaneExecutor}
+ * each lane has its own bounded queue, worker threads and thread priority so that
+ * a burst of work in one lane never delays the jobs of another lane
+ */
+public enum Lane {
+    /***
+     * user visible work, e.g. building and showing notifications or handling clicks
+     */
+    RENDER("pushpole-render", 2, 64, THREAD_PRIORITY_DEFAULT),
+
+    /***
+     * control-plane work, e.g. registration, open-app and upstream commands
+     */
+    CONTROL("pushpole-control", 1, 128, THREAD_PRIORITY_BACKGROUND + THREAD_PRIORITY_MORE_FAVORABLE),
+
+    /***
+     * bulk work, e.g. data collection and telemetry
+     */
+    BULK("pushpole-bulk", 1, 256, THREAD_PRIORITY_BACKGROUND);
+
+    private final String mThreadName;
+    private final int mConcurrency;
+    private final int mCapacity;
+    private final int mThreadPriority;
+
+    Lane(String threadName, int concurrency, int capacity, int threadPriority) {
+        mThreadName = threadName;
+        mConcurrency = concurrency;
+        mCapacity = capacity;
+        mThreadPriority = threadPriority;
+    }
+
+    public String getThreadName() {
+        return mThreadName;
+    }
+
+    /***
+     * @return maximum number of jobs of this lane running at the same time
+     */
+    public int getConcurrency() {
+        return mConcurrency;
+    }
+
+    /***
+     * @return maximum number of jobs waiting in the queue of this lane
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getThreadPriority() {
+        return mThreadPriority;
+    }
+}
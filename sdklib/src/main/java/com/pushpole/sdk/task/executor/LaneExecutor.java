@@ -0,0 +1,287 @@
+package com.pushpole.sdk.task.executor;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.pushpole.sdk.internal.log.LogData;
+import com.pushpole.sdk.internal.log.Logger;
+
+/***
+ * Executor with separate {@link Lane}s for user visible, control-plane and bulk work
+ * every lane has a bounded priority queue and a fixed number of worker threads,
+ * delayed jobs are kept on a single timer thread and handed to their lane when due
+ *
+ * Threads are only started when jobs are submitted and stop after being idle for the idle timeout,
+ * so a process which rarely runs tasks does not keep any thread alive
+ */
+public class LaneExecutor {
+    public final static int PRIORITY_LOW = 0;
+    public final static int PRIORITY_NORMAL = 5;
+    public final static int PRIORITY_HIGH = 10;
+
+    private final static int MAX_EXTRA_THREADS = 4;
+    public final static long DEFAULT_IDLE_TIMEOUT = 30 * 1000L;
+
+    private final Map<Lane, ThreadPoolExecutor> mLanes;
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    public LaneExecutor() {
+        this(DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /***
+     * @param idleTimeout time in milliseconds an idle thread waits for new jobs before stopping
+     */
+    public LaneExecutor(long idleTimeout) {
+        mLanes = new EnumMap<>(Lane.class);
+        for (Lane lane : Lane.values()) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    lane.getConcurrency(), lane.getConcurrency(),
+                    idleTimeout, TimeUnit.MILLISECONDS,
+                    new BoundedPriorityQueue(lane.getCapacity()),
+                    new LaneThreadFactory(lane.getThreadName(), lane.getThreadPriority()),
+                    new LaneRejectionHandler(lane));
+            executor.allowCoreThreadTimeOut(true);
+            mLanes.put(lane, executor);
+        }
+        mTimer = new ScheduledThreadPoolExecutor(1,
+                new LaneThreadFactory("pushpole-timer", android.os.Process.THREAD_PRIORITY_BACKGROUND));
+        // The timer thread does not stop while delayed jobs are pending
+        mTimer.setKeepAliveTime(idleTimeout, TimeUnit.MILLISECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    /***
+     * change the time idle threads wait for new jobs before stopping
+     *
+     * @param idleTimeout the timeout in milliseconds, must be positive
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        for (ThreadPoolExecutor executor : mLanes.values()) {
+            executor.setKeepAliveTime(idleTimeout, TimeUnit.MILLISECONDS);
+        }
+        mTimer.setKeepAliveTime(idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /***
+     * @return number of threads currently alive in all lanes and the timer
+     */
+    public int getLiveThreadCount() {
+        int count = mTimer.getPoolSize();
+        for (ThreadPoolExecutor executor : mLanes.values()) {
+            count += executor.getPoolSize();
+        }
+        return count;
+    }
+
+    /***
+     * submit a job to the given lane
+     *
+     * @param lane     the lane to run the job on
+     * @param priority jobs with higher priority leave the lane queue first
+     * @param runnable the job
+     * @return {@code false} if the lane queue is full and the job was dropped
+     */
+    public boolean submit(Lane lane, int priority, Runnable runnable) {
+        try {
+            mLanes.get(lane).execute(new Job(runnable, priority, mSequence.getAndIncrement()));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /***
+     * submit a job to the given lane after {@code delayMillis}
+     * the job waits on the timer thread and does not occupy the lane queue until it is due
+     */
+    public void submitDelayed(Lane lane, int priority, Runnable runnable, long delayMillis) {
+        submitDelayed(lane, priority, runnable, delayMillis, null);
+    }
+
+    /***
+     * submit a job to the given lane after {@code delayMillis}
+     *
+     * @param onDropped run on the timer thread if the lane queue is full when the job is due and
+     *                  the job was dropped, may be {@code null}
+     */
+    public void submitDelayed(final Lane lane, final int priority, final Runnable runnable, long delayMillis,
+                              final Runnable onDropped) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!submit(lane, priority, runnable) && onDropped != null) {
+                    onDropped.run();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /***
+     * run a job on the timer thread after {@code delayMillis}, the job must be short
+     * jobs which are no longer needed should be cancelled with {@link #cancelOnTimer(ScheduledFuture)}
+     */
+    public ScheduledFuture<?> scheduleOnTimer(Runnable runnable, long delayMillis) {
+        return mTimer.schedule(runnable, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /***
+     * cancel a job of {@link #scheduleOnTimer(Runnable, long)} and remove it from the timer queue
+     * a cancelled job would otherwise stay queued until its delay passes and keep the timer thread
+     * alive, {@code setRemoveOnCancelPolicy} needs API 21
+     */
+    public void cancelOnTimer(ScheduledFuture<?> future) {
+        if (future.cancel(false) && future instanceof Runnable) {
+            mTimer.remove((Runnable) future);
+        }
+    }
+
+    /***
+     * @return number of jobs waiting on the timer thread
+     */
+    public int getTimerQueueSize() {
+        return mTimer.getQueue().size();
+    }
+
+    /***
+     * let the lane use one more thread while one of its jobs is stuck past its deadline
+     * every successful call must be matched by a call to {@link #releaseExtraThread(Lane)} once the job returns
+     */
+    public synchronized boolean addExtraThread(Lane lane) {
+        ThreadPoolExecutor executor = mLanes.get(lane);
+        int size = executor.getCorePoolSize();
+        if (size >= lane.getConcurrency() + MAX_EXTRA_THREADS) {
+            return false;
+        }
+        executor.setMaximumPoolSize(size + 1);
+        executor.setCorePoolSize(size + 1);
+        return true;
+    }
+
+    /***
+     * @return number of extra threads the lane is currently allowed to use
+     */
+    public synchronized int getExtraThreadCount(Lane lane) {
+        return mLanes.get(lane).getCorePoolSize() - lane.getConcurrency();
+    }
+
+    public synchronized void releaseExtraThread(Lane lane) {
+        ThreadPoolExecutor executor = mLanes.get(lane);
+        int size = executor.getCorePoolSize();
+        if (size <= lane.getConcurrency()) {
+            return;
+        }
+        executor.setCorePoolSize(size - 1);
+        executor.setMaximumPoolSize(size - 1);
+    }
+
+    /***
+     * @return number of jobs waiting in the queue of the lane
+     */
+    public int getQueuedCount(Lane lane) {
+        return mLanes.get(lane).getQueue().size();
+    }
+
+    /***
+     * A queued job, ordered by priority and then by submission order
+     */
+    static class Job implements Runnable, Comparable<Job> {
+        private final Runnable mRunnable;
+        private final int mPriority;
+        private final long mSequence;
+
+        Job(Runnable runnable, int priority, long sequence) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /***
+     * {@link PriorityBlockingQueue} refusing new elements once {@code capacity} is reached,
+     * {@link ThreadPoolExecutor} then hands the job to its {@link RejectedExecutionHandler}
+     * offers are serialized so concurrent submitters can not pass the size check together, taking
+     * elements only makes the queue smaller and needs no lock
+     */
+    static class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable> {
+        private final int mCapacity;
+
+        BoundedPriorityQueue(int capacity) {
+            super(Math.min(capacity, 16));
+            mCapacity = capacity;
+        }
+
+        @Override
+        public synchronized boolean offer(Runnable runnable) {
+            if (size() >= mCapacity) {
+                return false;
+            }
+            return super.offer(runnable);
+        }
+    }
+
+    private static class LaneRejectionHandler implements RejectedExecutionHandler {
+        private final Lane mLane;
+
+        LaneRejectionHandler(Lane lane) {
+            mLane = lane;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            Logger.warning("Task queue is full, dropping task", new LogData(
+                    "Lane", mLane.name(),
+                    "Queued", String.valueOf(executor.getQueue().size())
+            ));
+            throw new RejectedExecutionException("Lane " + mLane + " is full");
+        }
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final int mThreadPriority;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        LaneThreadFactory(String name, int threadPriority) {
+            mName = name;
+            mThreadPriority = threadPriority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(mThreadPriority);
+                    runnable.run();
+                }
+            }, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.pushpole.sdk.task.options;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/***
+ * Retry policy of a scheduled task, complements {@link DefaultOptions}
+ * when present, {@link com.pushpole.sdk.task.TaskManager} re-schedules a task returning
+ * {@code Result.RESCHEDULE} itself, using exponential backoff with full jitter, instead of
+ * leaving retry timing to the scheduler. {@link DefaultOptions#retryCount()} still limits attempts.
+ * Task types which can not be annotated get their policy when registered in
+ * {@link com.pushpole.sdk.task.TaskRegistry}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface RetryPolicy {
+    /***
+     * @return upper bound of the delay before the first retry in milliseconds
+     */
+    long initialBackoff() default 30 * 1000L;
+
+    /***
+     * @return upper bound of the delay between retries in milliseconds
+     */
+    long maxBackoff() default 60 * 60 * 1000L;
+
+    /***
+     * @return time after the task was scheduled in which retries are allowed, in milliseconds
+     */
+    long maxElapsedTime() default 24 * 60 * 60 * 1000L;
+}
@@ -0,0 +1,14 @@
+package com.pushpole.sdk.task.scheduler;
+
+import android.content.Context;
+
+import java.util.List;
+
+import com.pushpole.sdk.task.options.TaskOptions;
+
+/***
+ * A {@link Scheduler} able to schedule many jobs sharing the same options in one call
+ */
+public interface BatchScheduler extends Scheduler {
+    void scheduleAll(Context context, List<String> tags, TaskOptions taskOptions);
+}
@@ -0,0 +1,16 @@
+package com.pushpole.sdk.task.scheduler;
+
+import android.content.Context;
+
+import java.util.Set;
+
+/***
+ * A scheduler able to list the jobs it still knows about
+ * used to find task data whose job was dropped by the scheduler
+ */
+public interface ScheduleInspector {
+    /***
+     * @return tags of every job waiting to run or {@code null} if they can not be listed
+     */
+    Set<String> getScheduledTags(Context context);
+}
@@ -0,0 +1,35 @@
+package com.pushpole.sdk.task.scheduler.evernote;
+
+import android.content.Context;
+
+import com.evernote.android.job.JobManager;
+import com.evernote.android.job.JobRequest;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.pushpole.sdk.internal.log.Logger;
+import com.pushpole.sdk.task.scheduler.ScheduleInspector;
+
+/***
+ * Lists jobs pending in the evernote {@link JobManager} used by {@link EvernoteScheduler}
+ */
+public class EvernoteScheduleInspector implements ScheduleInspector {
+
+    @Override
+    public Set<String> getScheduledTags(Context context) {
+        Set<JobRequest> requests;
+        try {
+            requests = JobManager.instance().getAllJobRequests();
+        } catch (IllegalStateException e) {
+            // job manager is not created yet, pending jobs are unknown
+            Logger.warning("Listing scheduled jobs failed, job manager is not ready");
+            return null;
+        }
+        Set<String> tags = new HashSet<>();
+        for (JobRequest request : requests) {
+            tags.add(request.getTag());
+        }
+        return tags;
+    }
+}
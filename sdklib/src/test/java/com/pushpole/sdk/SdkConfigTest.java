@@ -0,0 +1,90 @@
+package com.pushpole.sdk;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import com.pushpole.sdk.internal.db.KeyStore;
+import com.pushpole.sdk.util.Pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link SdkConfig} snapshots follow writes of their {@link KeyStore} keys and that server
+ * config messages store valid settings only
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SdkConfigTest {
+    private Context mContext;
+    private KeyStore mKeyStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mKeyStore = KeyStore.getInstance(mContext);
+        mKeyStore.batch()
+                .delete(PlainConstants.CONNECTIVITY_PERIOD)
+                .delete(SdkConfig.MESSAGE_MAX_ROWS)
+                .delete(SdkConfig.MESSAGE_MAX_BYTES)
+                .delete(SdkConfig.COLLECTION_MAX_BYTES)
+                .delete(SdkConfig.UPSTREAM_BATCH)
+                .commit();
+    }
+
+    @Test
+    public void testWriteReplacesSnapshot() throws Exception {
+        assertEquals(SdkConfig.DEFAULT_CONNECTIVITY_PERIOD, SdkConfig.get(mContext).getConnectivityPeriod());
+
+        mKeyStore.putString(PlainConstants.CONNECTIVITY_PERIOD, "60000");
+        assertEquals(60000L, SdkConfig.get(mContext).getConnectivityPeriod());
+
+        mKeyStore.putString(PlainConstants.CONNECTIVITY_PERIOD, "not a number");
+        assertEquals(SdkConfig.DEFAULT_CONNECTIVITY_PERIOD, SdkConfig.get(mContext).getConnectivityPeriod());
+    }
+
+    @Test
+    public void testBatchWriteReplacesSnapshot() throws Exception {
+        SdkConfig.get(mContext);
+        mKeyStore.batch()
+                .putString(SdkConfig.MESSAGE_MAX_ROWS, "10")
+                .putString(SdkConfig.COLLECTION_MAX_BYTES, "2048")
+                .commit();
+
+        SdkConfig config = SdkConfig.get(mContext);
+        assertEquals(10, config.getMessageMaxRows());
+        assertEquals(2048L, config.getCollectionMaxBytes());
+        assertEquals(SdkConfig.DEFAULT_MESSAGE_MAX_BYTES, config.getMessageMaxBytes());
+    }
+
+    @Test
+    public void testOtherWritesKeepSnapshot() throws Exception {
+        SdkConfig config = SdkConfig.get(mContext);
+        mKeyStore.putString("not_a_config_key", "value");
+
+        assertSame(config, SdkConfig.get(mContext));
+    }
+
+    @Test
+    public void testServerConfigStored() throws Exception {
+        SdkConfig.get(mContext);
+        Pack config = new Pack();
+        config.putString(SdkConfig.MESSAGE_MAX_ROWS, "100");
+        config.putString(SdkConfig.MESSAGE_MAX_BYTES, "-5");
+        config.putString(SdkConfig.COLLECTION_MAX_BYTES, "not a number");
+        config.putString(SdkConfig.UPSTREAM_BATCH, "true");
+        config.putString("unrelated", "1");
+
+        assertEquals(2, SdkConfig.storeServerConfig(mContext, config));
+        SdkConfig current = SdkConfig.get(mContext);
+        assertEquals(100, current.getMessageMaxRows());
+        assertTrue(current.isUpstreamBatchEnabled());
+        assertEquals(SdkConfig.DEFAULT_MESSAGE_MAX_BYTES, current.getMessageMaxBytes());
+        assertEquals(SdkConfig.DEFAULT_COLLECTION_MAX_BYTES, current.getCollectionMaxBytes());
+    }
+}
@@ -0,0 +1,139 @@
+package com.pushpole.sdk.internal.db;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.pushpole.sdk.SdkConfig;
+
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_ID;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks oldest messages are evicted when the message table is over its row or byte budget, that
+ * a table kept at its budget stays there, and that budgets follow {@link SdkConfig}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BatchDbOperationBudgetTest {
+    private BatchDbOperation mDbOperation;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDbOperation = BatchDbOperation.getInstance(RuntimeEnvironment.application);
+        mDb = DatabaseHelper.getInstance(RuntimeEnvironment.application).getWritableDatabase();
+        mDb.delete(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, null, null);
+        mDbOperation.setMessageBudget(Long.MAX_VALUE, Integer.MAX_VALUE);
+        // count the emptied table, its running totals are only corrected by a count
+        mDbOperation.enforceBudgets();
+    }
+
+    @Test
+    public void testRowBudget() throws Exception {
+        mDbOperation.insertMessages(messages(0, 50, 10));
+        mDbOperation.setMessageBudget(Long.MAX_VALUE, 20);
+        long evicted = mDbOperation.getEvictedMessageCount();
+
+        assertEquals(30, mDbOperation.enforceBudgets());
+        assertEquals(20, count());
+        assertEquals(30, mDbOperation.getEvictedMessageCount() - evicted);
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF,
+                COLUMN_GCM_MSG_ID + " = ?", new String[]{"msg_30"}));
+    }
+
+    @Test
+    public void testByteBudgetOnInsert() throws Exception {
+        // every row is a 6 character id and 10 characters of data
+        mDbOperation.setMessageBudget(16 * 10, Integer.MAX_VALUE);
+        mDbOperation.insertMessages(messages(0, 8, 10));
+        mDbOperation.insertMessages(messages(8, 8, 10));
+
+        assertEquals(10, count());
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF,
+                COLUMN_GCM_MSG_ID + " = ?", new String[]{"msg_05"}));
+    }
+
+    @Test
+    public void testWithinBudget() throws Exception {
+        mDbOperation.insertMessages(messages(0, 10, 10));
+        mDbOperation.setMessageBudget(1000, 10);
+
+        assertEquals(0, mDbOperation.enforceBudgets());
+        assertEquals(10, count());
+    }
+
+    @Test
+    public void testInsertsAtBudgetStayAtBudget() throws Exception {
+        mDbOperation.setMessageBudget(Long.MAX_VALUE, 10);
+        mDbOperation.insertMessages(messages(0, 10, 10));
+        long evicted = mDbOperation.getEvictedMessageCount();
+
+        // each insert evicts from the running totals
+        for (int i = 10; i < 30; i++) {
+            mDbOperation.insertMessages(messages(i, 1, 10));
+        }
+        assertEquals(10, count());
+        assertEquals(evicted + 20, mDbOperation.getEvictedMessageCount());
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF,
+                COLUMN_GCM_MSG_ID + " = ?", new String[]{"msg_20"}));
+    }
+
+    @Test
+    public void testRowsDeletedElsewhereCountedByEnforce() throws Exception {
+        mDbOperation.setMessageBudget(Long.MAX_VALUE, 10);
+        mDbOperation.insertMessages(messages(0, 10, 10));
+        mDb.delete(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, COLUMN_GCM_MSG_ID + " < ?", new String[]{"msg_05"});
+        // the running totals still hold the deleted rows until the table is counted again
+        assertEquals(0, mDbOperation.enforceBudgets());
+        long evicted = mDbOperation.getEvictedMessageCount();
+
+        mDbOperation.insertMessages(messages(10, 5, 10));
+        assertEquals(10, count());
+        assertEquals(evicted, mDbOperation.getEvictedMessageCount());
+
+        mDbOperation.insertMessages(messages(15, 3, 10));
+        assertEquals(10, count());
+        assertEquals(evicted + 3, mDbOperation.getEvictedMessageCount());
+    }
+
+    @Test
+    public void testBudgetFollowsConfig() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(RuntimeEnvironment.application);
+        keyStore.putString(SdkConfig.MESSAGE_MAX_ROWS, "5");
+        try {
+            mDbOperation.insertMessages(messages(0, 8, 10));
+            assertEquals(5, count());
+        } finally {
+            keyStore.delete(SdkConfig.MESSAGE_MAX_ROWS);
+        }
+
+        mDbOperation.insertMessages(messages(8, 8, 10));
+        assertEquals(13, count());
+    }
+
+    private long count() {
+        return DatabaseUtils.queryNumEntries(mDb, TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF);
+    }
+
+    private static List<BatchDbOperation.MessageRow> messages(int start, int count, int dataLength) {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < dataLength; i++) {
+            data.append('x');
+        }
+        List<BatchDbOperation.MessageRow> messages = new ArrayList<>();
+        for (int i = start; i < start + count; i++) {
+            messages.add(new BatchDbOperation.MessageRow(String.format("msg_%02d", i), data.toString(), 1,
+                    1500000000000L + i, null));
+        }
+        return messages;
+    }
+}
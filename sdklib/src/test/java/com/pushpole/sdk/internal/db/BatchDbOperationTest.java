@@ -0,0 +1,174 @@
+package com.pushpole.sdk.internal.db;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.pushpole.sdk.util.Pack;
+
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_TYPE;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.TABLE_COLLECTION;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks bulk inserts and paged reads of {@link BatchDbOperation}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BatchDbOperationTest {
+    private DatabaseHelper mDbHelper;
+    private BatchDbOperation mDbOperation;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDbHelper = DatabaseHelper.getInstance(RuntimeEnvironment.application);
+        mDbOperation = BatchDbOperation.getInstance(RuntimeEnvironment.application);
+        mDbOperation.setMessageBudget(Long.MAX_VALUE, Integer.MAX_VALUE);
+        mDbOperation.setCollectionBudget(Long.MAX_VALUE, Integer.MAX_VALUE);
+        mDb = mDbHelper.getWritableDatabase();
+        mDb.delete(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, null, null);
+        mDb.delete(TABLE_COLLECTION, null, null);
+    }
+
+    @Test
+    public void testInsertMessages() throws Exception {
+        assertEquals(0, mDbOperation.insertMessages(Collections.<BatchDbOperation.MessageRow>emptyList()));
+        assertEquals(5, mDbOperation.insertMessages(messages(0, 5)));
+
+        final List<BatchDbOperation.MessageRow> rows = new ArrayList<>();
+        mDbOperation.forEachMessage(null, null, BatchDbOperation.DEFAULT_PAGE_SIZE, collect(rows));
+        assertEquals(5, rows.size());
+        BatchDbOperation.MessageRow row = rows.get(3);
+        assertEquals("msg_3", row.getMessageId());
+        assertEquals("data_3", row.getData());
+        assertEquals(1, row.getType());
+        assertEquals(1500000000003L, row.getCreateTime());
+        assertEquals(null, row.getCreateDate());
+        assertTrue(row.getId() > rows.get(2).getId());
+    }
+
+    @Test
+    public void testInsertAfterDatabaseReopened() throws Exception {
+        mDbOperation.insertMessages(messages(0, 2));
+        mDbOperation.insertCollectionData("app_list", createData(2));
+        // the compiled statements of the closed connection are released and compiled again
+        mDbHelper.close();
+
+        assertEquals(2, mDbOperation.insertMessages(messages(2, 2)));
+        assertEquals(2, mDbOperation.insertCollectionData("app_list", createData(2)));
+        mDb = mDbHelper.getWritableDatabase();
+        assertEquals(4, DatabaseUtils.queryNumEntries(mDb, TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF));
+        assertEquals(4, DatabaseUtils.queryNumEntries(mDb, TABLE_COLLECTION));
+    }
+
+    @Test
+    public void testInsertCollectionData() throws Exception {
+        assertEquals(3, mDbOperation.insertCollectionData("app_list", createData(3)));
+        assertEquals(2, mDbOperation.insertCollectionData("wifi_list", createData(2)));
+
+        final List<String> json = new ArrayList<>();
+        mDbOperation.forEachCollectionData("app_list", 2, new BatchDbOperation.RowVisitor<String>() {
+            @Override
+            public boolean visit(String row) {
+                json.add(row);
+                return true;
+            }
+        });
+        assertEquals(3, json.size());
+        assertEquals("2", Pack.fromJson(json.get(2)).getString("index", null));
+    }
+
+    @Test
+    public void testPagesCoverEveryRow() throws Exception {
+        mDbOperation.insertMessages(messages(0, 25));
+        List<BatchDbOperation.MessageRow> rows = new ArrayList<>();
+        mDbOperation.forEachMessage(null, null, 10, collect(rows));
+        assertEquals(25, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals("msg_" + i, rows.get(i).getMessageId());
+        }
+
+        // the last page is full, the read ends on the empty page after it
+        rows.clear();
+        mDbOperation.forEachMessage(null, null, 5, collect(rows));
+        assertEquals(25, rows.size());
+    }
+
+    @Test
+    public void testVisitorStopsRead() throws Exception {
+        mDbOperation.insertMessages(messages(0, 25));
+        final List<BatchDbOperation.MessageRow> rows = new ArrayList<>();
+        mDbOperation.forEachMessage(null, null, 10, new BatchDbOperation.RowVisitor<BatchDbOperation.MessageRow>() {
+            @Override
+            public boolean visit(BatchDbOperation.MessageRow row) {
+                rows.add(row);
+                return rows.size() < 12;
+            }
+        });
+
+        assertEquals(12, rows.size());
+        assertEquals("msg_11", rows.get(11).getMessageId());
+    }
+
+    @Test
+    public void testSelectionArgsMergedWithPaging() throws Exception {
+        List<BatchDbOperation.MessageRow> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            messages.add(new BatchDbOperation.MessageRow("msg_" + i, "data_" + i, i % 2, 1500000000000L + i, null));
+        }
+        mDbOperation.insertMessages(messages);
+
+        List<BatchDbOperation.MessageRow> rows = new ArrayList<>();
+        mDbOperation.forEachMessage(COLUMN_GCM_MSG_TYPE + " = ?", new String[]{"1"}, 3, collect(rows));
+        assertEquals(10, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals("msg_" + (2 * i + 1), rows.get(i).getMessageId());
+        }
+
+        // a selection without arguments
+        rows.clear();
+        mDbOperation.forEachMessage(COLUMN_GCM_MSG_TYPE + " = 0", null, 3, collect(rows));
+        assertEquals(10, rows.size());
+        assertEquals("msg_18", rows.get(9).getMessageId());
+    }
+
+    private static BatchDbOperation.RowVisitor<BatchDbOperation.MessageRow> collect(
+            final List<BatchDbOperation.MessageRow> rows) {
+        return new BatchDbOperation.RowVisitor<BatchDbOperation.MessageRow>() {
+            @Override
+            public boolean visit(BatchDbOperation.MessageRow row) {
+                rows.add(row);
+                return true;
+            }
+        };
+    }
+
+    private static List<BatchDbOperation.MessageRow> messages(int start, int count) {
+        List<BatchDbOperation.MessageRow> messages = new ArrayList<>();
+        for (int i = start; i < start + count; i++) {
+            messages.add(new BatchDbOperation.MessageRow("msg_" + i, "data_" + i, 1, 1500000000000L + i, null));
+        }
+        return messages;
+    }
+
+    private static List<Pack> createData(int count) {
+        List<Pack> data = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Pack item = new Pack();
+            item.putString("index", String.valueOf(i));
+            data.add(item);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,125 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_CREATED_TIME;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_DATA;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_ID;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_GCM_MSG_TYPE;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.COLUMN_ID;
+import static com.pushpole.sdk.internal.db.DatabaseHelper.TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks message id lookups and age based cleanup of the notification table use the indexes of
+ * {@link DatabaseHelper}, and measures them with 100k rows when run explicitly
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DatabaseIndexBenchmarkTest {
+    private final static int ROWS = 100000;
+    private final static int LOOKUPS = 200;
+    private final static long START_TIME = 1500000000000L;
+    private final static String MSG_ID_INDEX = TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF + "_" + COLUMN_GCM_MSG_ID + "_idx";
+    private final static String CREATED_TIME_INDEX = TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF + "_"
+            + COLUMN_GCM_MSG_CREATED_TIME + "_idx";
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        mDb = DatabaseHelper.getInstance(RuntimeEnvironment.application).getWritableDatabase();
+        mDb.delete(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, null, null);
+    }
+
+    @Test
+    public void testQueriesUseIndexes() throws Exception {
+        insertRows(100);
+
+        assertTrue(getQueryPlan("SELECT " + COLUMN_ID + " FROM " + TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF
+                + " WHERE " + COLUMN_GCM_MSG_ID + " = ?", "msg_1").contains(MSG_ID_INDEX));
+        assertTrue(getQueryPlan("DELETE FROM " + TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF
+                + " WHERE " + COLUMN_GCM_MSG_CREATED_TIME + " < ?", String.valueOf(START_TIME)).contains(CREATED_TIME_INDEX));
+    }
+
+    @Ignore("Benchmark, run explicitly")
+    @Test
+    public void testIndexedQueries() throws Exception {
+        insertRows(ROWS);
+        long indexedLookup = timeLookups();
+        long indexedCleanup = timeCleanup(START_TIME + 1000 * 1000L);
+
+        mDb.execSQL("DROP INDEX " + MSG_ID_INDEX);
+        mDb.execSQL("DROP INDEX " + CREATED_TIME_INDEX);
+        long scanLookup = timeLookups();
+        long scanCleanup = timeCleanup(START_TIME + 2000 * 1000L);
+
+        System.out.println(String.format("Notification table, %d rows: %d id lookups indexed %d us, scanned %d us; "
+                        + "cleanup indexed %d us, scanned %d us",
+                ROWS, LOOKUPS, indexedLookup / 1000, scanLookup / 1000, indexedCleanup / 1000, scanCleanup / 1000));
+    }
+
+    private void insertRows(int count) {
+        mDb.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < count; i++) {
+                values.put(COLUMN_GCM_MSG_ID, "msg_" + i);
+                values.put(COLUMN_GCM_MSG_DATA, "{\"index\":" + i + "}");
+                values.put(COLUMN_GCM_MSG_TYPE, i % 10);
+                values.put(COLUMN_GCM_MSG_CREATED_TIME, START_TIME + i * 1000L);
+                mDb.insert(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, null, values);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /***
+     * @return the details of every step of the query plan
+     */
+    private String getQueryPlan(String sql, String arg) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, new String[]{arg});
+        try {
+            StringBuilder plan = new StringBuilder();
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+    private long timeLookups() {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            String msgId = "msg_" + (ROWS - 1 - i * 100);
+            Cursor cursor = mDb.query(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, new String[]{COLUMN_ID},
+                    COLUMN_GCM_MSG_ID + " = ?", new String[]{msgId}, null, null, null);
+            try {
+                assertEquals(1, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private long timeCleanup(long olderThan) {
+        long startTime = System.nanoTime();
+        mDb.delete(TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF, COLUMN_GCM_MSG_CREATED_TIME + " < ?",
+                new String[]{String.valueOf(olderThan)});
+        return System.nanoTime() - startTime;
+    }
+}
@@ -0,0 +1,143 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades populated databases of every historical version to {@link DatabaseHelper#DATABASE_VERSION}
+ * and checks their rows are kept
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DatabaseMigrationTest {
+    private final static String DB_NAME = "migration_test_db";
+
+    private final static String V8_TASK = "CREATE TABLE _task_table(_id INTEGER PRIMARY KEY, tag TEXT,"
+            + " network_required INTEGER, next_try_time INTEGER, back_off_count INTEGER, task_delay INTEGER,"
+            + " is_periodic INTEGER, task_type INTEGER, created_at DATETIME DEFAULT CURRENT_TIMESTAMP )";
+    private final static String V9_TASK = "CREATE TABLE _task_table(_id INTEGER PRIMARY KEY, tag TEXT UNIQUE,"
+            + " network_required INTEGER, next_try_time INTEGER, back_off_count INTEGER, task_delay INTEGER,"
+            + " is_periodic INTEGER, task_type INTEGER, task_data TEXT, created_at DATETIME DEFAULT CURRENT_TIMESTAMP )";
+    private final static String V9_TASK_INDEX = "CREATE INDEX _task_table_next_try_time_idx ON _task_table(next_try_time)";
+    private final static String NOTIF = "CREATE TABLE _upstream_n_notif_table(_id INTEGER PRIMARY KEY, gcm_msg_id TEXT,"
+            + " msg_data TEXT, msg_type INTEGER, msg_create_time INTEGER, msg_create_date DATE )";
+    private final static String COLLECTION = "CREATE TABLE _collection_data(_id INTEGER PRIMARY KEY, col_json TEXT,"
+            + " col_type TEXT, created_at DATETIME DEFAULT CURRENT_TIMESTAMP )";
+
+    private Context mContext;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mFile = mContext.getDatabasePath(DB_NAME);
+        mFile.getParentFile().mkdirs();
+        mContext.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void testUpgradeFromVersion8() throws Exception {
+        SQLiteDatabase db = createDatabase(8, V8_TASK, NOTIF, COLLECTION);
+        db.execSQL("INSERT INTO _task_table(tag, next_try_time) VALUES ('dup', 1), ('dup', 2), ('other', 3)");
+        db.close();
+
+        SQLiteDatabase upgraded = upgrade();
+        assertRowsKept(upgraded);
+        assertEquals(2, DatabaseUtils.queryNumEntries(upgraded, DatabaseHelper.TABLE_TASK));
+        assertEquals(2, DatabaseUtils.longForQuery(upgraded,
+                "SELECT next_try_time FROM _task_table WHERE tag = 'dup'", null));
+        upgraded.close();
+    }
+
+    @Test
+    public void testUpgradeFromVersion9() throws Exception {
+        SQLiteDatabase db = createDatabase(9, V9_TASK, V9_TASK_INDEX, NOTIF, COLLECTION);
+        db.execSQL("INSERT INTO _task_table(tag, next_try_time, task_data) VALUES ('@1#abcd', 1, '{}')");
+        db.close();
+
+        SQLiteDatabase upgraded = upgrade();
+        assertRowsKept(upgraded);
+        assertEquals(1, DatabaseUtils.queryNumEntries(upgraded, DatabaseHelper.TABLE_TASK));
+        upgraded.close();
+    }
+
+    @Test
+    public void testUnknownOldVersionRecreated() throws Exception {
+        SQLiteDatabase db = createDatabase(DatabaseHelper.MIN_MIGRATED_VERSION - 1, V8_TASK, NOTIF, COLLECTION);
+        db.close();
+
+        SQLiteDatabase upgraded = new DatabaseHelper(mContext, DB_NAME).getWritableDatabase();
+        assertEquals(0, DatabaseUtils.queryNumEntries(upgraded, DatabaseHelper.TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF));
+        assertIndexesExist(upgraded);
+        upgraded.close();
+    }
+
+    @Test
+    public void testDowngradeKeepsCompatibleTables() throws Exception {
+        SQLiteDatabase db = createDatabase(DatabaseHelper.DATABASE_VERSION + 1, V9_TASK, NOTIF, COLLECTION);
+        db.close();
+
+        SQLiteDatabase downgraded = new DatabaseHelper(mContext, DB_NAME).getWritableDatabase();
+        assertEquals(DatabaseHelper.DATABASE_VERSION, downgraded.getVersion());
+        assertRowsKept(downgraded);
+        assertEquals(0, DatabaseUtils.queryNumEntries(downgraded, DatabaseHelper.TABLE_OUTBOX));
+        downgraded.close();
+    }
+
+    private SQLiteDatabase createDatabase(int version, String... statements) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        for (String statement : statements) {
+            db.execSQL(statement);
+        }
+        db.execSQL("INSERT INTO _upstream_n_notif_table(gcm_msg_id, msg_data, msg_type, msg_create_time)"
+                + " VALUES ('msg_1', '{}', 1, 1500000000000)");
+        db.execSQL("INSERT INTO _collection_data(col_json, col_type) VALUES ('{}', 'app_list')");
+        db.setVersion(version);
+        return db;
+    }
+
+    private SQLiteDatabase upgrade() {
+        SQLiteDatabase db = new DatabaseHelper(mContext, DB_NAME).getWritableDatabase();
+        assertEquals(DatabaseHelper.DATABASE_VERSION, db.getVersion());
+        assertIndexesExist(db);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, DatabaseHelper.TABLE_OUTBOX));
+        return db;
+    }
+
+    private void assertRowsKept(SQLiteDatabase db) {
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, DatabaseHelper.TABLE_UPSTREAM_MSG_DOWNSTREAM_NOTIF));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, DatabaseHelper.TABLE_COLLECTION));
+    }
+
+    private void assertIndexesExist(SQLiteDatabase db) {
+        String[] indexes = new String[]{
+                "_task_table_next_try_time_idx",
+                "_upstream_n_notif_table_gcm_msg_id_idx",
+                "_upstream_n_notif_table_msg_create_time_idx",
+                "_collection_data_col_type_idx",
+                "_collection_data_created_at_idx",
+                "_upstream_outbox_batch_id_idx"
+        };
+        for (String index : indexes) {
+            Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?",
+                    new String[]{index});
+            try {
+                assertTrue("Missing index " + index, cursor.moveToFirst());
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+}
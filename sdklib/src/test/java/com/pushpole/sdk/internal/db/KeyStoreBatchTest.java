@@ -0,0 +1,66 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks a {@link KeyStore.Batch} writes preferences once where individual puts write once each
+ */
+@RunWith(RobolectricTestRunner.class)
+public class KeyStoreBatchTest {
+    private final static int MUTATIONS = 200;
+
+    private KeyStore mKeyStore;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        mKeyStore = KeyStore.getInstance(context);
+    }
+
+    @Test
+    public void testBatchWritesOnce() throws Exception {
+        long writesBefore = mKeyStore.getWriteCount();
+        for (int i = 0; i < MUTATIONS; i++) {
+            mKeyStore.putInt("single_" + i, i);
+        }
+        assertEquals(MUTATIONS, mKeyStore.getWriteCount() - writesBefore);
+
+        writesBefore = mKeyStore.getWriteCount();
+        KeyStore.Batch batch = mKeyStore.batch();
+        for (int i = 0; i < MUTATIONS; i++) {
+            batch.putInt("batch_" + i, i);
+        }
+        batch.commit();
+        assertEquals(1, mKeyStore.getWriteCount() - writesBefore);
+        assertEquals(MUTATIONS - 1, mKeyStore.getInt("batch_" + (MUTATIONS - 1), -1));
+    }
+
+    @Test
+    public void testBatchChangesVisibleAfterCommit() throws Exception {
+        mKeyStore.putString("kept", "old");
+        mKeyStore.putString("deleted", "value");
+
+        KeyStore.Batch batch = mKeyStore.batch()
+                .putString("kept", "new")
+                .putBoolean("flag", true)
+                .putLong("time", 42L)
+                .delete("deleted");
+        assertEquals("old", mKeyStore.getString("kept", null));
+
+        batch.commit();
+        assertEquals("new", mKeyStore.getString("kept", null));
+        assertTrue(mKeyStore.getBoolean("flag", false));
+        assertEquals(42L, mKeyStore.getLong("time", 0));
+        assertFalse(mKeyStore.contains("deleted"));
+    }
+}
@@ -0,0 +1,73 @@
+package com.pushpole.sdk.internal.db;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks lazy expiry and sweeping of {@link KeyStore} values stored with a ttl
+ */
+@RunWith(RobolectricTestRunner.class)
+public class KeyStoreExpiryTest {
+    private KeyStore mKeyStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mKeyStore = KeyStore.getInstance(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testExpiredValueNotReturned() throws Exception {
+        mKeyStore.putString("short_lived", "value", -1);
+        mKeyStore.putString("long_lived", "value", 60000);
+
+        assertNull(mKeyStore.getString("short_lived", null));
+        assertFalse(mKeyStore.contains("short_lived"));
+        assertEquals("value", mKeyStore.getString("long_lived", null));
+        assertTrue(mKeyStore.getExpiryTime("long_lived") > System.currentTimeMillis());
+    }
+
+    @Test
+    public void testSweepDeletesExpiredValues() throws Exception {
+        KeyStore.Batch batch = mKeyStore.batch();
+        for (int i = 0; i < 10; i++) {
+            batch.putString("sweep_" + i, "value", -1);
+        }
+        batch.commit();
+
+        long writesBefore = mKeyStore.getWriteCount();
+        assertEquals(10, mKeyStore.sweepExpired());
+        assertEquals(1, mKeyStore.getWriteCount() - writesBefore);
+        assertFalse(mKeyStore.getAll().containsKey("sweep_0"));
+    }
+
+    @Test
+    public void testGetAllDeletesExpiredValues() throws Exception {
+        KeyStore.Batch batch = mKeyStore.batch();
+        for (int i = 0; i < 5; i++) {
+            batch.putString("lazy_" + i, "value", -1);
+        }
+        batch.commit();
+
+        long writesBefore = mKeyStore.getWriteCount();
+        assertFalse(mKeyStore.getAll().containsKey("lazy_0"));
+        assertEquals(1, mKeyStore.getWriteCount() - writesBefore);
+        assertEquals(0, mKeyStore.getExpiryTime("lazy_0"));
+        assertEquals(0, mKeyStore.sweepExpired());
+    }
+
+    @Test
+    public void testPutWithoutTtlClearsExpiry() throws Exception {
+        mKeyStore.putString("renewed", "value", 60000);
+        mKeyStore.putString("renewed", "value");
+
+        assertEquals(0, mKeyStore.getExpiryTime("renewed"));
+    }
+}
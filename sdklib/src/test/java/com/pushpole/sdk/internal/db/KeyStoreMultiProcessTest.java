@@ -0,0 +1,139 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.anyMapOf;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the owner process writes and publishes changes itself, while other processes send them
+ * to the owner and call listeners without holding the lock of {@link KeyStore}, read their own
+ * unsent changes and keep them across a restart
+ */
+@RunWith(RobolectricTestRunner.class)
+public class KeyStoreMultiProcessTest {
+    private final static String NAME = "keystore_multi_process_test";
+
+    private Context mContext;
+    private SharedPreferences mPrefs;
+    private KeyStoreSync mSync;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mPrefs = mContext.getSharedPreferences(NAME, Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+        String processName = KeyStoreSync.getProcessName();
+        mContext.getSharedPreferences(NAME + ".pending." + (processName == null ? "" : processName),
+                Context.MODE_PRIVATE).edit().clear().commit();
+        mSync = Mockito.mock(KeyStoreSync.class);
+    }
+
+    @Test
+    public void testOwnerWritesAndPublishes() throws Exception {
+        when(mSync.isOwner()).thenReturn(true);
+        KeyStore keyStore = new KeyStore(mPrefs, new PrefsBackend(mPrefs), mSync);
+        AtomicReference<Boolean> lockHeld = listenForLock(keyStore);
+
+        keyStore.putString("key", "value");
+
+        assertEquals("value", mPrefs.getString("key", null));
+        verify(mSync).publishWhenWritten(mPrefs);
+        verify(mSync, never()).sendToOwner(anyMapOf(String.class, Object.class));
+        assertEquals(Boolean.FALSE, lockHeld.get());
+    }
+
+    @Test
+    public void testOtherProcessSendsOutsideLock() throws Exception {
+        when(mSync.isOwner()).thenReturn(false);
+        final AtomicReference<KeyStore> keyStore = new AtomicReference<>();
+        final AtomicBoolean lockHeldWhileSending = new AtomicBoolean();
+        when(mSync.sendToOwner(anyMapOf(String.class, Object.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                lockHeldWhileSending.set(Thread.holdsLock(keyStore.get()));
+                return true;
+            }
+        });
+        keyStore.set(new KeyStore(mPrefs, new RemoteBackend(mContext, NAME, mSync), mSync));
+        AtomicReference<Boolean> lockHeld = listenForLock(keyStore.get());
+
+        keyStore.get().putString("key", "value");
+
+        verify(mSync, times(1)).sendToOwner(anyMapOf(String.class, Object.class));
+        verify(mSync, never()).publishWhenWritten(mPrefs);
+        assertFalse(lockHeldWhileSending.get());
+        assertEquals(Boolean.FALSE, lockHeld.get());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOtherProcessKeepsUnsentChanges() throws Exception {
+        when(mSync.isOwner()).thenReturn(false);
+        when(mSync.sendToOwner(anyMapOf(String.class, Object.class))).thenReturn(false);
+        KeyStore keyStore = new KeyStore(mPrefs, new RemoteBackend(mContext, NAME, mSync), mSync);
+        keyStore.putString("key", "value");
+        keyStore.putBoolean("deleted", true);
+        keyStore.delete("deleted");
+
+        // the owner has not written them, this process still reads its own changes
+        assertNull(mPrefs.getString("key", null));
+        assertEquals("value", keyStore.getString("key", null));
+        assertFalse(keyStore.contains("deleted"));
+
+        // a restarted process sends them with its next change
+        keyStore = new KeyStore(mPrefs, new RemoteBackend(mContext, NAME, mSync), mSync);
+        assertEquals("value", keyStore.getString("key", null));
+        when(mSync.sendToOwner(anyMapOf(String.class, Object.class))).thenReturn(true);
+        keyStore.putInt("other", 1);
+
+        ArgumentCaptor<Map> sent = ArgumentCaptor.forClass(Map.class);
+        verify(mSync, Mockito.atLeastOnce()).sendToOwner(sent.capture());
+        Map<String, Object> last = sent.getValue();
+        assertEquals("value", last.get("key"));
+        assertEquals(1, last.get("other"));
+        assertTrue(last.get("deleted") == KeyValueBackend.REMOVED);
+
+        // nothing is left to send after a restart
+        keyStore = new KeyStore(mPrefs, new RemoteBackend(mContext, NAME, mSync), mSync);
+        assertNull(keyStore.getString("key", null));
+    }
+
+    /***
+     * @return whether the lock of the store was held by the last listener call, {@code null}
+     * until the listener is called
+     */
+    private static AtomicReference<Boolean> listenForLock(final KeyStore keyStore) {
+        final AtomicReference<Boolean> lockHeld = new AtomicReference<>();
+        keyStore.registerOnChangeListener(new KeyStore.OnChangeListener() {
+            @Override
+            public void onKeyStoreChanged(KeyStore store, Set<String> changedKeys) {
+                lockHeld.set(Thread.holdsLock(keyStore));
+            }
+        });
+        return lockHeld;
+    }
+}
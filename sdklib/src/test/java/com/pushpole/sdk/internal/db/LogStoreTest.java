@@ -0,0 +1,152 @@
+package com.pushpole.sdk.internal.db;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks replay, torn tail recovery, growth and compaction of {@link LogStore}, and that a
+ * compaction rejected by its executor is tried again on a later write
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LogStoreTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(RuntimeEnvironment.application.getFilesDir(), "log_store_test");
+        mFile.delete();
+    }
+
+    @Test
+    public void testValuesSurviveReopen() throws Exception {
+        LogStore store = new LogStore(mFile);
+        Map<String, Object> changes = new HashMap<>();
+        changes.put("string", "value");
+        changes.put("int", 7);
+        changes.put("long", 42L);
+        changes.put("bool", true);
+        store.apply(changes);
+        store.apply(Collections.<String, Object>singletonMap("int", KeyValueBackend.REMOVED));
+
+        store = new LogStore(mFile);
+        assertEquals("value", store.getString("string", null));
+        assertEquals(42L, store.getLong("long", 0));
+        assertTrue(store.getBoolean("bool", false));
+        assertFalse(store.contains("int"));
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void testTornFrameIsDropped() throws Exception {
+        LogStore store = new LogStore(mFile);
+        store.apply(Collections.<String, Object>singletonMap("kept", "value"));
+        int end = store.getLogSize();
+        store.apply(Collections.<String, Object>singletonMap("torn", "value"));
+
+        // corrupt the payload of the last frame as an interrupted write would
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(end + 10);
+        file.write(0xFF);
+        file.close();
+
+        store = new LogStore(mFile);
+        assertEquals("value", store.getString("kept", null));
+        assertFalse(store.contains("torn"));
+        assertEquals(end, store.getLogSize());
+
+        store.apply(Collections.<String, Object>singletonMap("after", "value"));
+        store = new LogStore(mFile);
+        assertEquals("value", store.getString("after", null));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        LogStore store = new LogStore(mFile);
+        String value = new String(new char[1024]).replace('\0', 'x');
+        for (int i = 0; i < 200; i++) {
+            store.apply(Collections.<String, Object>singletonMap("key", value + i));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getGarbageSize() > 64 * 1024 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(store.getGarbageSize() <= 64 * 1024);
+        assertEquals(value + 199, store.getString("key", null));
+        assertEquals(value + 199, new LogStore(mFile).getString("key", null));
+    }
+
+    @Test
+    public void testRejectedCompactionRetried() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        LogStore store = new LogStore(mFile, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new RejectedExecutionException("full");
+                }
+                command.run();
+            }
+        });
+        String value = new String(new char[1024]).replace('\0', 'x');
+        for (int i = 0; i < 200; i++) {
+            store.apply(Collections.<String, Object>singletonMap("key", value + i));
+        }
+
+        assertTrue(attempts.get() > 1);
+        assertTrue(store.getGarbageSize() <= 64 * 1024);
+        assertFalse(store.isBroken());
+        assertEquals(value + 199, new LogStore(mFile).getString("key", null));
+    }
+
+    @Test
+    public void testGrowthKeepsValues() throws Exception {
+        LogStore store = new LogStore(mFile);
+        String value = new String(new char[1024]).replace('\0', 'x');
+        // each key is kept, the log grows past its first mappings
+        for (int i = 0; i < 100; i++) {
+            store.apply(Collections.<String, Object>singletonMap("key" + i, value + i));
+        }
+
+        assertTrue(store.getLogSize() > 64 * 1024);
+        assertEquals(value + 0, store.getString("key0", null));
+        assertEquals(value + 99, store.getString("key99", null));
+        store.close();
+        assertEquals(100, new LogStore(mFile).size());
+    }
+
+    @Test
+    public void testUnsupportedTypeRejected() throws Exception {
+        LogStore store = new LogStore(mFile);
+        Map<String, Object> changes = new HashMap<>();
+        changes.put("string", "value");
+        changes.put("float", 1.5f);
+        try {
+            store.apply(changes);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // nothing of the rejected batch is written
+        assertFalse(store.contains("string"));
+        assertEquals(0, new LogStore(mFile).size());
+    }
+}
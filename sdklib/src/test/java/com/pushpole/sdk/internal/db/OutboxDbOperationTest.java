@@ -0,0 +1,85 @@
+package com.pushpole.sdk.internal.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks deduplication, batching and acknowledgement of upstream outbox entries
+ */
+@RunWith(RobolectricTestRunner.class)
+public class OutboxDbOperationTest {
+    private final static long TIME = 1500000000000L;
+
+    private OutboxDbOperation mOutbox;
+
+    @Before
+    public void setUp() throws Exception {
+        SQLiteDatabase db = DatabaseHelper.getInstance(RuntimeEnvironment.application).getWritableDatabase();
+        db.delete(DatabaseHelper.TABLE_OUTBOX, null, null);
+        mOutbox = OutboxDbOperation.getInstance(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testDuplicateMessageIgnored() throws Exception {
+        assertTrue(mOutbox.add("a", "{\"v\":1}", TIME));
+        assertFalse(mOutbox.add("a", "{\"v\":2}", TIME));
+
+        List<OutboxDbOperation.Entry> entries = mOutbox.getSendable(0, 10, 1000);
+        assertEquals(1, entries.size());
+        assertEquals("{\"v\":1}", entries.get(0).getData());
+    }
+
+    @Test
+    public void testBatchLimits() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            mOutbox.add("msg_" + i, "0123456789", TIME);
+        }
+        assertEquals(10, mOutbox.getSendableCount(0));
+        assertEquals(100, mOutbox.getSendableLength(0));
+
+        assertEquals(4, mOutbox.getSendable(0, 4, 1000).size());
+        assertEquals(3, mOutbox.getSendable(0, 10, 35).size());
+        // the first message is returned even if it is over the length limit
+        assertEquals(1, mOutbox.getSendable(0, 10, 5).size());
+    }
+
+    @Test
+    public void testAcknowledgeAndRelease() throws Exception {
+        mOutbox.add("a", "{}", TIME);
+        mOutbox.add("b", "{}", TIME);
+        mOutbox.add("c", "{}", TIME);
+
+        mOutbox.markSent(mOutbox.getSendable(0, 2, 1000), "batch_1", TIME);
+        assertEquals(1, mOutbox.getSendableCount(TIME));
+        // unacknowledged messages become sendable after the timeout
+        assertEquals(3, mOutbox.getSendableCount(TIME + 1));
+
+        assertEquals(2, mOutbox.release("batch_1"));
+        assertEquals(3, mOutbox.getSendableCount(TIME));
+
+        mOutbox.markSent(mOutbox.getSendable(0, 2, 1000), "batch_2", TIME);
+        assertEquals(2, mOutbox.acknowledge("batch_2"));
+        assertEquals(1, mOutbox.acknowledge("c"));
+        assertEquals(0, mOutbox.getSendableCount(TIME + 1));
+    }
+
+    @Test
+    public void testRemoveOlderThan() throws Exception {
+        mOutbox.add("old", "{}", TIME - 1);
+        mOutbox.add("new", "{}", TIME);
+
+        assertEquals(1, mOutbox.removeOlderThan(TIME));
+        assertEquals("new", mOutbox.getSendable(0, 10, 1000).get(0).getMessageId());
+    }
+}
@@ -0,0 +1,97 @@
+package com.pushpole.sdk.internal.db;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import com.pushpole.sdk.util.ListPack;
+import com.pushpole.sdk.util.Pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks {@link KeyStore} never returns a stale cached pack after its key is overwritten or deleted
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PackCacheTest {
+    private KeyStore mKeyStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mKeyStore = KeyStore.getInstance(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testBatchDeleteInvalidates() throws Exception {
+        mKeyStore.putPack("cached_pack", createPack("1"));
+        // the second read is served from cache
+        assertEquals("1", mKeyStore.getPack("cached_pack").getString("v", null));
+        long hits = mKeyStore.getPackCache().getHitCount();
+        assertEquals("1", mKeyStore.getPack("cached_pack").getString("v", null));
+        assertEquals(hits + 1, mKeyStore.getPackCache().getHitCount());
+
+        mKeyStore.batch().putString("other", "x").delete("cached_pack").commit();
+        assertNull(mKeyStore.getPack("cached_pack"));
+    }
+
+    @Test
+    public void testOverwriteInvalidates() throws Exception {
+        mKeyStore.putPack("cached_pack", createPack("1"));
+        mKeyStore.getPack("cached_pack");
+        mKeyStore.getPack("cached_pack");
+
+        mKeyStore.batch().putPack("cached_pack", createPack("2")).commit();
+        assertEquals("2", mKeyStore.getPack("cached_pack").getString("v", null));
+
+        mKeyStore.putPack("cached_pack", createPack("3"));
+        assertEquals("3", mKeyStore.getPack("cached_pack").getString("v", null));
+
+        mKeyStore.putPack("cached_pack", createPack("4"), 60 * 1000L);
+        assertEquals("4", mKeyStore.getPack("cached_pack").getString("v", null));
+
+        mKeyStore.delete("cached_pack");
+        assertNull(mKeyStore.getPack("cached_pack"));
+    }
+
+    @Test
+    public void testListPackOverwriteInvalidates() throws Exception {
+        ListPack listPack = new ListPack();
+        listPack.add("1");
+        mKeyStore.putListPack("cached_list", listPack);
+        mKeyStore.getListPack("cached_list");
+
+        listPack.add("2");
+        mKeyStore.batch().putListPack("cached_list", listPack).commit();
+        assertEquals(2, mKeyStore.getListPack("cached_list").size());
+    }
+
+    @Test
+    public void testReadsAreCopies() throws Exception {
+        mKeyStore.putPack("cached_pack", createPack("1"));
+        mKeyStore.getPack("cached_pack").putString("v", "changed");
+        mKeyStore.getPack("cached_pack").putString("v", "changed");
+        assertEquals("1", mKeyStore.getPack("cached_pack").getString("v", null));
+    }
+
+    @Test
+    public void testValueDecodedBeforeWriteNotCached() throws Exception {
+        PackCache cache = new PackCache(4);
+        long version = cache.getVersion();
+        // a write happens while the old value is being decoded
+        cache.invalidate("key");
+        cache.put("key", createPack("old"), version);
+        assertNull(cache.getPack("key"));
+
+        cache.put("key", createPack("new"), cache.getVersion());
+        assertEquals("new", cache.getPack("key").getString("v", null));
+    }
+
+    private static Pack createPack(String value) {
+        Pack pack = new Pack();
+        pack.putString("v", value);
+        return pack;
+    }
+}
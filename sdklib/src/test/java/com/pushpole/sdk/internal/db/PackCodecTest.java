@@ -0,0 +1,238 @@
+package com.pushpole.sdk.internal.db;
+
+import android.content.Context;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import com.pushpole.sdk.util.ListPack;
+import com.pushpole.sdk.util.Pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link PackCodec} round trips, choice of the smaller stored form, single field reads and
+ * migration of JSON values stored in {@link KeyStore}, and compares first reads of a notification
+ * pack in both forms when run explicitly
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PackCodecTest {
+    private final static int READS = 2000;
+
+    private static Pack buildPack() {
+        Pack inner = new Pack();
+        inner.putString("title", "\"quoted\" <title> & more");
+        inner.putBool("show_app", false);
+
+        ListPack buttons = new ListPack();
+        buttons.add("open");
+        buttons.add(12);
+        buttons.add(inner);
+
+        Pack pack = new Pack();
+        pack.putString("message_id", "a1b2c3");
+        pack.putLong("timestamp", 1500000000000L);
+        pack.put("ratio", 0.5d);
+        pack.putPack("notification", inner);
+        pack.put("buttons", buttons);
+        return pack;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Pack pack = buildPack();
+        String encoded = PackCodec.encode(pack);
+
+        assertTrue(PackCodec.isEncoded(encoded));
+        assertEquals(pack, PackCodec.decodePack(encoded));
+
+        ListPack listPack = new ListPack();
+        listPack.add(pack);
+        listPack.add(1500000000000L);
+        assertEquals(listPack, PackCodec.decodeListPack(PackCodec.encode(listPack)));
+    }
+
+    @Test
+    public void testNumericPackStoredSmaller() throws Exception {
+        Pack pack = new Pack();
+        for (int i = 0; i < 20; i++) {
+            pack.putLong("t" + i, 1500000000000L + i);
+        }
+        String encoded = PackCodec.encode(pack);
+
+        assertTrue(PackCodec.isEncoded(encoded));
+        assertTrue(PackCodec.getStoredSize(encoded) * 2 < PackCodec.getStoredSize(pack.toJson()));
+    }
+
+    @Test
+    public void testTextPackKeptAsJson() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            body.append("plain text ");
+        }
+        Pack pack = new Pack();
+        pack.putString("body", body.toString());
+
+        // Base64 would make this value a third larger
+        assertEquals(pack.toJson(), PackCodec.encode(pack));
+    }
+
+    @Test
+    public void testUnsupportedValueStoredAsJson() throws Exception {
+        Pack pack = new Pack();
+        pack.putLong("timestamp", 1500000000000L);
+        pack.put("value", new StringBuilder("text"));
+
+        assertEquals(pack.toJson(), PackCodec.encode(pack));
+    }
+
+    @Test
+    public void testStoredSizeCountsEscapes() throws Exception {
+        assertEquals(3, PackCodec.getStoredSize("abc"));
+        assertEquals(6 + 5 + 4, PackCodec.getStoredSize("\"&<"));
+        assertEquals(2 + 3, PackCodec.getStoredSize("\u00e9\u20ac"));
+    }
+
+    @Test
+    public void testJsonValueMigratedOnRead() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        KeyStore keyStore = KeyStore.getInstance(context);
+        keyStore.putString("legacy_pack", "{\"message_id\":\"a1b2c3\"}");
+
+        Pack pack = keyStore.getPack("legacy_pack");
+        assertEquals("a1b2c3", pack.getString("message_id", null));
+        assertTrue(PackCodec.isEncoded(keyStore.getString("legacy_pack", null)));
+        assertEquals("a1b2c3", keyStore.getPack("legacy_pack").getString("message_id", null));
+    }
+
+    @Test
+    public void testReadFieldOfEncodedPack() throws Exception {
+        Pack pack = new Pack();
+        for (int i = 0; i < 20; i++) {
+            pack.putLong("t" + i, 1500000000000L + i);
+        }
+        Pack inner = new Pack();
+        inner.putString("title", "title");
+        pack.putPack("notification", inner);
+        String encoded = PackCodec.encode(pack);
+        assertTrue(PackCodec.isEncoded(encoded));
+
+        assertEquals(1500000000013L, PackCodec.readField(encoded, "t13"));
+        assertEquals(inner, PackCodec.readField(encoded, "notification"));
+        assertNull(PackCodec.readField(encoded, "missing"));
+        assertNull(PackCodec.readField(pack.toJson(), "t13"));
+    }
+
+    @Test
+    public void testReadFieldOfJsonPack() throws Exception {
+        String json = "{\"title\":\"a \\\"quoted\\\" title\",\"notification\":{\"show_app\":false},"
+                + "\"count\":12,\"time\":1500000000000,\"ratio\":0.5,\"shown\":true,\"empty\":null}";
+
+        assertEquals("a \"quoted\" title", PackCodec.readJsonField(json, "title"));
+        assertEquals(12, PackCodec.readJsonField(json, "count"));
+        assertEquals(1500000000000L, PackCodec.readJsonField(json, "time"));
+        assertEquals(0.5d, PackCodec.readJsonField(json, "ratio"));
+        assertEquals(Boolean.TRUE, PackCodec.readJsonField(json, "shown"));
+        assertNull(PackCodec.readJsonField(json, "empty"));
+        assertNull(PackCodec.readJsonField(json, "missing"));
+        // nested values and malformed documents need a full decode
+        assertSame(PackCodec.NOT_READ, PackCodec.readJsonField(json, "notification"));
+        assertSame(PackCodec.NOT_READ, PackCodec.readJsonField("{\"title\"", "title"));
+    }
+
+    @Test
+    public void testGetPackFieldOfBothForms() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(RuntimeEnvironment.application);
+        Pack pack = buildNotificationPack(0);
+        keyStore.putString("field_json", pack.toJson());
+        Pack numeric = new Pack();
+        numeric.putLong("time", 1500000000000L);
+        numeric.putLong("last_shown", 1500000001000L);
+        keyStore.putString("field_encoded", PackCodec.encodeBinary(numeric));
+
+        assertEquals("message_0", keyStore.getPackField("field_json", "message_id"));
+        assertEquals(pack.get("notification"), keyStore.getPackField("field_json", "notification"));
+        assertEquals(1500000001000L, keyStore.getPackField("field_encoded", "last_shown"));
+        assertNull(keyStore.getPackField("field_json", "missing"));
+        assertNull(keyStore.getPackField("no_such_pack", "message_id"));
+    }
+
+    @Ignore("Benchmark, run explicitly")
+    @Test
+    public void testNotificationPackFirstRead() throws Exception {
+        Pack pack = buildNotificationPack(0);
+        String json = pack.toJson();
+        String encoded = PackCodec.encodeBinary(pack);
+
+        long jsonDecode = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            Pack.fromJson(json);
+        }
+        jsonDecode = System.nanoTime() - jsonDecode;
+        long binaryDecode = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            PackCodec.decodePack(encoded);
+        }
+        binaryDecode = System.nanoTime() - binaryDecode;
+        long jsonField = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            PackCodec.readJsonField(json, "timestamp");
+        }
+        jsonField = System.nanoTime() - jsonField;
+
+        // first getPack of a key misses the pack cache
+        KeyStore keyStore = KeyStore.getInstance(RuntimeEnvironment.application);
+        for (int i = 0; i < READS; i++) {
+            keyStore.putString("bench_" + i, buildNotificationPack(i).toJson());
+        }
+        long firstGetPack = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            keyStore.getPack("bench_" + i);
+        }
+        firstGetPack = System.nanoTime() - firstGetPack;
+
+        System.out.println(String.format("Notification pack: JSON %d bytes, Base64 binary %d bytes, stored as %s; "
+                        + "%d decodes JSON %d us, binary %d us, JSON field read %d us; first getPack %d us",
+                PackCodec.getStoredSize(json), PackCodec.getStoredSize(encoded),
+                PackCodec.isEncoded(PackCodec.encode(pack)) ? "binary" : "JSON", READS,
+                jsonDecode / 1000, binaryDecode / 1000, jsonField / 1000, firstGetPack / 1000));
+    }
+
+    /***
+     * a notification as received from the server, mostly text
+     */
+    private static Pack buildNotificationPack(int index) {
+        Pack notification = new Pack();
+        notification.putString("title", "\u062a\u062e\u0641\u06cc\u0641 \u0648\u06cc\u0698\u0647 \u0627\u0645\u0631\u0648\u0632");
+        notification.putString("content", "Up to 50% off on every order until midnight, open the app to see the offers");
+        notification.putString("big_content", "Up to 50% off on every order until midnight. Offers are limited to the "
+                + "first 1000 orders, shipping is free for orders over the minimum amount.");
+        notification.putString("icon", "https://cdn.example.com/icons/offer.png");
+        notification.putString("image", "https://cdn.example.com/images/offer_banner_1080.jpg");
+        notification.putString("led_color", "-16711936");
+        notification.putBool("show_app", true);
+
+        ListPack buttons = new ListPack();
+        for (int i = 0; i < 2; i++) {
+            Pack button = new Pack();
+            button.putString("btn_content", i == 0 ? "Open" : "Later");
+            button.putInt("btn_id", i);
+            button.putString("btn_action", i == 0 ? "open_app" : "dismiss");
+            buttons.add(button);
+        }
+        notification.put("buttons", buttons);
+
+        Pack pack = new Pack();
+        pack.putString("message_id", "message_" + index);
+        pack.putString("timestamp", "1500000000000");
+        pack.putString("type", "1");
+        pack.putPack("notification", notification);
+        return pack;
+    }
+}
@@ -0,0 +1,91 @@
+package com.pushpole.sdk.internal.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Collections;
+
+import com.pushpole.sdk.task.options.TaskOptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the options of journaled tasks are read back as they were scheduled
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TaskJournalTest {
+    private TaskJournal mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        SQLiteDatabase db = DatabaseHelper.getInstance(RuntimeEnvironment.application).getWritableDatabase();
+        db.delete(DatabaseHelper.TABLE_TASK, null, null);
+        mJournal = TaskJournal.getInstance(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testOneOffOptionsKept() throws Exception {
+        TaskOptions options = new TaskOptions.Builder()
+                .setDelay(16 * 60 * 1000L)
+                .setWindow(60 * 1000L)
+                .setNetworkRequired(true)
+                .build();
+        mJournal.put(new TaskJournal.Entry("@2#abcd", null, 1000, options));
+
+        TaskJournal.Entry entry = mJournal.get("@2#abcd");
+        assertFalse(entry.isPeriodic());
+        assertEquals(16 * 60 * 1000L, entry.getOptions().getDelay());
+        assertEquals(60 * 1000L, entry.getOptions().getWindow());
+        assertTrue(entry.getOptions().isNetworkRequired());
+    }
+
+    @Test
+    public void testPeriodicOptionsKept() throws Exception {
+        TaskOptions options = new TaskOptions.Builder()
+                .setPeriod(4 * 60 * 60 * 1000L)
+                .build();
+        mJournal.put(new TaskJournal.Entry("@3#Periodic", null, 1000, options));
+
+        TaskJournal.Entry entry = mJournal.get("@3#Periodic");
+        assertTrue(entry.isPeriodic());
+        assertEquals(4 * 60 * 60 * 1000L, entry.getOptions().getPeriod());
+        assertFalse(entry.getOptions().isNetworkRequired());
+    }
+
+    @Test
+    public void testUpdateKeepsCreatedTime() throws Exception {
+        mJournal.put(new TaskJournal.Entry("@2#abcd", null, 1000));
+        SQLiteDatabase db = DatabaseHelper.getInstance(RuntimeEnvironment.application).getWritableDatabase();
+        db.execSQL("UPDATE _task_table SET created_at = '2018-01-01 00:00:00'");
+        long createdTime = mJournal.get("@2#abcd").getCreatedTime();
+        assertEquals(1514764800000L, createdTime);
+
+        TaskJournal.Entry entry = mJournal.get("@2#abcd");
+        entry.setNextTryTime(2000);
+        entry.setBackOffCount(3);
+        assertTrue(mJournal.update(entry));
+        assertEquals(1, mJournal.updateAll(Collections.singletonList(entry)));
+
+        entry = mJournal.get("@2#abcd");
+        assertEquals(2000, entry.getNextTryTime());
+        assertEquals(3, entry.getBackOffCount());
+        assertEquals(createdTime, entry.getCreatedTime());
+    }
+
+    @Test
+    public void testEntryWithoutOptions() throws Exception {
+        mJournal.put(new TaskJournal.Entry("@2#efgh", null, 1000));
+
+        TaskJournal.Entry entry = mJournal.get("@2#efgh");
+        assertNull(entry.getOptions());
+        assertFalse(entry.isPeriodic());
+    }
+}
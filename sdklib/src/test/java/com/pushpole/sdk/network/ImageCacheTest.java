@@ -0,0 +1,144 @@
+package com.pushpole.sdk.network;
+
+import android.graphics.Bitmap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.pushpole.sdk.util.Pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks validators survive in disk cache, least recently used files are evicted first, also by a
+ * use recorded in their meta file, and only immutable bitmaps are shared from memory cache
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ImageCacheTest {
+    private final static int FILE_SIZE = 1000;
+
+    private File mDirectory;
+    private ImageCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = new File(RuntimeEnvironment.application.getCacheDir(), "image_cache_test");
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mCache = new ImageCache(mDirectory, 3 * FILE_SIZE, 1024 * 1024);
+    }
+
+    @Test
+    public void testEntryKeepsValidators() throws Exception {
+        mCache.put("http://a", download(), "\"v1\"", "Mon, 01 Jan 2018 00:00:00 GMT", 1234L);
+
+        ImageCache.DiskEntry entry = new ImageCache(mDirectory, 3 * FILE_SIZE, 1024 * 1024).getEntry("http://a");
+        assertNotNull(entry);
+        assertEquals(FILE_SIZE, entry.getFile().length());
+        assertEquals("\"v1\"", entry.getETag());
+        assertEquals("Mon, 01 Jan 2018 00:00:00 GMT", entry.getLastModified());
+        assertEquals(1234L, entry.getExpiresAt());
+        assertFalse(entry.isFresh());
+
+        mCache.refresh("http://a", entry, Long.MAX_VALUE);
+        assertTrue(mCache.getEntry("http://a").isFresh());
+        assertNull(mCache.getEntry("http://b"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        mCache.put("http://a", download(), null, null, Long.MAX_VALUE).getFile().setLastModified(1000);
+        mCache.put("http://b", download(), null, null, Long.MAX_VALUE).getFile().setLastModified(2000);
+        mCache.put("http://c", download(), null, null, Long.MAX_VALUE).getFile().setLastModified(3000);
+        // reading a marks it as recently used
+        assertNotNull(mCache.getEntry("http://a"));
+
+        mCache.put("http://d", download(), null, null, Long.MAX_VALUE);
+        assertNotNull(mCache.getEntry("http://a"));
+        assertNull(mCache.getEntry("http://b"));
+        assertNotNull(mCache.getEntry("http://c"));
+        assertNotNull(mCache.getEntry("http://d"));
+    }
+
+    @Test
+    public void testUseRecordedInMetaFileKeepsEntry() throws Exception {
+        File a = mCache.put("http://a", download(), null, null, Long.MAX_VALUE).getFile();
+        a.setLastModified(1000);
+        mCache.put("http://b", download(), null, null, Long.MAX_VALUE).getFile().setLastModified(2000);
+        mCache.put("http://c", download(), null, null, Long.MAX_VALUE).getFile().setLastModified(3000);
+        // a use recorded where the modification time could not be changed
+        File metaFile = new File(mDirectory, a.getName() + ".meta");
+        Pack meta = Pack.fromJson(readString(metaFile));
+        meta.putLong("accessed_at", 4000L);
+        writeString(metaFile, meta.toJson());
+
+        mCache.put("http://d", download(), null, null, Long.MAX_VALUE);
+        assertNotNull(mCache.getEntry("http://a"));
+        assertNull(mCache.getEntry("http://b"));
+    }
+
+    @Test
+    public void testOnlyImmutableBitmapsCached() throws Exception {
+        Bitmap mutable = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        mCache.putBitmap("mutable", mutable);
+        assertNull(mCache.getBitmap("mutable"));
+
+        Bitmap immutable = mutable.copy(Bitmap.Config.ARGB_8888, false);
+        mCache.putBitmap("immutable", immutable);
+        assertSame(immutable, mCache.getBitmap("immutable"));
+    }
+
+    private static String readString(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            int count;
+            while (offset < buffer.length && (count = in.read(buffer, offset, buffer.length - offset)) != -1) {
+                offset += count;
+            }
+            return new String(buffer, 0, offset, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(File file, String value) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(value.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private File download() throws IOException {
+        File file = mCache.newTempFile();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[FILE_SIZE]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,176 @@
+package com.pushpole.sdk.network;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the decode size arithmetic of {@link ImageDownloader}, the options it decodes with, that
+ * streams are read once into a buffer sized from their length, and which responses it keeps out
+ * of disk cache
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ImageDownloaderTest {
+
+    @Test
+    public void testSampledAndScaledToRequest() throws Exception {
+        // sampling by 4 leaves 250x200, scaling makes it 200x160
+        assertSize(ImageDownloader.DecodeSize.calculate(1000, 800, 200, 100), 4, 200, 160, true);
+        // sampling alone reaches the request
+        assertSize(ImageDownloader.DecodeSize.calculate(800, 600, 200, 150), 4, 200, 150, false);
+        // images are not made larger
+        assertSize(ImageDownloader.DecodeSize.calculate(100, 50, 400, 400), 1, 100, 50, false);
+        // no request decodes in full size
+        assertSize(ImageDownloader.DecodeSize.calculate(640, 480, 0, 0), 1, 640, 480, false);
+    }
+
+    @Test
+    public void testSizeCapped() throws Exception {
+        assertEquals(2048, ImageDownloader.MAX_IMAGE_SIZE);
+        assertSize(ImageDownloader.DecodeSize.calculate(4000, 3000, 0, 0), 1, 2048, 1536, true);
+        assertSize(ImageDownloader.DecodeSize.calculate(1000, 5000, 0, 0), 2, 410, 2048, true);
+        // the cap wins over the request
+        assertSize(ImageDownloader.DecodeSize.calculate(4000, 4000, 3000, 3000), 1, 2048, 2048, true);
+    }
+
+    @Test
+    public void testPrepareDecode() throws Exception {
+        BitmapFactory.Options options = createOptions(1000, 800, "image/jpeg");
+        assertTrue(ImageDownloader.prepareDecode(options, 200, 100, true, null));
+        assertFalse(options.inJustDecodeBounds);
+        assertEquals(4, options.inSampleSize);
+        assertTrue(options.inScaled);
+        assertEquals(250, options.inDensity);
+        assertEquals(200, options.inTargetDensity);
+        assertEquals(Bitmap.Config.RGB_565, options.inPreferredConfig);
+
+        assertFalse(ImageDownloader.prepareDecode(createOptions(0, 0, null), 200, 100, true, null));
+    }
+
+    @Test
+    public void testRgb565OnlyForJpeg() throws Exception {
+        BitmapFactory.Options png = createOptions(100, 100, "image/png");
+        ImageDownloader.prepareDecode(png, 0, 0, true, null);
+        assertEquals(Bitmap.Config.ARGB_8888, png.inPreferredConfig);
+
+        BitmapFactory.Options jpeg = createOptions(100, 100, "image/jpeg");
+        ImageDownloader.prepareDecode(jpeg, 0, 0, false, null);
+        assertEquals(Bitmap.Config.ARGB_8888, jpeg.inPreferredConfig);
+    }
+
+    @Test
+    public void testCanReuse() throws Exception {
+        Bitmap candidate = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        BitmapFactory.Options options = createOptions(100, 100, "image/png");
+        assertTrue(ImageDownloader.canReuse(candidate, options, 100, 100));
+        assertFalse(ImageDownloader.canReuse(candidate, options, 200, 100));
+        // a smaller config fits more pixels
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        assertTrue(ImageDownloader.canReuse(candidate, options, 200, 100));
+
+        assertFalse(ImageDownloader.canReuse(candidate.copy(Bitmap.Config.ARGB_8888, false), options, 10, 10));
+        candidate.recycle();
+        assertFalse(ImageDownloader.canReuse(candidate, options, 10, 10));
+    }
+
+    @Test
+    @Config(sdk = 16)
+    public void testCanReuseBeforeKitKat() throws Exception {
+        Bitmap candidate = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        BitmapFactory.Options options = createOptions(100, 100, "image/png");
+        options.inSampleSize = 1;
+        assertTrue(ImageDownloader.canReuse(candidate, options, 100, 100));
+        // only an image of the same size can be decoded into it
+        assertFalse(ImageDownloader.canReuse(candidate, options, 50, 50));
+        options.inSampleSize = 2;
+        assertFalse(ImageDownloader.canReuse(candidate, options, 100, 100));
+    }
+
+    @Test
+    public void testStreamReadOnce() throws Exception {
+        // decoded as a 100x100 image, the data spans more than one spool buffer
+        SingleReadStream stream = new SingleReadStream(new byte[100 * 1024]);
+        Bitmap bitmap = ImageDownloader.decodeSampledBitmapFromStream(stream, 30, 30, false, null);
+
+        assertNotNull(bitmap);
+        assertEquals(0, stream.available());
+        assertFalse(stream.mReset);
+        // the scaled bitmap is drawn in its pixel size
+        assertEquals(Bitmap.DENSITY_NONE, bitmap.getDensity());
+    }
+
+    @Test
+    public void testStreamOfContentLength() throws Exception {
+        byte[] data = new byte[100 * 1024];
+        SingleReadStream stream = new SingleReadStream(data);
+        assertNotNull(ImageDownloader.decodeSampledBitmapFromStream(stream, data.length, 30, 30, false, null));
+        assertEquals(0, stream.available());
+
+        // a wrong length only costs growing the buffer
+        stream = new SingleReadStream(data);
+        assertNotNull(ImageDownloader.decodeSampledBitmapFromStream(stream, 1024, 30, 30, false, null));
+        assertEquals(0, stream.available());
+
+        // too large images are rejected before reading
+        stream = new SingleReadStream(data);
+        assertNull(ImageDownloader.decodeSampledBitmapFromStream(stream, 32 * 1024 * 1024, 30, 30, false, null));
+        assertEquals(data.length, stream.available());
+    }
+
+    @Test
+    public void testNoStoreDirective() throws Exception {
+        assertTrue(ImageDownloader.isNoStore("no-store"));
+        assertTrue(ImageDownloader.isNoStore("private, No-Store, max-age=0"));
+        assertFalse(ImageDownloader.isNoStore(null));
+        assertFalse(ImageDownloader.isNoStore("no-cache, max-age=60"));
+        assertFalse(ImageDownloader.isNoStore("x-no-store-hint"));
+    }
+
+    private static void assertSize(ImageDownloader.DecodeSize size, int sampleSize, int width, int height,
+                                   boolean scaled) {
+        assertEquals(sampleSize, size.mSampleSize);
+        assertEquals(width, size.mWidth);
+        assertEquals(height, size.mHeight);
+        assertEquals(scaled, size.mScaled);
+    }
+
+    private static BitmapFactory.Options createOptions(int width, int height, String mimeType) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.outWidth = width;
+        options.outHeight = height;
+        options.outMimeType = mimeType;
+        return options;
+    }
+
+    private static class SingleReadStream extends ByteArrayInputStream {
+        boolean mReset;
+
+        SingleReadStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized void reset() {
+            mReset = true;
+            super.reset();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.pushpole.sdk.network;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetworkInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.pushpole.sdk.Constants;
+import com.pushpole.sdk.SdkConfig;
+import com.pushpole.sdk.internal.db.DatabaseHelper;
+import com.pushpole.sdk.internal.db.KeyStore;
+import com.pushpole.sdk.internal.db.OutboxDbOperation;
+import com.pushpole.sdk.util.ListPack;
+import com.pushpole.sdk.util.Pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks when {@link UpstreamOutbox} flushes, that messages are sent at once until the server
+ * enables batches, and that acknowledged messages are deleted while failed ones are sent again
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UpstreamOutboxTest {
+    private final static long TIMEOUT = 5000L;
+
+    private Context mContext;
+    private UpstreamOutbox mOutbox;
+    private OutboxDbOperation mDbOperation;
+    private final List<Pack> mSent = Collections.synchronizedList(new ArrayList<Pack>());
+    private final Semaphore mSentCount = new Semaphore(0);
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        DatabaseHelper.getInstance(mContext).getWritableDatabase().delete(DatabaseHelper.TABLE_OUTBOX, null, null);
+        KeyStore.getInstance(mContext).delete(SdkConfig.UPSTREAM_BATCH);
+        setConnected(true);
+        mDbOperation = OutboxDbOperation.getInstance(mContext);
+        mOutbox = UpstreamOutbox.getInstance(mContext);
+        mOutbox.setFlushDelay(UpstreamOutbox.MAX_FLUSH_DELAY);
+        mOutbox.setSender(new UpstreamOutbox.Sender() {
+            @Override
+            public void send(Pack message) {
+                mSent.add(message);
+                mSentCount.release();
+            }
+        });
+    }
+
+    @Test
+    public void testSentAtOnceUntilBatchEnabled() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mOutbox.enqueue(createMessage("single_" + i));
+        }
+        // without batches messages skip the outbox
+        assertEquals(3, mSent.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("single_" + i, getMessageId(mSent.get(i)));
+            assertEquals("single_" + i, mSent.get(i).getString("value", null));
+        }
+        assertEquals(0, mDbOperation.getSendableCount(Long.MAX_VALUE));
+        assertEquals(0, mOutbox.flushNow());
+
+        mSent.clear();
+        KeyStore.getInstance(mContext).putBoolean(SdkConfig.UPSTREAM_BATCH, true);
+        for (int i = 0; i < 3; i++) {
+            mOutbox.enqueue(createMessage("batched_" + i));
+        }
+        assertEquals(0, mSent.size());
+        assertEquals(3, mOutbox.flushNow());
+        assertEquals(1, mSent.size());
+        ListPack batch = mSent.get(0).getListPack(UpstreamOutbox.BATCH_KEY);
+        assertEquals(3, batch.size());
+        assertEquals("batched_0", getMessageId((Pack) batch.get(0)));
+    }
+
+    @Test
+    public void testWaitingMessagesFlushedSinglyAfterBatchDisabled() throws Exception {
+        KeyStore.getInstance(mContext).putBoolean(SdkConfig.UPSTREAM_BATCH, true);
+        mOutbox.enqueue(createMessage("a"));
+        mOutbox.enqueue(createMessage("b"));
+        KeyStore.getInstance(mContext).putBoolean(SdkConfig.UPSTREAM_BATCH, false);
+
+        assertEquals(2, mOutbox.flushNow());
+        assertEquals(2, mSent.size());
+        assertEquals("a", getMessageId(mSent.get(0)));
+        assertEquals("b", getMessageId(mSent.get(1)));
+    }
+
+    @Test
+    public void testThresholdFlushes() throws Exception {
+        KeyStore.getInstance(mContext).putBoolean(SdkConfig.UPSTREAM_BATCH, true);
+        for (int i = 0; i < UpstreamOutbox.FLUSH_THRESHOLD_MESSAGES - 1; i++) {
+            mOutbox.enqueue(createMessage("message_" + i));
+        }
+        // below the threshold the flush waits for the delay
+        Thread.sleep(200);
+        assertEquals(0, mSent.size());
+
+        mOutbox.enqueue(createMessage("last"));
+        assertTrue(mSentCount.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(UpstreamOutbox.FLUSH_THRESHOLD_MESSAGES,
+                mSent.get(0).getListPack(UpstreamOutbox.BATCH_KEY).size());
+    }
+
+    @Test
+    public void testDelayedFlush() throws Exception {
+        KeyStore.getInstance(mContext).putBoolean(SdkConfig.UPSTREAM_BATCH, true);
+        mOutbox.flushNow();
+        mOutbox.setFlushDelay(50L);
+        mOutbox.enqueue(createMessage("delayed"));
+
+        assertTrue(mSentCount.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("delayed", getMessageId(mSent.get(0)));
+    }
+
+    @Test
+    public void testOfflineFlushWaitsForNetwork() throws Exception {
+        KeyStore.getInstance(mContext).putBoolean(SdkConfig.UPSTREAM_BATCH, true);
+        setConnected(false);
+        mOutbox.enqueue(createMessage("offline"));
+        assertEquals(0, mOutbox.flushNow());
+        assertEquals(1, mDbOperation.getSendableCount(0));
+
+        setConnected(true);
+        mContext.sendBroadcast(new Intent(ConnectivityManager.CONNECTIVITY_ACTION));
+        ShadowLooper.idleMainLooper();
+        assertTrue(mSentCount.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("offline", getMessageId(mSent.get(0)));
+    }
+
+    @Test
+    public void testAcknowledgedMessagesDeleted() throws Exception {
+        KeyStore.getInstance(mContext).putBoolean(SdkConfig.UPSTREAM_BATCH, true);
+        mOutbox.enqueue(createMessage("a"));
+        mOutbox.enqueue(createMessage("b"));
+        assertEquals(2, mOutbox.flushNow());
+        // sent messages wait for the acknowledgement
+        assertEquals(0, mDbOperation.getSendableCount(0));
+        assertEquals(2, mDbOperation.getSendableCount(Long.MAX_VALUE));
+
+        mOutbox.onMessageSent(getMessageId(mSent.get(0)));
+        assertEquals(0, mDbOperation.getSendableCount(Long.MAX_VALUE));
+        assertEquals(0, mOutbox.flushNow());
+    }
+
+    @Test
+    public void testFailedMessagesSentAgain() throws Exception {
+        KeyStore.getInstance(mContext).putBoolean(SdkConfig.UPSTREAM_BATCH, true);
+        mOutbox.enqueue(createMessage("failing"));
+        assertEquals(1, mOutbox.flushNow());
+        assertTrue(mSentCount.tryAcquire());
+
+        mOutbox.setFlushDelay(50L);
+        mOutbox.onSendError("failing");
+        assertTrue(mSentCount.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(2, mSent.size());
+        assertEquals("failing", getMessageId(mSent.get(1)));
+    }
+
+    private void setConnected(boolean connected) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        shadowOf(connectivityManager).setActiveNetworkInfo(connected
+                ? ShadowNetworkInfo.newInstance(NetworkInfo.DetailedState.CONNECTED,
+                ConnectivityManager.TYPE_WIFI, 0, true, true)
+                : null);
+    }
+
+    private static Pack createMessage(String messageId) {
+        Pack message = new Pack();
+        message.putString(Constants.getVal(Constants.MESSAGE_ID), messageId);
+        message.putString("value", messageId);
+        return message;
+    }
+
+    private static String getMessageId(Pack message) {
+        return message.getString(Constants.getVal(Constants.MESSAGE_ID), null);
+    }
+}
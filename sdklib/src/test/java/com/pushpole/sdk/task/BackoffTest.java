@@ -0,0 +1,76 @@
+package com.pushpole.sdk.task;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks backoff ceilings grow exponentially up to the cap and jittered delays stay in bounds
+ */
+public class BackoffTest {
+    private final static long INITIAL = 30 * 1000L;
+    private final static long MAX = 60 * 60 * 1000L;
+
+    @Test
+    public void testCeilingDoublesUntilCapped() throws Exception {
+        Random highest = new FixedRandom(1.0);
+        assertEquals(INITIAL, Backoff.getDelay(INITIAL, MAX, 1, highest));
+        assertEquals(2 * INITIAL, Backoff.getDelay(INITIAL, MAX, 2, highest));
+        assertEquals(4 * INITIAL, Backoff.getDelay(INITIAL, MAX, 3, highest));
+        // 30s * 2^7 is over an hour
+        assertEquals(MAX, Backoff.getDelay(INITIAL, MAX, 8, highest));
+        assertEquals(MAX, Backoff.getDelay(INITIAL, MAX, 1000, highest));
+    }
+
+    @Test
+    public void testInvalidAttemptUsesInitialBackoff() throws Exception {
+        Random highest = new FixedRandom(1.0);
+        assertEquals(INITIAL, Backoff.getDelay(INITIAL, MAX, 0, highest));
+        assertEquals(INITIAL, Backoff.getDelay(INITIAL, MAX, -5, highest));
+    }
+
+    @Test
+    public void testOverflowCapped() throws Exception {
+        Random highest = new FixedRandom(1.0);
+        long initial = Long.MAX_VALUE / 4;
+        assertEquals(Long.MAX_VALUE, Backoff.getDelay(initial, Long.MAX_VALUE, 4, highest));
+        assertEquals(Long.MAX_VALUE, Backoff.getDelay(initial, Long.MAX_VALUE, 31, highest));
+        assertEquals(MAX, Backoff.getDelay(INITIAL, MAX, Integer.MAX_VALUE, highest));
+    }
+
+    @Test
+    public void testJitterWithinBounds() throws Exception {
+        Random random = new Random(42);
+        for (int attempt = 1; attempt <= 12; attempt++) {
+            long ceiling = Math.min(MAX, INITIAL << (attempt - 1));
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                long delay = Backoff.getDelay(INITIAL, MAX, attempt, random);
+                assertTrue(delay >= 0 && delay < ceiling);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            // delays are spread over the whole range
+            assertTrue(min < ceiling / 10);
+            assertTrue(max > ceiling * 9 / 10);
+        }
+        assertEquals(0, Backoff.getDelay(INITIAL, MAX, 5, new FixedRandom(0)));
+    }
+
+    private static class FixedRandom extends Random {
+        private final double mValue;
+
+        FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.pushpole.sdk.task;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import com.pushpole.sdk.internal.db.DatabaseHelper;
+import com.pushpole.sdk.internal.db.KeyStore;
+import com.pushpole.sdk.internal.db.TaskJournal;
+import com.pushpole.sdk.task.options.TaskOptions;
+import com.pushpole.sdk.task.scheduler.Scheduler;
+import com.pushpole.sdk.task.scheduler.memory.InMemoryScheduler;
+import com.pushpole.sdk.task.scheduler.memory.VirtualClock;
+import com.pushpole.sdk.util.IdGenerator;
+import com.pushpole.sdk.util.Pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link TaskManager#collectOrphanedTasks()} only deletes data of tasks the scheduler has
+ * lost, reclaims payloads leaked before it first ran a pass later, and deletes nothing when the
+ * scheduler can not list its jobs
+ */
+@RunWith(RobolectricTestRunner.class)
+public class OrphanCollectionTest {
+    private final static long DAY = 24 * 60 * 60 * 1000L;
+    private final static String PREFIX = OrphanTask.class.getName() + '#';
+    private final static TaskOptions OPTIONS = new TaskOptions.Builder().setDelay(DAY).setWindow(DAY).build();
+
+    private Context mContext;
+    private VirtualClock mClock;
+    private InMemoryScheduler mScheduler;
+    private TaskManager mTaskManager;
+    private TaskJournal mJournal;
+    private KeyStore mKeyStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        DatabaseHelper.getInstance(mContext).getWritableDatabase().delete("_task_table", null, null);
+        mClock = new VirtualClock();
+        mScheduler = new InMemoryScheduler(mClock);
+        mTaskManager = TaskManager.getInstance(mContext);
+        mTaskManager.setScheduler(mScheduler);
+        mJournal = TaskJournal.getInstance(mContext);
+        mKeyStore = KeyStore.getInstance(mContext);
+        mKeyStore.delete("task_legacy_data_keys");
+        mKeyStore.delete("task_legacy_data_backfilled");
+    }
+
+    @Test
+    public void testLostJournalEntriesCollected() throws Exception {
+        long lostTime = System.currentTimeMillis() - 8 * DAY;
+        mJournal.put(new TaskJournal.Entry(PREFIX + "lost", new Pack(), lostTime, null));
+        mJournal.put(new TaskJournal.Entry(PREFIX + "late", new Pack(), lostTime, null));
+        mScheduler.schedule(mContext, PREFIX + "late", OPTIONS);
+        // recovery may still bring it back
+        mJournal.put(new TaskJournal.Entry(PREFIX + "recent", new Pack(), System.currentTimeMillis() - DAY, null));
+
+        assertTrue(mTaskManager.collectOrphanedTasks() > 0);
+        assertNull(mJournal.get(PREFIX + "lost"));
+        assertNotNull(mJournal.get(PREFIX + "late"));
+        assertNotNull(mJournal.get(PREFIX + "recent"));
+    }
+
+    @Test
+    public void testOnlyRecordedKeyStoreDataCollected() throws Exception {
+        mKeyStore.putPack("legacy_data_a", createPack());
+        mKeyStore.putPack("legacy_data_b", createPack());
+        mKeyStore.putPack("unrelated_pack", createPack());
+        mScheduler.schedule(mContext, PREFIX + "legacy_data_a", OPTIONS);
+        mScheduler.schedule(mContext, PREFIX + "legacy_data_b", OPTIONS);
+
+        // keys are recorded while their jobs are scheduled
+        assertEquals(0, mTaskManager.collectOrphanedTasks());
+        assertTrue(mKeyStore.contains("legacy_data_a"));
+
+        mScheduler.cancel(mContext, PREFIX + "legacy_data_a");
+        assertTrue(mTaskManager.collectOrphanedTasks() > 0);
+        assertFalse(mKeyStore.contains("legacy_data_a"));
+        assertTrue(mKeyStore.contains("legacy_data_b"));
+        assertTrue(mKeyStore.contains("unrelated_pack"));
+    }
+
+    @Test
+    public void testPayloadsLeakedEarlierCollectedOnLaterPass() throws Exception {
+        String leaked = IdGenerator.generateUUID(4);
+        String scheduled = IdGenerator.generateUUID(4);
+        String notPack = IdGenerator.generateUUID(4);
+        mKeyStore.putPack(leaked, createPack());
+        mKeyStore.putPack(scheduled, createPack());
+        mKeyStore.putString(notPack, "value");
+        mKeyStore.putPack("unrelated_pack", createPack());
+        mScheduler.schedule(mContext, PREFIX + scheduled, OPTIONS);
+
+        // the first pass only records the keys
+        assertEquals(0, mTaskManager.collectOrphanedTasks());
+        assertTrue(mKeyStore.contains(leaked));
+
+        assertTrue(mTaskManager.collectOrphanedTasks() > 0);
+        assertFalse(mKeyStore.contains(leaked));
+        assertTrue(mKeyStore.contains(scheduled));
+        assertTrue(mKeyStore.contains(notPack));
+        assertTrue(mKeyStore.contains("unrelated_pack"));
+
+        // the backfill runs once, later leaks are only found through their jobs
+        String leakedLater = IdGenerator.generateUUID(4);
+        mKeyStore.putPack(leakedLater, createPack());
+        mTaskManager.collectOrphanedTasks();
+        assertEquals(0, mTaskManager.collectOrphanedTasks());
+        assertTrue(mKeyStore.contains(leakedLater));
+    }
+
+    @Test
+    public void testRunningTaskNotCollected() throws Exception {
+        OrphanTask.sTag = PREFIX + "running";
+        OrphanTask.sJournaledWhileRunning = false;
+        mJournal.put(new TaskJournal.Entry(OrphanTask.sTag, new Pack(), System.currentTimeMillis() - 8 * DAY, null));
+        mScheduler.schedule(mContext, OrphanTask.sTag, new TaskOptions.Builder().setDelay(0L).setWindow(0L).build());
+
+        assertEquals(1, mScheduler.runDue(mTaskManager));
+        assertTrue(OrphanTask.sJournaledWhileRunning);
+    }
+
+    @Test
+    public void testNothingCollectedWithoutInspector() throws Exception {
+        mTaskManager.setScheduler(new Scheduler() {
+            @Override
+            public void schedule(Context context, String tag, TaskOptions taskOptions) {
+            }
+
+            @Override
+            public void cancel(Context context, String tag) {
+            }
+        });
+        mJournal.put(new TaskJournal.Entry(PREFIX + "lost", new Pack(), System.currentTimeMillis() - 8 * DAY, null));
+
+        assertEquals(0, mTaskManager.collectOrphanedTasks());
+        assertNotNull(mJournal.get(PREFIX + "lost"));
+    }
+
+    private static Pack createPack() {
+        Pack pack = new Pack();
+        pack.putString("message_id", "a1b2c3");
+        return pack;
+    }
+
+    public static class OrphanTask implements PushPoleTask {
+        static String sTag;
+        static boolean sJournaledWhileRunning;
+
+        @Override
+        public Result runTask(Context context, Pack pack) {
+            // the scheduler no longer lists a job while it runs
+            TaskManager.getInstance(context).collectOrphanedTasks();
+            sJournaledWhileRunning = TaskJournal.getInstance(context).get(sTag) != null;
+            return Result.SUCCESS;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.pushpole.sdk.task;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.pushpole.sdk.task.executor.Lane;
+import com.pushpole.sdk.task.executor.LaneExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link TaskGraph} starts tasks after their dependencies, runs dependents of failed tasks,
+ * skips dependents of cancelled or dropped tasks and can not be changed once started
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TaskGraphTest {
+    private final static long TIMEOUT = 5000L;
+
+    private TaskManager mTaskManager;
+    private List<String> mOrder;
+    private CountDownLatch mRelease;
+
+    @Before
+    public void setUp() throws Exception {
+        mTaskManager = TaskManager.getInstance(RuntimeEnvironment.application);
+        mOrder = Collections.synchronizedList(new ArrayList<String>());
+        mRelease = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRelease.countDown();
+    }
+
+    @Test
+    public void testDependenciesFinishFirst() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        TaskGraph graph = new TaskGraph();
+        TaskGraph.Node a = graph.add("a", Lane.CONTROL, record("a", null));
+        TaskGraph.Node b = graph.add("b", Lane.BULK, record("b", null), a);
+        TaskGraph.Node c = graph.add("c", Lane.RENDER, record("c", null), a);
+        graph.add("d", Lane.CONTROL, record("d", done), b, c);
+        mTaskManager.runGraph(graph);
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(4, mOrder.size());
+        assertEquals("a", mOrder.get(0));
+        assertEquals("d", mOrder.get(3));
+    }
+
+    @Test
+    public void testDependentRunsAfterFailedDependency() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        TaskGraph graph = new TaskGraph();
+        TaskGraph.Node failing = graph.add("failing", Lane.CONTROL, new PushPoleAsyncTask() {
+            @Override
+            public void run(Context context) {
+                mOrder.add("failing");
+                throw new IllegalStateException("failed");
+            }
+        });
+        graph.add("dependent", Lane.CONTROL, record("dependent", done), failing);
+        mTaskManager.runGraph(graph);
+
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(2, mOrder.size());
+        assertEquals("dependent", mOrder.get(1));
+    }
+
+    @Test
+    public void testDependentsSkippedAfterCancel() throws Exception {
+        TaskGraph graph = new TaskGraph();
+        TaskGraph.Node stuck = graph.add("stuck", Lane.CONTROL, 50L, new PushPoleAsyncTask() {
+            @Override
+            public void run(Context context) {
+                try {
+                    mRelease.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        TaskGraph.Node dependent = graph.add("dependent", Lane.BULK, record("dependent", null), stuck);
+        mTaskManager.runGraph(graph);
+
+        awaitCancel(stuck);
+        // dependents are only submitted when a dependency finishes
+        assertNull(dependent.getHandle());
+        assertTrue(mOrder.isEmpty());
+    }
+
+    @Test
+    public void testDependentsSkippedWhenDropped() throws Exception {
+        // occupy the bulk lane and fill its queue
+        final CountDownLatch started = new CountDownLatch(1);
+        mTaskManager.asyncTask(Lane.BULK, LaneExecutor.PRIORITY_NORMAL, new PushPoleAsyncTask() {
+            @Override
+            public void run(Context context) {
+                started.countDown();
+                try {
+                    mRelease.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }, null);
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < Lane.BULK.getCapacity(); i++) {
+            mTaskManager.asyncTask(Lane.BULK, LaneExecutor.PRIORITY_NORMAL, record("filler", null), null);
+        }
+
+        TaskGraph graph = new TaskGraph();
+        TaskGraph.Node dropped = graph.add("dropped", Lane.BULK, record("dropped", null));
+        TaskGraph.Node dependent = graph.add("dependent", Lane.CONTROL, record("dependent", null), dropped);
+        mTaskManager.runGraph(graph);
+
+        awaitCancel(dropped);
+        assertNull(dependent.getHandle());
+    }
+
+    @Test
+    public void testAddAfterStartThrows() throws Exception {
+        TaskGraph graph = new TaskGraph();
+        TaskGraph.Node a = graph.add("a", Lane.CONTROL, record("a", null));
+        mTaskManager.runGraph(graph);
+        try {
+            graph.add("b", Lane.CONTROL, record("b", null), a);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            mTaskManager.runGraph(graph);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            new TaskGraph().add("c", Lane.CONTROL, record("c", null), a);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private PushPoleAsyncTask record(final String name, final CountDownLatch done) {
+        return new PushPoleAsyncTask() {
+            @Override
+            public void run(Context context) {
+                mOrder.add(name);
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    private static void awaitCancel(TaskGraph.Node node) throws InterruptedException {
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        node.getHandle().addCallback(new TaskHandle.Callback() {
+            @Override
+            public void onComplete(Result result) {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+            }
+
+            @Override
+            public void onCancel() {
+                cancelled.countDown();
+            }
+        });
+        assertTrue(cancelled.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+}
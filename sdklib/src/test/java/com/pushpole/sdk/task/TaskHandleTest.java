@@ -0,0 +1,213 @@
+package com.pushpole.sdk.task;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.pushpole.sdk.task.executor.Lane;
+import com.pushpole.sdk.task.executor.LaneExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks watchdogs of {@link TaskHandle} are only armed for tasks with a deadline, do not stay on
+ * the timer after the task is done, and that the extra thread of an overrun task is given back
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TaskHandleTest {
+    private final static long TIMEOUT = 5000L;
+
+    private LaneExecutor mExecutor;
+    private TaskStats mStats;
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutor = new LaneExecutor(100L);
+        mStats = new TaskStats("task");
+    }
+
+    @Test
+    public void testNoWatchdogWithoutDeadline() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        TaskHandle handle = createHandle(new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                started.countDown();
+                release.await();
+                return Result.SUCCESS;
+            }
+        }, 0);
+        mExecutor.submit(Lane.CONTROL, LaneExecutor.PRIORITY_NORMAL, handle);
+
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, mExecutor.getTimerQueueSize());
+        release.countDown();
+        assertEquals(Result.SUCCESS, handle.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testWatchdogRemovedWhenTaskCompletes() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        TaskHandle handle = createHandle(new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                started.countDown();
+                release.await();
+                return Result.SUCCESS;
+            }
+        }, 60 * 1000L);
+        mExecutor.submit(Lane.CONTROL, LaneExecutor.PRIORITY_NORMAL, handle);
+
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, mExecutor.getTimerQueueSize());
+        release.countDown();
+        assertEquals(Result.SUCCESS, handle.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, mExecutor.getTimerQueueSize());
+        assertFalse(handle.isOverrun());
+    }
+
+    @Test
+    public void testOverrunCancelsAndReleasesExtraThread() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch returned = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        TaskHandle handle = createHandle(new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                // ignores interrupts like a blocking network call
+                while (true) {
+                    try {
+                        release.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        // keep waiting
+                    }
+                }
+                returned.countDown();
+                return Result.SUCCESS;
+            }
+        }, 50L);
+        handle.addCallback(new CallbackAdapter() {
+            @Override
+            public void onCancel() {
+                cancelled.countDown();
+            }
+        });
+        mExecutor.submit(Lane.CONTROL, LaneExecutor.PRIORITY_NORMAL, handle);
+
+        assertTrue(cancelled.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(handle.isOverrun());
+        assertTrue(handle.isCancelled());
+        assertEquals(1, mStats.snapshot().getOverrunCount());
+        // the stuck task still holds its thread
+        assertEquals(1, mExecutor.getExtraThreadCount(Lane.CONTROL));
+
+        release.countDown();
+        assertTrue(returned.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mExecutor.getExtraThreadCount(Lane.CONTROL) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mExecutor.getExtraThreadCount(Lane.CONTROL));
+        assertEquals(0, mExecutor.getTimerQueueSize());
+    }
+
+    @Test
+    public void testCallbacks() throws Exception {
+        final AtomicReference<Result> result = new AtomicReference<>();
+        TaskHandle handle = createHandle(new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                return Result.RESCHEDULE;
+            }
+        }, 0);
+        handle.addCallback(new CallbackAdapter() {
+            @Override
+            public void onComplete(Result completed) {
+                result.set(completed);
+            }
+        });
+        handle.run();
+        assertSame(Result.RESCHEDULE, result.get());
+
+        // callbacks added after completion are called immediately
+        result.set(null);
+        handle.addCallback(new CallbackAdapter() {
+            @Override
+            public void onComplete(Result completed) {
+                result.set(completed);
+            }
+        });
+        assertSame(Result.RESCHEDULE, result.get());
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final IllegalStateException exception = new IllegalStateException();
+        TaskHandle failing = createHandle(new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                throw exception;
+            }
+        }, 0);
+        failing.addCallback(new CallbackAdapter() {
+            @Override
+            public void onError(Throwable thrown) {
+                error.set(thrown);
+            }
+        });
+        failing.run();
+        assertSame(exception, error.get());
+        try {
+            failing.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(exception, e.getCause());
+        }
+    }
+
+    @Test
+    public void testCancelledBeforeRunNeverRuns() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        TaskHandle handle = createHandle(new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                ran.countDown();
+                return Result.SUCCESS;
+            }
+        }, 50L);
+        assertTrue(handle.cancel(false));
+        handle.run();
+        assertEquals(1, ran.getCount());
+        assertEquals(0, mExecutor.getTimerQueueSize());
+    }
+
+    private TaskHandle createHandle(Callable<Result> callable, long deadline) {
+        return new TaskHandle(callable, "task", Lane.CONTROL, deadline, mExecutor, mStats);
+    }
+
+    private static class CallbackAdapter implements TaskHandle.Callback {
+        @Override
+        public void onComplete(Result result) {
+        }
+
+        @Override
+        public void onError(Throwable error) {
+        }
+
+        @Override
+        public void onCancel() {
+        }
+    }
+}
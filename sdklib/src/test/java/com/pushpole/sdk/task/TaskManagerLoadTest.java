@@ -0,0 +1,140 @@
+package com.pushpole.sdk.task;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.pushpole.sdk.internal.db.KeyStore;
+import com.pushpole.sdk.internal.db.TaskJournal;
+import com.pushpole.sdk.task.options.TaskOptions;
+import com.pushpole.sdk.task.scheduler.memory.InMemoryScheduler;
+import com.pushpole.sdk.task.scheduler.memory.VirtualClock;
+import com.pushpole.sdk.util.Pack;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pushes schedule/cancel/handleScheduledTask cycles through {@link TaskManager} on an
+ * {@link InMemoryScheduler} and checks every task runs once without KeyStore writes.
+ * The load test is a benchmark and is not part of the default suite, run it explicitly and change
+ * the number of cycles with {@code -Dpushpole.loadtest.cycles}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TaskManagerLoadTest {
+    private final static int CYCLES = Integer.getInteger("pushpole.loadtest.cycles", 100000);
+
+    private Context mContext;
+    private VirtualClock mClock;
+    private InMemoryScheduler mScheduler;
+    private TaskManager mTaskManager;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mClock = new VirtualClock();
+        mScheduler = new InMemoryScheduler(mClock);
+        mTaskManager = TaskManager.getInstance(mContext);
+        mTaskManager.setScheduler(mScheduler);
+        mTaskManager.getMetrics().reset();
+        CountingTask.sRunCount = 0;
+        CountingTask.sClock = mClock;
+        CountingTask.sRunTimes.clear();
+    }
+
+    @Ignore("Benchmark, run explicitly")
+    @Test
+    public void testScheduleCancelRunCycles() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(mContext);
+        long writesBefore = keyStore.getWriteCount();
+
+        int expectedRuns = 0;
+        for (int i = 0; i < CYCLES; i++) {
+            Pack data = new Pack();
+            data.putString("cycle", String.valueOf(i));
+            TaskOptions.Builder optionsBuilder = new TaskOptions.Builder()
+                    .setDelay(1000L)
+                    .setWindow(1000L);
+            mTaskManager.scheduleTask(CountingTask.class, data, optionsBuilder.build());
+
+            if (i % 10 == 0) {
+                mTaskManager.scheduleTask(CountingSingletonTask.class);
+                mTaskManager.cancelTask(CountingSingletonTask.class);
+            }
+
+            mClock.advance(1000L);
+            expectedRuns += mScheduler.runDue(mTaskManager);
+        }
+
+        long keyStoreWrites = keyStore.getWriteCount() - writesBefore;
+
+        assertEquals(CYCLES, expectedRuns);
+        assertEquals(CYCLES, CountingTask.sRunCount);
+        assertEquals(0, mScheduler.getPendingCount());
+        assertEquals(0, TaskJournal.getInstance(mContext).size());
+        assertEquals(0, keyStoreWrites);
+
+        TaskStats.Snapshot snapshot = mTaskManager.getMetrics().getSnapshot(CountingTask.class);
+        assertEquals(CYCLES, snapshot.getCount(Result.SUCCESS));
+    }
+
+    @Test
+    public void testRescheduleIsRetried() throws Exception {
+        Pack data = new Pack();
+        data.putString("fail", "1");
+        mTaskManager.scheduleTask(CountingTask.class, data, new TaskOptions.Builder().setDelay(0L).build());
+
+        assertEquals(1, mScheduler.runDue(mTaskManager));
+        assertEquals(1, TaskJournal.getInstance(mContext).size());
+
+        // the scheduler retries 30 seconds after the first failure
+        mClock.advance(30 * 1000L - 1);
+        assertEquals(0, mScheduler.runDue(mTaskManager));
+        mClock.advance(1);
+        assertEquals(1, mScheduler.runDue(mTaskManager));
+
+        assertEquals(Arrays.asList(0L, 30 * 1000L), CountingTask.sRunTimes);
+        assertEquals(0, mScheduler.getPendingCount());
+        assertEquals(0, TaskJournal.getInstance(mContext).size());
+        TaskStats.Snapshot snapshot = mTaskManager.getMetrics().getSnapshot(CountingTask.class);
+        assertEquals(2, snapshot.getRunCount());
+        assertEquals(1, snapshot.getCount(Result.RESCHEDULE));
+        assertEquals(1, snapshot.getCount(Result.SUCCESS));
+        assertEquals(1, snapshot.getRetryDepthHistogram()[0]);
+        assertEquals(1, snapshot.getRetryDepthHistogram()[1]);
+    }
+
+    public static class CountingTask implements PushPoleTask {
+        static int sRunCount;
+        static VirtualClock sClock;
+        static final List<Long> sRunTimes = new ArrayList<>();
+
+        @Override
+        public Result runTask(Context context, Pack pack) {
+            sRunCount++;
+            sRunTimes.add(sClock.now());
+            int failures = Integer.parseInt(pack.getString("fail", "0"));
+            if (failures > 0) {
+                pack.putString("fail", String.valueOf(failures - 1));
+                return Result.RESCHEDULE;
+            }
+            return Result.SUCCESS;
+        }
+    }
+
+    @com.pushpole.sdk.task.options.SingletonTask
+    public static class CountingSingletonTask implements PushPoleTask {
+        @Override
+        public Result runTask(Context context, Pack pack) {
+            return Result.SUCCESS;
+        }
+    }
+}
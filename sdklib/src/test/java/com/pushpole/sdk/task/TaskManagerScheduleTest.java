@@ -0,0 +1,153 @@
+package com.pushpole.sdk.task;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.pushpole.sdk.internal.db.DatabaseHelper;
+import com.pushpole.sdk.internal.db.TaskJournal;
+import com.pushpole.sdk.task.options.TaskOptions;
+import com.pushpole.sdk.task.scheduler.Scheduler;
+import com.pushpole.sdk.task.scheduler.memory.InMemoryScheduler;
+import com.pushpole.sdk.task.scheduler.memory.VirtualClock;
+import com.pushpole.sdk.util.Pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link TaskManager#scheduleTasks} and recovery of lost tasks hand tasks to the scheduler
+ * in batches, and fall back to one call per task for schedulers which can not batch
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TaskManagerScheduleTest {
+    private final static long HOUR = 60 * 60 * 1000L;
+
+    private Context mContext;
+    private VirtualClock mClock;
+    private CountingScheduler mScheduler;
+    private TaskManager mTaskManager;
+    private TaskJournal mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        DatabaseHelper.getInstance(mContext).getWritableDatabase().delete("_task_table", null, null);
+        mClock = new VirtualClock();
+        mScheduler = new CountingScheduler(mClock);
+        mTaskManager = TaskManager.getInstance(mContext);
+        mTaskManager.setScheduler(mScheduler);
+        mJournal = TaskJournal.getInstance(mContext);
+        BatchTask.sRunCount = 0;
+    }
+
+    @Test
+    public void testScheduleTasksInOnePass() throws Exception {
+        mTaskManager.scheduleTasks(BatchTask.class, createData(5),
+                new TaskOptions.Builder().setDelay(1000L).build());
+
+        assertEquals(1, mScheduler.mBatchCount);
+        assertEquals(0, mScheduler.mSingleCount);
+        assertEquals(5, mScheduler.getPendingCount());
+        assertEquals(5, mJournal.size());
+
+        mClock.advance(1000L);
+        assertEquals(5, mScheduler.runDue(mTaskManager));
+        assertEquals(5, BatchTask.sRunCount);
+        assertEquals(0, mJournal.size());
+    }
+
+    @Test
+    public void testScheduleTasksWithoutBatchScheduler() throws Exception {
+        final List<String> tags = new ArrayList<>();
+        mTaskManager.setScheduler(new Scheduler() {
+            @Override
+            public void schedule(Context context, String tag, TaskOptions taskOptions) {
+                tags.add(tag);
+            }
+
+            @Override
+            public void cancel(Context context, String tag) {
+            }
+        });
+
+        mTaskManager.scheduleTasks(BatchTask.class, createData(3), null);
+        assertEquals(3, tags.size());
+        assertEquals(3, mJournal.size());
+    }
+
+    @Test
+    public void testRecoveryBatchesTasksWithSameOptions() throws Exception {
+        long lostTime = System.currentTimeMillis() - 7 * HOUR;
+        TaskOptions options = new TaskOptions.Builder().setDelay(HOUR).setWindow(HOUR).build();
+        TaskOptions otherOptions = new TaskOptions.Builder().setDelay(HOUR).setWindow(2 * HOUR).build();
+        String prefix = BatchTask.class.getName() + '#';
+        mJournal.put(new TaskJournal.Entry(prefix + "a", new Pack(), lostTime, options));
+        mJournal.put(new TaskJournal.Entry(prefix + "b", new Pack(), lostTime, options));
+        mJournal.put(new TaskJournal.Entry(prefix + "c", new Pack(), lostTime, otherOptions));
+        // still scheduled, only late
+        mJournal.put(new TaskJournal.Entry(prefix + "d", new Pack(), lostTime, options));
+        mScheduler.schedule(mContext, prefix + "d", options);
+        mScheduler.mSingleCount = 0;
+
+        mTaskManager.recoverPendingTasks();
+
+        assertEquals(2, mScheduler.mBatchCount);
+        assertEquals(0, mScheduler.mSingleCount);
+        assertEquals(4, mScheduler.getPendingCount());
+        assertTrue(mJournal.get(prefix + "a").getNextTryTime() > lostTime);
+        assertTrue(mJournal.get(prefix + "d").getNextTryTime() > lostTime);
+
+        // overdue one-off tasks are due immediately, the late job keeps its own due time
+        assertEquals(3, mScheduler.runDue(mTaskManager));
+        assertEquals(3, BatchTask.sRunCount);
+    }
+
+    private static List<Pack> createData(int count) {
+        List<Pack> dataList = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Pack data = new Pack();
+            data.putString("index", String.valueOf(i));
+            dataList.add(data);
+        }
+        return dataList;
+    }
+
+    private static class CountingScheduler extends InMemoryScheduler {
+        int mBatchCount;
+        int mSingleCount;
+
+        CountingScheduler(VirtualClock clock) {
+            super(clock);
+        }
+
+        @Override
+        public synchronized void schedule(Context context, String tag, TaskOptions taskOptions) {
+            mSingleCount++;
+            super.schedule(context, tag, taskOptions);
+        }
+
+        @Override
+        public synchronized void scheduleAll(Context context, List<String> tags, TaskOptions taskOptions) {
+            mBatchCount++;
+            super.scheduleAll(context, tags, taskOptions);
+        }
+    }
+
+    public static class BatchTask implements PushPoleTask {
+        static int sRunCount;
+
+        @Override
+        public Result runTask(Context context, Pack pack) {
+            sRunCount++;
+            return Result.SUCCESS;
+        }
+    }
+}
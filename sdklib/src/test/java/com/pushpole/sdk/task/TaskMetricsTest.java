@@ -0,0 +1,82 @@
+package com.pushpole.sdk.task;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import com.pushpole.sdk.util.Pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link TaskManager} records metrics of scheduled tasks, including tasks which throw
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TaskMetricsTest {
+    private TaskManager mTaskManager;
+
+    @Before
+    public void setUp() throws Exception {
+        mTaskManager = TaskManager.getInstance(RuntimeEnvironment.application);
+        mTaskManager.getMetrics().reset();
+    }
+
+    @Test
+    public void testStatsPerTaskType() throws Exception {
+        TaskMetrics metrics = new TaskMetrics();
+        TaskStats stats = metrics.getStats(SucceedingTask.class);
+        assertSame(stats, metrics.getStats(SucceedingTask.class));
+        assertNotSame(stats, metrics.getStats(ThrowingTask.class));
+        assertNull(metrics.getSnapshot(TaskMetricsTest.class));
+        assertEquals(2, metrics.getSnapshot().size());
+
+        metrics.reset();
+        assertEquals(0, metrics.getSnapshot().size());
+    }
+
+    @Test
+    public void testScheduledTaskRecorded() throws Exception {
+        assertEquals(Result.SUCCESS, mTaskManager.handleScheduledTask(SucceedingTask.class.getName()));
+
+        TaskStats.Snapshot snapshot = mTaskManager.getMetrics().getSnapshot(SucceedingTask.class);
+        assertEquals(1, snapshot.getRunCount());
+        assertEquals(1, snapshot.getCount(Result.SUCCESS));
+    }
+
+    @Test
+    public void testThrowingTaskRecordedAsFailed() throws Exception {
+        try {
+            mTaskManager.handleScheduledTask(ThrowingTask.class.getName());
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        TaskStats.Snapshot snapshot = mTaskManager.getMetrics().getSnapshot(ThrowingTask.class);
+        assertEquals(1, snapshot.getRunCount());
+        assertEquals(1, snapshot.getCount(Result.FAIL));
+        assertEquals(0, snapshot.getCount(Result.SUCCESS));
+    }
+
+    public static class SucceedingTask implements PushPoleTask {
+        @Override
+        public Result runTask(Context context, Pack pack) {
+            return Result.SUCCESS;
+        }
+    }
+
+    public static class ThrowingTask implements PushPoleTask {
+        @Override
+        public Result runTask(Context context, Pack pack) {
+            throw new IllegalStateException("Task failed");
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.pushpole.sdk.task;
+
+import android.content.Context;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.pushpole.sdk.collection.tasks.FloatingTask;
+import com.pushpole.sdk.task.tasks.SubscribeTask;
+import com.pushpole.sdk.util.Pack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks compact and legacy tags of {@link TaskRegistry} resolve to their task types and malformed
+ * tags or unknown classes resolve to nothing
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TaskRegistryTest {
+
+    @Test
+    public void testCompactTag() throws Exception {
+        TaskRegistry.Entry entry = TaskRegistry.get(SubscribeTask.class);
+        assertTrue(entry.isRegistered());
+        String tag = TaskRegistry.buildTag(entry, "key");
+        assertEquals("@" + entry.getId() + "#key", tag);
+        assertFalse(TaskRegistry.isLegacyTag(tag));
+        assertSame(entry, TaskRegistry.fromTag(tag));
+        assertEquals("key", TaskRegistry.getDataKey(tag));
+
+        TaskRegistry.Entry floating = TaskRegistry.fromTag("@3");
+        assertSame(FloatingTask.class, floating.getTaskType());
+        assertNull(TaskRegistry.getDataKey("@3"));
+    }
+
+    @Test
+    public void testMalformedCompactTag() throws Exception {
+        assertNull(TaskRegistry.fromTag("@"));
+        assertNull(TaskRegistry.fromTag("@#key"));
+        assertNull(TaskRegistry.fromTag("@x#k"));
+        assertNull(TaskRegistry.fromTag("@3x#k"));
+        // ids out of range or never registered
+        assertNull(TaskRegistry.fromTag("@99"));
+        assertNull(TaskRegistry.fromTag("@31"));
+        assertNull(TaskRegistry.fromTag("@99999999999999999999#k"));
+        assertFalse(TaskRegistry.isLegacyTag("@x#k"));
+    }
+
+    @Test
+    public void testLegacyTag() throws Exception {
+        TaskRegistry.Entry entry = TaskRegistry.get(SubscribeTask.class);
+        String tag = TaskRegistry.buildLegacyTag(entry, "key");
+        assertEquals(SubscribeTask.class.getName() + "#key", tag);
+        assertTrue(TaskRegistry.isLegacyTag(tag));
+        assertSame(entry, TaskRegistry.fromTag(tag));
+        assertSame(entry, TaskRegistry.fromTag(SubscribeTask.class.getName()));
+        assertEquals("key", TaskRegistry.getDataKey(tag));
+    }
+
+    @Test
+    public void testUnregisteredTaskUsesClassName() throws Exception {
+        String tag = UnregisteredTask.class.getName() + "#key";
+        TaskRegistry.Entry entry = TaskRegistry.fromTag(tag);
+        assertSame(UnregisteredTask.class, entry.getTaskType());
+        assertFalse(entry.isRegistered());
+        assertEquals(tag, TaskRegistry.buildTag(entry, "key"));
+        assertSame(entry, TaskRegistry.get(UnregisteredTask.class));
+        assertTrue(entry.newTask() instanceof UnregisteredTask);
+    }
+
+    @Test
+    public void testUnknownClass() throws Exception {
+        assertNull(TaskRegistry.fromTag("com.pushpole.sdk.task.MissingTask#key"));
+        // a class which is not a task
+        assertNull(TaskRegistry.fromTag(String.class.getName() + "#key"));
+        assertNull(TaskRegistry.fromTag(""));
+    }
+
+    public static class UnregisteredTask implements PushPoleTask {
+        @Override
+        public Result runTask(Context context, Pack pack) {
+            return Result.SUCCESS;
+        }
+    }
+}
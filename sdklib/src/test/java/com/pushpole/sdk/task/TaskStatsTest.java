@@ -0,0 +1,88 @@
+package com.pushpole.sdk.task;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks histogram buckets, percentiles and counters of {@link TaskStats}
+ */
+public class TaskStatsTest {
+
+    @Test
+    public void testTimeBuckets() throws Exception {
+        assertEquals(0, TaskStats.getTimeBucket(-5));
+        assertEquals(0, TaskStats.getTimeBucket(0));
+        assertEquals(1, TaskStats.getTimeBucket(1));
+        assertEquals(2, TaskStats.getTimeBucket(2));
+        assertEquals(2, TaskStats.getTimeBucket(3));
+        assertEquals(3, TaskStats.getTimeBucket(4));
+        assertEquals(11, TaskStats.getTimeBucket(1024));
+        assertEquals(TaskStats.TIME_BUCKETS - 1, TaskStats.getTimeBucket(Long.MAX_VALUE));
+
+        for (int bucket = 1; bucket < TaskStats.TIME_BUCKETS; bucket++) {
+            long lowerBound = TaskStats.getBucketLowerBound(bucket);
+            assertEquals(bucket, TaskStats.getTimeBucket(lowerBound));
+            assertEquals(bucket - 1, TaskStats.getTimeBucket(lowerBound - 1));
+        }
+    }
+
+    @Test
+    public void testResultsAndRetryDepth() throws Exception {
+        TaskStats stats = new TaskStats("task");
+        stats.recordResult(Result.SUCCESS);
+        stats.recordResult(Result.SUCCESS);
+        stats.recordResult(Result.FAIL);
+        stats.recordRetryDepth(-1);
+        stats.recordRetryDepth(2);
+        stats.recordRetryDepth(100);
+        stats.recordOverrun();
+
+        TaskStats.Snapshot snapshot = stats.snapshot();
+        assertEquals("task", snapshot.getTaskType());
+        assertEquals(2, snapshot.getCount(Result.SUCCESS));
+        assertEquals(1, snapshot.getCount(Result.FAIL));
+        assertEquals(0, snapshot.getCount(Result.RESCHEDULE));
+        assertEquals(1, snapshot.getOverrunCount());
+        long[] retryDepth = snapshot.getRetryDepthHistogram();
+        assertEquals(1, retryDepth[0]);
+        assertEquals(1, retryDepth[2]);
+        assertEquals(1, retryDepth[TaskStats.RETRY_BUCKETS - 1]);
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        TaskStats stats = new TaskStats("task");
+        assertEquals(0, stats.snapshot().getRunTimePercentile(0.5));
+        for (int i = 0; i < 90; i++) {
+            stats.recordRunTime(5);
+        }
+        for (int i = 0; i < 10; i++) {
+            stats.recordRunTime(3000);
+        }
+        stats.recordQueueWait(100);
+
+        TaskStats.Snapshot snapshot = stats.snapshot();
+        assertEquals(100, snapshot.getRunCount());
+        assertEquals(4, snapshot.getRunTimePercentile(0.5));
+        assertEquals(4, snapshot.getRunTimePercentile(0.9));
+        assertEquals(2048, snapshot.getRunTimePercentile(0.91));
+        assertEquals(64, snapshot.getQueueWaitPercentile(0.99));
+    }
+
+    @Test
+    public void testSnapshotIsCopy() throws Exception {
+        TaskStats stats = new TaskStats("task");
+        stats.recordRunTime(1);
+        TaskStats.Snapshot snapshot = stats.snapshot();
+        long[] histogram = snapshot.getRunTimeHistogram();
+        histogram[1] = 100;
+
+        stats.recordRunTime(1);
+        assertEquals(1, snapshot.getRunCount());
+        assertEquals(1, snapshot.getRunTimeHistogram()[1]);
+        assertArrayEquals(new long[TaskStats.TIME_BUCKETS], snapshot.getQueueWaitHistogram());
+        assertEquals(2, stats.snapshot().getRunCount());
+    }
+}
@@ -0,0 +1,84 @@
+package com.pushpole.sdk.task.executor;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link LaneExecutor} starts threads on demand, stops them when idle and
+ * restarts them for new work, without leaking threads across cycles
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LaneExecutorLifecycleTest {
+    private final static long IDLE_TIMEOUT = 100L;
+
+    @Test
+    public void testThreadsStartLazilyAndStopWhenIdle() throws Exception {
+        int baseline = countPushPoleThreads();
+        LaneExecutor executor = new LaneExecutor(IDLE_TIMEOUT);
+        assertEquals(0, executor.getLiveThreadCount());
+
+        for (int cycle = 0; cycle < 5; cycle++) {
+            runOnEveryLane(executor);
+            assertTrue(executor.getLiveThreadCount() > 0);
+
+            waitUntilIdle(executor);
+            assertEquals(0, executor.getLiveThreadCount());
+            assertEquals(baseline, countPushPoleThreads());
+        }
+    }
+
+    @Test
+    public void testTimerStaysAliveForPendingDelayedJobs() throws Exception {
+        LaneExecutor executor = new LaneExecutor(IDLE_TIMEOUT);
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.submitDelayed(Lane.BULK, LaneExecutor.PRIORITY_NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, IDLE_TIMEOUT * 5);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        waitUntilIdle(executor);
+        assertEquals(0, executor.getLiveThreadCount());
+    }
+
+    private void runOnEveryLane(LaneExecutor executor) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(Lane.values().length);
+        for (Lane lane : Lane.values()) {
+            executor.submit(lane, LaneExecutor.PRIORITY_NORMAL, new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private void waitUntilIdle(LaneExecutor executor) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + IDLE_TIMEOUT * 50;
+        while (executor.getLiveThreadCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(IDLE_TIMEOUT / 2);
+        }
+        // Give stopped threads time to terminate
+        Thread.sleep(IDLE_TIMEOUT);
+    }
+
+    private int countPushPoleThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("pushpole-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
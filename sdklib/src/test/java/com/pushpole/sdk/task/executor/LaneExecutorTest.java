@@ -0,0 +1,175 @@
+package com.pushpole.sdk.task.executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a busy lane does not hold back other lanes, queued jobs leave in priority order and
+ * then in submission order, and a full lane rejects new jobs, including delayed jobs when due
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LaneExecutorTest {
+    private final static long TIMEOUT = 5000L;
+
+    private LaneExecutor mExecutor;
+    private CountDownLatch mRelease;
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutor = new LaneExecutor(100L);
+        mRelease = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRelease.countDown();
+    }
+
+    @Test
+    public void testBusyLaneDoesNotBlockOthers() throws Exception {
+        block(Lane.CONTROL);
+        final CountDownLatch ran = new CountDownLatch(2);
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        };
+        assertTrue(mExecutor.submit(Lane.BULK, LaneExecutor.PRIORITY_NORMAL, job));
+        assertTrue(mExecutor.submit(Lane.RENDER, LaneExecutor.PRIORITY_NORMAL, job));
+
+        assertTrue(ran.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, mExecutor.getQueuedCount(Lane.BULK));
+    }
+
+    @Test
+    public void testPriorityOrderThenSubmissionOrder() throws Exception {
+        block(Lane.CONTROL);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch ran = new CountDownLatch(5);
+        submitNamed("low", LaneExecutor.PRIORITY_LOW, order, ran);
+        submitNamed("normal-1", LaneExecutor.PRIORITY_NORMAL, order, ran);
+        submitNamed("high-1", LaneExecutor.PRIORITY_HIGH, order, ran);
+        submitNamed("normal-2", LaneExecutor.PRIORITY_NORMAL, order, ran);
+        submitNamed("high-2", LaneExecutor.PRIORITY_HIGH, order, ran);
+        assertEquals(5, mExecutor.getQueuedCount(Lane.CONTROL));
+
+        mRelease.countDown();
+        assertTrue(ran.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("high-1", "high-2", "normal-1", "normal-2", "low"), order);
+    }
+
+    @Test
+    public void testFullLaneRejects() throws Exception {
+        block(Lane.CONTROL);
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        for (int i = 0; i < Lane.CONTROL.getCapacity(); i++) {
+            assertTrue(mExecutor.submit(Lane.CONTROL, LaneExecutor.PRIORITY_NORMAL, job));
+        }
+        assertFalse(mExecutor.submit(Lane.CONTROL, LaneExecutor.PRIORITY_HIGH, job));
+        assertEquals(Lane.CONTROL.getCapacity(), mExecutor.getQueuedCount(Lane.CONTROL));
+        // other lanes still accept jobs
+        assertTrue(mExecutor.submit(Lane.BULK, LaneExecutor.PRIORITY_NORMAL, job));
+    }
+
+    @Test
+    public void testDelayedJobDroppedWhenLaneFull() throws Exception {
+        block(Lane.CONTROL);
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        for (int i = 0; i < Lane.CONTROL.getCapacity(); i++) {
+            mExecutor.submit(Lane.CONTROL, LaneExecutor.PRIORITY_NORMAL, job);
+        }
+        final CountDownLatch dropped = new CountDownLatch(1);
+        mExecutor.submitDelayed(Lane.CONTROL, LaneExecutor.PRIORITY_NORMAL, job, 10L, new Runnable() {
+            @Override
+            public void run() {
+                dropped.countDown();
+            }
+        });
+
+        assertTrue(dropped.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Lane.CONTROL.getCapacity(), mExecutor.getQueuedCount(Lane.CONTROL));
+    }
+
+    @Test
+    public void testConcurrentOffersKeepCapacity() throws Exception {
+        final LaneExecutor.BoundedPriorityQueue queue = new LaneExecutor.BoundedPriorityQueue(100);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final int thread = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 50; j++) {
+                        queue.offer(new LaneExecutor.Job(null, LaneExecutor.PRIORITY_NORMAL, thread * 50 + j));
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT);
+        }
+        assertEquals(100, queue.size());
+    }
+
+    /***
+     * occupy the only thread of a lane until {@link #mRelease} is counted down
+     */
+    private void block(Lane lane) throws InterruptedException {
+        assertEquals(1, lane.getConcurrency());
+        final CountDownLatch started = new CountDownLatch(1);
+        mExecutor.submit(lane, LaneExecutor.PRIORITY_NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    mRelease.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private void submitNamed(final String name, int priority, final List<String> order, final CountDownLatch ran) {
+        mExecutor.submit(Lane.CONTROL, priority, new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                ran.countDown();
+            }
+        });
+    }
+}
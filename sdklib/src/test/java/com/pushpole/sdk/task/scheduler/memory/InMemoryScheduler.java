@@ -0,0 +1,189 @@
+package com.pushpole.sdk.task.scheduler.memory;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.pushpole.sdk.task.Result;
+import com.pushpole.sdk.task.TaskManager;
+import com.pushpole.sdk.task.options.TaskOptions;
+import com.pushpole.sdk.task.scheduler.BatchScheduler;
+import com.pushpole.sdk.task.scheduler.ScheduleInspector;
+import com.pushpole.sdk.task.scheduler.Scheduler;
+
+/***
+ * {@link Scheduler} keeping jobs in memory, driven by a {@link VirtualClock}
+ * a job becomes due {@code delay} after it was scheduled and should run before its window ends,
+ * scheduling a job with {@code replace} cancels every pending job with the same tag
+ *
+ * Jobs never run by themselves, call {@link #runDue(TaskManager)} after moving the clock
+ */
+public class InMemoryScheduler implements BatchScheduler, ScheduleInspector {
+    private final static long RESCHEDULE_BACKOFF = 30 * 1000L;
+
+    private final VirtualClock mClock;
+    private final PriorityQueue<Job> mQueue = new PriorityQueue<>();
+    private final Map<String, List<Job>> mJobsByTag = new HashMap<>();
+    private long mSequence;
+    private long mMissedWindowCount;
+
+    public InMemoryScheduler(VirtualClock clock) {
+        mClock = clock;
+    }
+
+    @Override
+    public synchronized void schedule(Context context, String tag, TaskOptions taskOptions) {
+        if (taskOptions.isReplace()) {
+            cancel(context, tag);
+        }
+        long dueTime = mClock.now() + taskOptions.getDelay();
+        addJob(new Job(tag, dueTime, dueTime + taskOptions.getWindow(), 0, mSequence++));
+    }
+
+    @Override
+    public synchronized void scheduleAll(Context context, List<String> tags, TaskOptions taskOptions) {
+        long dueTime = mClock.now() + taskOptions.getDelay();
+        long windowEnd = dueTime + taskOptions.getWindow();
+        for (String tag : tags) {
+            if (taskOptions.isReplace()) {
+                cancel(context, tag);
+            }
+            addJob(new Job(tag, dueTime, windowEnd, 0, mSequence++));
+        }
+    }
+
+    @Override
+    public synchronized void cancel(Context context, String tag) {
+        List<Job> jobs = mJobsByTag.remove(tag);
+        if (jobs != null) {
+            for (Job job : jobs) {
+                job.mCanceled = true;
+            }
+        }
+    }
+
+    /***
+     * run every job which is due at the current virtual time, in due time order
+     * jobs returning {@code Result.RESCHEDULE} are retried with linear backoff like platform schedulers
+     *
+     * @param taskManager the task manager running the jobs
+     * @return number of jobs run
+     */
+    public int runDue(TaskManager taskManager) {
+        int count = 0;
+        Job job;
+        while ((job = pollDue()) != null) {
+            Result result = taskManager.handleScheduledTask(job.mTag);
+            count++;
+            if (result == Result.RESCHEDULE) {
+                synchronized (this) {
+                    long dueTime = mClock.now() + RESCHEDULE_BACKOFF * (job.mAttempt + 1);
+                    addJob(new Job(job.mTag, dueTime, dueTime + (job.mWindowEnd - job.mDueTime),
+                            job.mAttempt + 1, mSequence++));
+                }
+            }
+        }
+        return count;
+    }
+
+    /***
+     * @return number of jobs waiting to run
+     */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (List<Job> jobs : mJobsByTag.values()) {
+            count += jobs.size();
+        }
+        return count;
+    }
+
+    /***
+     * @return tags of every job waiting to run
+     */
+    public synchronized Set<String> getScheduledTags() {
+        return new HashSet<>(mJobsByTag.keySet());
+    }
+
+    @Override
+    public Set<String> getScheduledTags(Context context) {
+        return getScheduledTags();
+    }
+
+    /***
+     * @return number of jobs which ran after their window ended because the clock jumped over it
+     */
+    public synchronized long getMissedWindowCount() {
+        return mMissedWindowCount;
+    }
+
+    private synchronized Job pollDue() {
+        while (!mQueue.isEmpty()) {
+            Job job = mQueue.peek();
+            if (job.mCanceled) {
+                mQueue.poll();
+                continue;
+            }
+            if (job.mDueTime > mClock.now()) {
+                return null;
+            }
+            mQueue.poll();
+            removeFromTag(job);
+            if (mClock.now() > job.mWindowEnd) {
+                mMissedWindowCount++;
+            }
+            return job;
+        }
+        return null;
+    }
+
+    private void addJob(Job job) {
+        mQueue.add(job);
+        List<Job> jobs = mJobsByTag.get(job.mTag);
+        if (jobs == null) {
+            jobs = new ArrayList<>(1);
+            mJobsByTag.put(job.mTag, jobs);
+        }
+        jobs.add(job);
+    }
+
+    private void removeFromTag(Job job) {
+        List<Job> jobs = mJobsByTag.get(job.mTag);
+        if (jobs != null) {
+            jobs.remove(job);
+            if (jobs.isEmpty()) {
+                mJobsByTag.remove(job.mTag);
+            }
+        }
+    }
+
+    private static class Job implements Comparable<Job> {
+        private final String mTag;
+        private final long mDueTime;
+        private final long mWindowEnd;
+        private final int mAttempt;
+        private final long mSequence;
+        private boolean mCanceled;
+
+        Job(String tag, long dueTime, long windowEnd, int attempt, long sequence) {
+            mTag = tag;
+            mDueTime = dueTime;
+            mWindowEnd = windowEnd;
+            mAttempt = attempt;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mDueTime != other.mDueTime) {
+                return mDueTime < other.mDueTime ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.pushpole.sdk.task.scheduler.memory;
+
+/***
+ * A clock which only moves when told to, used to drive {@link InMemoryScheduler} deterministically
+ */
+public class VirtualClock {
+    private long mTime;
+
+    public VirtualClock() {
+        this(0);
+    }
+
+    public VirtualClock(long startTime) {
+        mTime = startTime;
+    }
+
+    /***
+     * @return current virtual time in milliseconds
+     */
+    public synchronized long now() {
+        return mTime;
+    }
+
+    /***
+     * move the clock forward
+     *
+     * @param millis amount of time in milliseconds, must not be negative
+     */
+    public synchronized void advance(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Virtual clock cannot go back in time");
+        }
+        mTime += millis;
+    }
+}